@@ -0,0 +1,40 @@
+plugins {
+  java
+}
+
+sourceSets {
+  main {
+    java.srcDirs("src")
+  }
+}
+
+val jmhVersion = "1.37"
+
+dependencies {
+  implementation(project(":core"))
+  implementation("org.jetbrains:annotations:24.0.1")
+  implementation("org.openjdk.jmh:jmh-core:$jmhVersion")
+  annotationProcessor("org.openjdk.jmh:jmh-generator-annprocess:$jmhVersion")
+  runtimeOnly("org.slf4j:slf4j-nop:2.0.9")
+}
+
+tasks.withType<JavaCompile> {
+  options.encoding = Charsets.UTF_8.name()
+  sourceCompatibility = "11"
+  targetCompatibility = "11"
+}
+
+/**
+ * Runs all benchmarks with the GC profiler enabled, so that every result is accompanied
+ * by `gc.alloc.rate.norm` (bytes allocated per processed byte of input).
+ * Extra JMH options can be passed via `-PjmhArgs="..."`, e.g.
+ * `./gradlew :benchmarks:jmh -PjmhArgs="EmulatorBenchmark -p scenario=SGR -f 1"`.
+ */
+tasks.register<JavaExec>("jmh") {
+  group = "benchmark"
+  description = "Runs JMH benchmarks"
+  classpath = sourceSets.main.get().runtimeClasspath
+  mainClass = "org.openjdk.jmh.Main"
+  val extraArgs = (project.findProperty("jmhArgs") as String?)?.split(' ')?.filter { it.isNotBlank() } ?: emptyList()
+  args = listOf("-prof", "gc", "-rf", "json", "-rff", layout.buildDirectory.file("jmh-result.json").get().asFile.path) + extraArgs
+}
@@ -0,0 +1,69 @@
+package com.jediterm.benchmarks;
+
+import com.jediterm.terminal.ArrayTerminalDataStream;
+import com.jediterm.terminal.emulator.JediEmulator;
+import com.jediterm.terminal.model.JediTerminal;
+import com.jediterm.terminal.model.LinesStorage;
+import com.jediterm.terminal.model.StyleState;
+import com.jediterm.terminal.model.TerminalTextBuffer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end throughput of the emulator hot path: {@link ArrayTerminalDataStream} -> {@link JediEmulator} ->
+ * {@link JediTerminal} -> {@link TerminalTextBuffer}.
+ * <p>
+ * One benchmark operation is one byte of UTF-8 input, and the score is reported in operations per microsecond,
+ * i.e. directly in MB/s. With the GC profiler ({@code -prof gc}) {@code gc.alloc.rate.norm} is the number of bytes
+ * allocated per input byte.
+ * <p>
+ * The terminal is kept between invocations, so the history buffer is full after warmup and lines are discarded
+ * from it as in a long-running session.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(EmulatorBenchmark.PAYLOAD_SIZE)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xmx1g"})
+@State(Scope.Thread)
+public class EmulatorBenchmark {
+  static final int PAYLOAD_SIZE = 1024 * 1024;
+
+  private static final int COLUMNS = 120;
+  private static final int ROWS = 40;
+
+  @Param
+  public Payloads.Scenario scenario;
+
+  private char[] myPayload;
+  private TerminalTextBuffer myTextBuffer;
+  private JediTerminal myTerminal;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    myPayload = Payloads.generate(scenario, PAYLOAD_SIZE, COLUMNS, ROWS);
+    StyleState styleState = new StyleState();
+    myTextBuffer = new TerminalTextBuffer(COLUMNS, ROWS, styleState, LinesStorage.DEFAULT_MAX_LINES_COUNT);
+    myTerminal = new JediTerminal(new NullTerminalDisplay(false), myTextBuffer, styleState);
+    if (scenario == Payloads.Scenario.TUI) {
+      process("\u001b[?1049h".toCharArray());
+    }
+  }
+
+  @Benchmark
+  public void process(Blackhole blackhole) throws IOException {
+    process(myPayload);
+    blackhole.consume(myTextBuffer.getScreenLinesCount());
+  }
+
+  private void process(char[] data) throws IOException {
+    JediEmulator emulator = new JediEmulator(new ArrayTerminalDataStream(data), myTerminal);
+    while (emulator.hasNext()) {
+      emulator.next();
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package com.jediterm.benchmarks;
+
+import com.jediterm.terminal.ArrayTerminalDataStream;
+import com.jediterm.terminal.emulator.JediEmulator;
+import com.jediterm.terminal.model.JediTerminal;
+import com.jediterm.terminal.model.StyleState;
+import com.jediterm.terminal.model.TerminalLine;
+import com.jediterm.terminal.model.TerminalTextBuffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares history storages: the default in-heap cyclic buffer, the compressed cold-history tier and
+ * the off-heap storage.
+ * <p>
+ * The history is filled with {@link #HISTORY_LINES_COUNT} lines once per trial, the heap retained by the terminal
+ * is printed as bytes per history line. The benchmark itself measures the cost of reading a random history line,
+ * which includes decompression or deserialization of cold lines.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+@State(Scope.Thread)
+public class HistoryStorageBenchmark {
+  private static final int COLUMNS = 120;
+  private static final int ROWS = 40;
+  private static final int HISTORY_LINES_COUNT = 20000;
+  private static final int PAYLOAD_SIZE = 8 * 1024 * 1024;
+
+  public enum Storage {
+    CYCLIC_BUFFER, COMPRESSED, OFF_HEAP
+  }
+
+  @Param
+  public Storage storage;
+
+  @Param({"ASCII", "SGR", "CJK"})
+  public Payloads.Scenario scenario;
+
+  private TerminalTextBuffer myTextBuffer;
+  private final Random myRandom = new Random(42);
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    System.setProperty("jediterm.history.compressed", String.valueOf(storage == Storage.COMPRESSED));
+    System.setProperty("jediterm.history.offheap", String.valueOf(storage == Storage.OFF_HEAP));
+    long usedBefore = usedMemory();
+    StyleState styleState = new StyleState();
+    myTextBuffer = new TerminalTextBuffer(COLUMNS, ROWS, styleState, HISTORY_LINES_COUNT);
+    JediTerminal terminal = new JediTerminal(new NullTerminalDisplay(false), myTextBuffer, styleState);
+    process(terminal, Payloads.generate(scenario, PAYLOAD_SIZE, COLUMNS, ROWS));
+    long retained = usedMemory() - usedBefore;
+
+    int linesCount = myTextBuffer.getHistoryLinesCount() + myTextBuffer.getScreenLinesCount();
+    System.out.printf("%n%s/%s: %d lines, %d bytes per line%n", storage, scenario, linesCount, retained / linesCount);
+  }
+
+  @Benchmark
+  public TerminalLine readRandomHistoryLine() {
+    int index = myRandom.nextInt(myTextBuffer.getHistoryLinesCount());
+    TerminalLine line = myTextBuffer.getLine(index - myTextBuffer.getHistoryLinesCount());
+    line.getText();
+    return line;
+  }
+
+  private static void process(JediTerminal terminal, char[] payload) throws IOException {
+    JediEmulator emulator = new JediEmulator(new ArrayTerminalDataStream(payload), terminal);
+    while (emulator.hasNext()) {
+      emulator.next();
+    }
+  }
+
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,73 @@
+package com.jediterm.benchmarks;
+
+import com.jediterm.terminal.CursorShape;
+import com.jediterm.terminal.TerminalDisplay;
+import com.jediterm.terminal.emulator.mouse.MouseFormat;
+import com.jediterm.terminal.emulator.mouse.MouseMode;
+import com.jediterm.terminal.model.TerminalSelection;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Display that ignores everything, so that benchmarks measure the emulator and the text buffer only.
+ */
+public class NullTerminalDisplay implements TerminalDisplay {
+  private final boolean myAmbiguousCharsAreDoubleWidth;
+  private String myWindowTitle = "";
+
+  public NullTerminalDisplay(boolean ambiguousCharsAreDoubleWidth) {
+    myAmbiguousCharsAreDoubleWidth = ambiguousCharsAreDoubleWidth;
+  }
+
+  @Override
+  public void setCursor(int x, int y) {
+  }
+
+  @Override
+  public void setCursorShape(@Nullable CursorShape cursorShape) {
+  }
+
+  @Override
+  public void beep() {
+  }
+
+  @Override
+  public void scrollArea(int scrollRegionTop, int scrollRegionSize, int dy) {
+  }
+
+  @Override
+  public void setCursorVisible(boolean isCursorVisible) {
+  }
+
+  @Override
+  public void useAlternateScreenBuffer(boolean useAlternateScreenBuffer) {
+  }
+
+  @Override
+  public String getWindowTitle() {
+    return myWindowTitle;
+  }
+
+  @Override
+  public void setWindowTitle(@NotNull String windowTitle) {
+    myWindowTitle = windowTitle;
+  }
+
+  @Override
+  public @Nullable TerminalSelection getSelection() {
+    return null;
+  }
+
+  @Override
+  public void terminalMouseModeSet(@NotNull MouseMode mouseMode) {
+  }
+
+  @Override
+  public void setMouseFormat(@NotNull MouseFormat mouseFormat) {
+  }
+
+  @Override
+  public boolean ambiguousCharsAreDoubleWidth() {
+    return myAmbiguousCharsAreDoubleWidth;
+  }
+}
@@ -0,0 +1,200 @@
+package com.jediterm.benchmarks;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Random;
+
+/**
+ * Generates deterministic synthetic terminal streams resembling real captured output.
+ * <p>
+ * Every payload has exactly the requested size in UTF-8 bytes (what a PTY would deliver),
+ * so JMH throughput can be reported directly in MB/s and allocation normalized per input byte.
+ */
+public final class Payloads {
+  private static final String ESC = "\u001b";
+  private static final String CSI = ESC + "[";
+  private static final String SGR_RESET = CSI + "0m";
+
+  /**
+   * Upper bound of a single generated unit (a log line or a TUI frame), the rest is padded.
+   */
+  private static final int MAX_UNIT_SIZE = 16 * 1024;
+
+  private static final String[] WORDS = {
+    "INFO", "DEBUG", "WARN", "request", "completed", "in", "ms", "user", "session", "opened", "closed",
+    "org.example.service.Handler", "processing", "batch", "of", "items", "GET", "/api/v1/resources", "200", "OK",
+    "connection", "pool", "size", "cache", "hit", "miss", "thread", "main", "worker-17", "elapsed", "bytes"
+  };
+
+  private static final String[] FILE_NAMES = {
+    "build", "src", "README.md", "gradlew", "settings.gradle.kts", "core", "ui", "libpty.so", "run.sh",
+    "archive.tar.gz", "image.png", "Makefile", "node_modules", "target", ".gitignore", "LICENSE"
+  };
+
+  private Payloads() {
+  }
+
+  public static char @NotNull [] generate(@NotNull Scenario scenario, int sizeInBytes, int columns, int rows) {
+    Random random = new Random(42);
+    Utf8Builder builder = new Utf8Builder(sizeInBytes);
+    while (builder.remaining() > MAX_UNIT_SIZE) {
+      switch (scenario) {
+        case ASCII:
+          appendLogLine(builder, random);
+          break;
+        case SGR:
+          appendColoredOutput(builder, random);
+          break;
+        case TUI:
+          appendTuiFrame(builder, random, columns, rows);
+          break;
+        case CJK:
+          appendCjkLine(builder, random);
+          break;
+      }
+    }
+    builder.pad();
+    return builder.toCharArray();
+  }
+
+  private static void appendLogLine(@NotNull Utf8Builder builder, @NotNull Random random) {
+    builder.append("2024-05-17 12:").append(twoDigits(random.nextInt(60))).append(':').append(twoDigits(random.nextInt(60)));
+    appendWords(builder, random, 5 + random.nextInt(20));
+    builder.append("\r\n");
+  }
+
+  /**
+   * Mix of `ls --color` listings and compiler diagnostics: short runs of text separated by SGR sequences.
+   */
+  private static void appendColoredOutput(@NotNull Utf8Builder builder, @NotNull Random random) {
+    if (random.nextBoolean()) {
+      for (int i = 0; i < 6; i++) {
+        String name = FILE_NAMES[random.nextInt(FILE_NAMES.length)];
+        switch (random.nextInt(4)) {
+          case 0:
+            builder.append(CSI).append("01;34m").append(name).append(SGR_RESET);
+            break;
+          case 1:
+            builder.append(CSI).append("01;32m").append(name).append(SGR_RESET);
+            break;
+          case 2:
+            builder.append(CSI).append("38;5;").append(Integer.toString(random.nextInt(256))).append('m')
+              .append(name).append(SGR_RESET);
+            break;
+          default:
+            builder.append(name);
+        }
+        builder.append("  ");
+      }
+    }
+    else {
+      builder.append(CSI).append("1m").append("src/main/Handler.java:").append(Integer.toString(random.nextInt(1000)))
+        .append(':').append(Integer.toString(random.nextInt(80))).append(": ").append(SGR_RESET)
+        .append(CSI).append("1;31m").append("error: ").append(SGR_RESET)
+        .append(CSI).append("1m").append("cannot find symbol").append(SGR_RESET);
+      builder.append(CSI).append("38;2;").append(Integer.toString(random.nextInt(256))).append(';')
+        .append(Integer.toString(random.nextInt(256))).append(';').append(Integer.toString(random.nextInt(256))).append('m');
+      appendWords(builder, random, 3 + random.nextInt(6));
+      builder.append(SGR_RESET);
+    }
+    builder.append("\r\n");
+  }
+
+  /**
+   * Full-screen redraw as done by htop/vim-like applications: absolute cursor positioning,
+   * background colors, erase-in-line and a status line in inverse video.
+   */
+  private static void appendTuiFrame(@NotNull Utf8Builder builder, @NotNull Random random, int columns, int rows) {
+    builder.append(CSI).append("H");
+    for (int row = 1; row < rows; row++) {
+      builder.append(CSI).append(Integer.toString(row)).append(";1H");
+      builder.append(CSI).append(Integer.toString(40 + random.nextInt(8))).append(";")
+        .append(Integer.toString(30 + random.nextInt(8))).append('m');
+      int width = columns / 2 + random.nextInt(columns / 2);
+      for (int col = 0; col < width; col++) {
+        builder.append((char)('!' + random.nextInt(94)));
+      }
+      builder.append(SGR_RESET).append(CSI).append("K");
+    }
+    builder.append(CSI).append(Integer.toString(rows)).append(";1H").append(CSI).append("7m");
+    builder.append(" -- INSERT -- ").append(Integer.toString(random.nextInt(10000))).append(SGR_RESET).append(CSI).append("K");
+  }
+
+  private static void appendCjkLine(@NotNull Utf8Builder builder, @NotNull Random random) {
+    int count = 10 + random.nextInt(60);
+    for (int i = 0; i < count; i++) {
+      if (random.nextInt(5) == 0) {
+        builder.append(' ').append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+      }
+      else {
+        builder.append((char)(0x4E00 + random.nextInt(0x5000)));
+      }
+    }
+    builder.append("\r\n");
+  }
+
+  private static void appendWords(@NotNull Utf8Builder builder, @NotNull Random random, int count) {
+    for (int i = 0; i < count; i++) {
+      builder.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+    }
+  }
+
+  private static @NotNull String twoDigits(int value) {
+    return value < 10 ? "0" + value : Integer.toString(value);
+  }
+
+  public enum Scenario {
+    /** Plain ASCII log flood, the `cat build.log` case. */
+    ASCII,
+    /** SGR-heavy output: `ls --color` and compiler diagnostics. */
+    SGR,
+    /** Full-screen TUI redraws in the alternate screen buffer. */
+    TUI,
+    /** CJK double-width text mixed with ASCII. */
+    CJK
+  }
+
+  private static final class Utf8Builder {
+    private final StringBuilder myBuffer;
+    private final int mySizeInBytes;
+    private int myBytes;
+
+    Utf8Builder(int sizeInBytes) {
+      myBuffer = new StringBuilder(sizeInBytes);
+      mySizeInBytes = sizeInBytes;
+    }
+
+    int remaining() {
+      return mySizeInBytes - myBytes;
+    }
+
+    @NotNull Utf8Builder append(@NotNull String s) {
+      for (int i = 0; i < s.length(); i++) {
+        append(s.charAt(i));
+      }
+      return this;
+    }
+
+    @NotNull Utf8Builder append(char c) {
+      myBuffer.append(c);
+      myBytes += c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+      return this;
+    }
+
+    void pad() {
+      append(SGR_RESET).append("\r\n");
+      while (remaining() > 2) {
+        append(remaining() % 80 == 0 ? '\n' : '.');
+      }
+      while (remaining() > 0) {
+        append('\n');
+      }
+    }
+
+    char @NotNull [] toCharArray() {
+      char[] result = new char[myBuffer.length()];
+      myBuffer.getChars(0, result.length, result, 0);
+      return result;
+    }
+  }
+}
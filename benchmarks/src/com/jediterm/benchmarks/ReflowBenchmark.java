@@ -0,0 +1,100 @@
+package com.jediterm.benchmarks;
+
+import com.jediterm.core.util.TermSize;
+import com.jediterm.terminal.RequestOrigin;
+import com.jediterm.terminal.TextStyle;
+import com.jediterm.terminal.model.CharBuffer;
+import com.jediterm.terminal.model.JediTerminal;
+import com.jediterm.terminal.model.LinesStorage;
+import com.jediterm.terminal.model.StyleState;
+import com.jediterm.terminal.model.TerminalLine;
+import com.jediterm.terminal.model.TerminalTextBuffer;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of a width change of a terminal with {@link #HISTORY_LINES_COUNT} history lines, including
+ * the background rewrapping of the whole history, which is completed right away.
+ * <p>
+ * History lines are rewrapped by fork/join tasks, the benchmark runs the resize in a pool with
+ * {@link #parallelism} threads, so the scores show how the reflow scales with the number of cores.
+ * The background reflow never runs: the whole history is rewrapped in the pool before the buffer lock is released.
+ * Every invocation switches the width between {@link #COLUMNS} and {@link #NARROW_COLUMNS}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 4)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Thread)
+public class ReflowBenchmark {
+  private static final int COLUMNS = 120;
+  private static final int NARROW_COLUMNS = 80;
+  private static final int ROWS = 40;
+  private static final int HISTORY_LINES_COUNT = 1_000_000;
+  /** Length of a logical line, wrapped into two lines in both widths */
+  private static final int LOGICAL_LINE_LENGTH = 150;
+
+  @Param({"1", "2", "4", "8"})
+  public int parallelism;
+
+  private TerminalTextBuffer myTextBuffer;
+  private JediTerminal myTerminal;
+  private ForkJoinPool myPool;
+  private boolean myNarrow;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    StyleState styleState = new StyleState();
+    myTextBuffer = new TerminalTextBuffer(COLUMNS, ROWS, styleState, HISTORY_LINES_COUNT);
+    myTerminal = new JediTerminal(new NullTerminalDisplay(false), myTextBuffer, styleState);
+    // the history is filled directly, as processing this much output takes longer than the benchmark itself
+    LinesStorage history = myTextBuffer.getHistoryLinesStorage();
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; history.getSize() < HISTORY_LINES_COUNT; i++) {
+      text.setLength(0);
+      text.append(i).append(' ');
+      while (text.length() < LOGICAL_LINE_LENGTH) {
+        text.append("lorem ipsum ");
+      }
+      String line = text.substring(0, LOGICAL_LINE_LENGTH);
+      history.addToBottom(createLine(line.substring(0, COLUMNS), true));
+      history.addToBottom(createLine(line.substring(COLUMNS), false));
+    }
+    myPool = new ForkJoinPool(parallelism);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    myPool.shutdown();
+  }
+
+  @Benchmark
+  public int resize() throws ExecutionException, InterruptedException {
+    myNarrow = !myNarrow;
+    TermSize termSize = new TermSize(myNarrow ? NARROW_COLUMNS : COLUMNS, ROWS);
+    return myPool.submit(() -> {
+      // the lock is held until the reflow is completed, so that the background reflow doesn't take it
+      // in between and rewrap a chunk outside of the pool
+      myTextBuffer.lock();
+      try {
+        myTerminal.resize(termSize, RequestOrigin.User);
+        myTextBuffer.completeHistoryReflow();
+        return myTextBuffer.getHistoryLinesCount();
+      }
+      finally {
+        myTextBuffer.unlock();
+      }
+    }).get();
+  }
+
+  private static @NotNull TerminalLine createLine(@NotNull String text, boolean wrapped) {
+    TerminalLine line = new TerminalLine(new TerminalLine.TextEntry(TextStyle.EMPTY, new CharBuffer(text)));
+    line.setWrapped(wrapped);
+    return line;
+  }
+}
@@ -1,6 +1,7 @@
 package com.jediterm.terminal;
 
 import com.jediterm.terminal.util.CharUtils;
+import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
 
@@ -63,6 +64,20 @@ public class ArrayTerminalDataStream implements TerminalDataStream {
     return nonControlCharacters;
   }
 
+  @Override
+  public int readNonControlCharacters(int maxChars, @NotNull NonControlCharactersConsumer consumer) throws IOException {
+    int length = CharUtils.countNonControlCharacters(maxChars, myBuf, myOffset, myLength);
+    if (length == 0) {
+      return 0;
+    }
+    int consumed = consumer.consume(myBuf, myOffset, length);
+
+    myOffset += consumed;
+    myLength -= consumed;
+
+    return consumed;
+  }
+
   public void pushBackBuffer(final char[] bytes, final int length) throws EOF {
     for (int i = length - 1; i >= 0; i--) {
       pushChar(bytes[i]);
@@ -0,0 +1,74 @@
+package com.jediterm.terminal;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Notifies the emulator thread every time it has processed the whole chunk of output read from the tty
+ * and is about to read the next one, possibly blocking (see {@link TerminalStarter}).
+ * The check happens before every read, so the notification comes even if a chunk ends in the middle of an escape sequence.
+ * <p>
+ * Also counts processed characters, to limit how much output is processed under the buffer lock.
+ */
+final class ChunkAwareDataStream implements TerminalDataStream {
+  private final TerminalDataStream myDelegate;
+  private final Runnable myOnChunkProcessed;
+  private long myReadCharCount;
+
+  ChunkAwareDataStream(@NotNull TerminalDataStream delegate, @NotNull Runnable onChunkProcessed) {
+    myDelegate = delegate;
+    myOnChunkProcessed = onChunkProcessed;
+  }
+
+  long getReadCharCount() {
+    return myReadCharCount;
+  }
+
+  private void beforeRead() {
+    if (myDelegate.isEmpty()) {
+      myOnChunkProcessed.run();
+    }
+  }
+
+  @Override
+  public char getChar() throws IOException {
+    beforeRead();
+    char c = myDelegate.getChar();
+    myReadCharCount++;
+    return c;
+  }
+
+  @Override
+  public void pushChar(char c) throws IOException {
+    myDelegate.pushChar(c);
+    myReadCharCount--;
+  }
+
+  @Override
+  public String readNonControlCharacters(int maxChars) throws IOException {
+    beforeRead();
+    String chars = myDelegate.readNonControlCharacters(maxChars);
+    myReadCharCount += chars.length();
+    return chars;
+  }
+
+  @Override
+  public int readNonControlCharacters(int maxChars, @NotNull NonControlCharactersConsumer consumer) throws IOException {
+    beforeRead();
+    int consumed = myDelegate.readNonControlCharacters(maxChars, consumer);
+    myReadCharCount += consumed;
+    return consumed;
+  }
+
+  @Override
+  public void pushBackBuffer(char[] bytes, int length) throws IOException {
+    myDelegate.pushBackBuffer(bytes, length);
+    myReadCharCount -= length;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return myDelegate.isEmpty();
+  }
+}
@@ -0,0 +1,81 @@
+package com.jediterm.terminal;
+
+import com.jediterm.terminal.model.TerminalTextBuffer;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the text buffer lock on the emulator thread while it processes output, so that terminal operations
+ * don't lock the buffer one by one. The lock is released when the emulator is about to wait for more output
+ * and when the hold exceeds the time or the character budget, letting readers (e.g. painting) in:
+ * the buffer lock is created fair in this mode, so a waiting reader gets it before the emulator takes it again.
+ * <p>
+ * Enabled by the {@link TerminalTextBuffer#CHUNKED_EMULATOR_LOCK_PROPERTY} system property,
+ * the budgets are set by {@code jediterm.emulator.chunked.lock.budget.ms} and {@code jediterm.emulator.chunked.lock.budget.chars}.
+ */
+final class ChunkedEmulatorLock {
+  private static final String TIME_BUDGET_PROPERTY = "jediterm.emulator.chunked.lock.budget.ms";
+  private static final String CHARS_BUDGET_PROPERTY = "jediterm.emulator.chunked.lock.budget.chars";
+
+  private final TerminalTextBuffer myTextBuffer;
+  private final EmulatorLockMetrics myMetrics;
+  private final long myTimeBudgetNanos;
+  private final long myCharsBudget;
+  private boolean myHeld;
+  private long myAcquiredNanos;
+  private long myAcquiredCharCount;
+
+  ChunkedEmulatorLock(@NotNull TerminalTextBuffer textBuffer, @NotNull EmulatorLockMetrics metrics,
+                      long timeBudgetMillis, long charsBudget) {
+    myTextBuffer = textBuffer;
+    myMetrics = metrics;
+    myTimeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(timeBudgetMillis);
+    myCharsBudget = charsBudget;
+  }
+
+  static boolean isEnabled() {
+    return Boolean.getBoolean(TerminalTextBuffer.CHUNKED_EMULATOR_LOCK_PROPERTY);
+  }
+
+  static @NotNull ChunkedEmulatorLock create(@NotNull TerminalTextBuffer textBuffer, @NotNull EmulatorLockMetrics metrics) {
+    return new ChunkedEmulatorLock(textBuffer, metrics,
+                                   Long.getLong(TIME_BUDGET_PROPERTY, 8), Long.getLong(CHARS_BUDGET_PROPERTY, 16 * 1024));
+  }
+
+  boolean isHeld() {
+    return myHeld;
+  }
+
+  /**
+   * Takes the lock unless it is already held.
+   *
+   * @param readCharCount number of characters read by the emulator so far
+   */
+  void acquire(long readCharCount) {
+    if (myHeld) {
+      return;
+    }
+    long startNanos = System.nanoTime();
+    myTextBuffer.lock();
+    myHeld = true;
+    myAcquiredNanos = System.nanoTime();
+    myAcquiredCharCount = readCharCount;
+    myMetrics.lockAcquired(myAcquiredNanos - startNanos);
+  }
+
+  boolean isOverBudget(long readCharCount) {
+    return myHeld && (readCharCount - myAcquiredCharCount >= myCharsBudget ||
+                      System.nanoTime() - myAcquiredNanos >= myTimeBudgetNanos);
+  }
+
+  void release(long readCharCount) {
+    if (!myHeld) {
+      return;
+    }
+    long holdNanos = System.nanoTime() - myAcquiredNanos;
+    myHeld = false;
+    myTextBuffer.unlock();
+    myMetrics.lockReleased(holdNanos, readCharCount - myAcquiredCharCount);
+  }
+}
@@ -31,13 +31,24 @@ public abstract class DataStreamIteratingEmulator implements Emulator {
   @Override
   public void next() throws IOException {
     try {
-      char b = myDataStream.getChar();
-      processChar(b, myTerminal);
+      if (processNonControlCharacters(myTerminal) == 0) {
+        char b = myDataStream.getChar();
+        processChar(b, myTerminal);
+      }
     }
     catch (TerminalDataStream.EOF e) {
       myEof = true;
     }
   }
 
+  /**
+   * Bulk path for printable text: processes a run of non-control characters directly from the data stream.
+   *
+   * @return number of processed characters, 0 means the next character should go through {@link #processChar}
+   */
+  protected int processNonControlCharacters(Terminal terminal) throws IOException {
+    return 0;
+  }
+
   protected abstract void processChar(char ch, Terminal terminal) throws IOException;
 }
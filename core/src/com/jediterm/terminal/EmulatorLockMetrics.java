@@ -0,0 +1,72 @@
+package com.jediterm.terminal;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statistics of the text buffer lock held by the emulator thread while it processes chunks of output,
+ * see {@link TerminalStarter#getEmulatorLockMetrics()}.
+ * Wait time is how long the emulator waited for readers (e.g. painting) to release the lock,
+ * hold time is how long readers could be blocked by the emulator.
+ * <p>
+ * Updated by the emulator thread, can be read from any thread.
+ */
+public final class EmulatorLockMetrics {
+  private volatile long myAcquireCount;
+  private volatile long myTotalWaitNanos;
+  private volatile long myMaxWaitNanos;
+  private volatile long myTotalHoldNanos;
+  private volatile long myMaxHoldNanos;
+  private volatile long myProcessedChars;
+
+  void lockAcquired(long waitNanos) {
+    myAcquireCount++;
+    myTotalWaitNanos += waitNanos;
+    myMaxWaitNanos = Math.max(myMaxWaitNanos, waitNanos);
+  }
+
+  void lockReleased(long holdNanos, long processedChars) {
+    myTotalHoldNanos += holdNanos;
+    myMaxHoldNanos = Math.max(myMaxHoldNanos, holdNanos);
+    myProcessedChars += processedChars;
+  }
+
+  public long getAcquireCount() {
+    return myAcquireCount;
+  }
+
+  public long getTotalWaitNanos() {
+    return myTotalWaitNanos;
+  }
+
+  public long getMaxWaitNanos() {
+    return myMaxWaitNanos;
+  }
+
+  public long getTotalHoldNanos() {
+    return myTotalHoldNanos;
+  }
+
+  public long getMaxHoldNanos() {
+    return myMaxHoldNanos;
+  }
+
+  /**
+   * @return number of characters processed under the lock
+   */
+  public long getProcessedChars() {
+    return myProcessedChars;
+  }
+
+  @Override
+  public String toString() {
+    long acquireCount = myAcquireCount;
+    return String.format("%d acquisitions, %d chars, wait avg %d us max %d us, hold avg %d us max %d us",
+                         acquireCount, myProcessedChars,
+                         toMicros(acquireCount == 0 ? 0 : myTotalWaitNanos / acquireCount), toMicros(myMaxWaitNanos),
+                         toMicros(acquireCount == 0 ? 0 : myTotalHoldNanos / acquireCount), toMicros(myMaxHoldNanos));
+  }
+
+  private static long toMicros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+}
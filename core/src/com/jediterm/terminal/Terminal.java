@@ -44,6 +44,13 @@ public interface Terminal {
 
   void writeCharacters(String string);
 
+  /**
+   * Same as {@link #writeCharacters(String)}, but takes a range of a buffer that is valid only during the call.
+   */
+  default void writeCharacters(char @NotNull [] chars, int offset, int length) {
+    writeCharacters(new String(chars, offset, length));
+  }
+
   int distanceToLineEnd();
 
   void reverseIndex();
@@ -66,6 +66,13 @@ public class TerminalColor {
     return myColor != null ? myColor : Objects.requireNonNull(myColorSupplier).get();
   }
 
+  /**
+   * @return true if the color is provided by a supplier and can change over time
+   */
+  public boolean isSupplied() {
+    return myColorSupplier != null;
+  }
+
   public int getColorIndex() {
     return myColorIndex;
   }
@@ -75,7 +82,9 @@ public class TerminalColor {
     if (this == o) return true;
     if (o == null || getClass() != o.getClass()) return false;
     TerminalColor that = (TerminalColor) o;
-    return myColorIndex == that.myColorIndex && Objects.equals(myColor, that.myColor);
+    return myColorIndex == that.myColorIndex &&
+      Objects.equals(myColor, that.myColor) &&
+      Objects.equals(myColorSupplier, that.myColorSupplier);
   }
 
   @Override
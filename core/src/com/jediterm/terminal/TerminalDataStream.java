@@ -1,11 +1,15 @@
 package com.jediterm.terminal;
 
+import org.jetbrains.annotations.NotNull;
+
 import java.io.IOException;
 
 /**
  * Represents data communication interface for terminal.
  * It allows to {@link #getChar()} by one and {@link #pushChar(char)} back as well as requesting a chunk of plain ASCII
  * characters ({@link #readNonControlCharacters(int)} - for faster processing from buffer in the size <=<b>maxChars</b>).
+ * Buffered implementations can also hand out such chunks without copying via
+ * {@link #readNonControlCharacters(int, NonControlCharactersConsumer)}.
  *
  *
  * @author traff
@@ -17,10 +21,36 @@ public interface TerminalDataStream {
 
   String readNonControlCharacters(int maxChars) throws IOException;
 
+  /**
+   * Passes a run of at most <b>maxChars</b> non-control characters to <b>consumer</b> and skips the characters
+   * consumed by it, the rest remains in the stream.
+   * Buffered implementations pass a range of their backing array, so the run is neither copied nor pushed back.
+   *
+   * @return number of consumed characters, 0 if the stream doesn't start with a non-control character
+   */
+  default int readNonControlCharacters(int maxChars, @NotNull NonControlCharactersConsumer consumer) throws IOException {
+    char[] chars = readNonControlCharacters(maxChars).toCharArray();
+    int consumed = chars.length > 0 ? consumer.consume(chars, 0, chars.length) : 0;
+    if (consumed < chars.length) {
+      char[] rest = new char[chars.length - consumed];
+      System.arraycopy(chars, consumed, rest, 0, rest.length);
+      pushBackBuffer(rest, rest.length);
+    }
+    return consumed;
+  }
+
   void pushBackBuffer(char[] bytes, int length) throws IOException;
 
   boolean isEmpty();
 
+  interface NonControlCharactersConsumer {
+    /**
+     * @param buf shared buffer, it is valid only during the call and must not be modified or retained
+     * @return number of consumed characters from <b>offset</b>, between 0 and <b>length</b>
+     */
+    int consume(char @NotNull [] buf, int offset, int length) throws IOException;
+  }
+
   class EOF extends IOException {
     public EOF() {
       super("EOF: There is no more data or connection is lost");
@@ -6,7 +6,9 @@ import com.jediterm.core.util.TermSize;
 import com.jediterm.terminal.emulator.Emulator;
 import com.jediterm.terminal.emulator.JediEmulator;
 import com.jediterm.terminal.model.JediTerminal;
+import com.jediterm.terminal.model.TerminalTextBuffer;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,6 +29,9 @@ public class TerminalStarter implements TerminalOutputStream {
   private static final Logger LOG = LoggerFactory.getLogger(TerminalStarter.class);
 
   private final Emulator myEmulator;
+  private final ChunkAwareDataStream myDataStream;
+  private final EmulatorLockMetrics myLockMetrics = new EmulatorLockMetrics();
+  private final @Nullable ChunkedEmulatorLock myChunkedLock;
 
   private final JediTerminal myTerminal;
 
@@ -46,7 +51,11 @@ public class TerminalStarter implements TerminalOutputStream {
     myTtyConnector = ttyConnector;
     myTerminal = terminal;
     myTerminal.setTerminalOutput(this);
-    myEmulator = createEmulator(dataStream, terminal);
+    myDataStream = new ChunkAwareDataStream(dataStream, this::onChunkProcessed);
+    myEmulator = createEmulator(myDataStream, terminal);
+    myChunkedLock = ChunkedEmulatorLock.isEnabled()
+                    ? ChunkedEmulatorLock.create(terminal.getTerminalTextBuffer(), myLockMetrics)
+                    : null;
     myTypeAheadManager = typeAheadManager;
     mySingleThreadScheduledExecutor = executorServiceManager.getSingleThreadScheduledExecutor();
   }
@@ -74,9 +83,18 @@ public class TerminalStarter implements TerminalOutputStream {
   }
 
   private void doStartEmulator() {
+    // changes are delivered to listeners once per chunk of output, see onChunkProcessed
+    TerminalTextBuffer textBuffer = myTerminal.getTerminalTextBuffer();
+    textBuffer.beginChangesBatch();
     try {
       while ((!Thread.currentThread().isInterrupted() && !myStopped) && myEmulator.hasNext()) {
+        if (myChunkedLock != null) {
+          myChunkedLock.acquire(myDataStream.getReadCharCount());
+        }
         myEmulator.next();
+        if (myChunkedLock != null && myChunkedLock.isOverBudget(myDataStream.getReadCharCount())) {
+          myChunkedLock.release(myDataStream.getReadCharCount());
+        }
       }
     }
     catch (InterruptedIOException e) {
@@ -88,10 +106,42 @@ public class TerminalStarter implements TerminalOutputStream {
       }
     }
     finally {
+      if (myChunkedLock != null) {
+        myChunkedLock.release(myDataStream.getReadCharCount());
+      }
+      textBuffer.endChangesBatch();
       myTerminal.disconnected();
     }
   }
 
+  /**
+   * Called on the emulator thread when the chunk of output read from the tty is processed, before reading the next one.
+   */
+  private void onChunkProcessed() {
+    myTerminal.getTerminalTextBuffer().flushChangesBatch();
+    // keep the lock while output is coming, but never wait for the tty holding it
+    if (myChunkedLock != null && myChunkedLock.isHeld() && !isTtyReady()) {
+      myChunkedLock.release(myDataStream.getReadCharCount());
+    }
+  }
+
+  private boolean isTtyReady() {
+    try {
+      return myTtyConnector.ready();
+    }
+    catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return statistics of the text buffer lock held by the emulator thread,
+   * collected when the lock is taken per chunk of output (the {@code jediterm.emulator.chunked.lock} system property)
+   */
+  public @NotNull EmulatorLockMetrics getEmulatorLockMetrics() {
+    return myLockMetrics;
+  }
+
   public void requestEmulatorStop() {
     myStopped = true;
   }
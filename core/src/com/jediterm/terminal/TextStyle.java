@@ -7,26 +7,33 @@ import java.util.EnumSet;
 import java.util.Objects;
 
 public class TextStyle {
-  private static final EnumSet<Option> NO_OPTIONS = EnumSet.noneOf(Option.class);
-
   public static final TextStyle EMPTY = new TextStyle();
 
   private final TerminalColor myForeground;
   private final TerminalColor myBackground;
-  private final EnumSet<Option> myOptions;
+  /**
+   * Options packed as a bitmask of {@link Option#getMask()}.
+   */
+  private final int myOptions;
+  private final int myHashCode;
 
   public TextStyle() {
-    this(null, null, NO_OPTIONS);
+    this(null, null, 0);
   }
 
   public TextStyle(@Nullable TerminalColor foreground, @Nullable TerminalColor background) {
-    this(foreground, background, NO_OPTIONS);
+    this(foreground, background, 0);
   }
 
   public TextStyle(@Nullable TerminalColor foreground, @Nullable TerminalColor background, @NotNull EnumSet<Option> options) {
+    this(foreground, background, Option.toMask(options));
+  }
+
+  private TextStyle(@Nullable TerminalColor foreground, @Nullable TerminalColor background, int options) {
     myForeground = foreground;
     myBackground = background;
-    myOptions = options.clone();
+    myOptions = options;
+    myHashCode = Objects.hash(myForeground, myBackground, myOptions);
   }
 
   @Nullable
@@ -44,7 +51,32 @@ public class TextStyle {
   }
 
   public boolean hasOption(final Option option) {
-    return myOptions.contains(option);
+    return (myOptions & option.getMask()) != 0;
+  }
+
+  /**
+   * @param mask bitwise OR of {@link Option#getMask()} values
+   * @return true if the style has at least one of the given options
+   */
+  public boolean hasAnyOption(int mask) {
+    return (myOptions & mask) != 0;
+  }
+
+  /**
+   * @return options as a bitwise OR of {@link Option#getMask()} values
+   */
+  public int getOptionsMask() {
+    return myOptions;
+  }
+
+  public @NotNull EnumSet<Option> getOptions() {
+    EnumSet<Option> options = EnumSet.noneOf(Option.class);
+    for (Option option : Option.values()) {
+      if (hasOption(option)) {
+        options.add(option);
+      }
+    }
+    return options;
   }
 
   @Override
@@ -52,14 +84,15 @@ public class TextStyle {
     if (this == o) return true;
     if (o == null || getClass() != o.getClass()) return false;
     TextStyle textStyle = (TextStyle) o;
-    return Objects.equals(myForeground, textStyle.myForeground) &&
+    return myHashCode == textStyle.myHashCode &&
+      Objects.equals(myForeground, textStyle.myForeground) &&
       Objects.equals(myBackground, textStyle.myBackground) &&
-      myOptions.equals(textStyle.myOptions);
+      myOptions == textStyle.myOptions;
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(myForeground, myBackground, myOptions);
+    return myHashCode;
   }
 
   @NotNull
@@ -77,31 +110,40 @@ public class TextStyle {
     UNDERLINED,
     HIDDEN;
 
-    private void set(@NotNull EnumSet<Option> options, boolean val) {
-      if (val) {
-        options.add(this);
-      }
-      else {
-        options.remove(this);
+    private final int myMask = 1 << ordinal();
+
+    public int getMask() {
+      return myMask;
+    }
+
+    private int set(int options, boolean val) {
+      return val ? options | myMask : options & ~myMask;
+    }
+
+    private static int toMask(@NotNull EnumSet<Option> options) {
+      int mask = 0;
+      for (Option option : options) {
+        mask |= option.myMask;
       }
+      return mask;
     }
   }
 
   public static class Builder {
     private TerminalColor myForeground;
     private TerminalColor myBackground;
-    private final EnumSet<Option> myOptions;
+    private int myOptions;
 
     public Builder(@NotNull TextStyle textStyle) {
       myForeground = textStyle.myForeground;
       myBackground = textStyle.myBackground;
-      myOptions = textStyle.myOptions.clone();
+      myOptions = textStyle.myOptions;
     }
 
     public Builder() {
       myForeground = null;
       myBackground = null;
-      myOptions = EnumSet.noneOf(Option.class);
+      myOptions = 0;
     }
 
     @NotNull
@@ -118,7 +160,7 @@ public class TextStyle {
 
     @NotNull
     public Builder setOption(@NotNull Option option, boolean val) {
-      option.set(myOptions, val);
+      myOptions = option.set(myOptions, val);
       return this;
     }
 
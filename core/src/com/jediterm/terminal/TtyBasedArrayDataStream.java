@@ -1,6 +1,7 @@
 package com.jediterm.terminal;
 
 import com.jediterm.terminal.util.CharUtils;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
@@ -53,6 +54,15 @@ public class TtyBasedArrayDataStream extends ArrayTerminalDataStream {
     return super.readNonControlCharacters(maxChars);
   }
 
+  @Override
+  public int readNonControlCharacters(int maxChars, @NotNull NonControlCharactersConsumer consumer) throws IOException {
+    if (myLength == 0) {
+      fillBuf();
+    }
+
+    return super.readNonControlCharacters(maxChars, consumer);
+  }
+
   @Override
   public String toString() {
     return CharUtils.toHumanReadableText(new String(myBuf, myOffset, myLength));
@@ -30,10 +30,46 @@ public class JediEmulator extends DataStreamIteratingEmulator {
   private static final int logThrottlerRatio = 100;
   private static int logThrottlerLimit = logThrottlerRatio;
 
+  private final TerminalDataStream.NonControlCharactersConsumer myNonControlCharactersWriter = this::writeNonControlCharacters;
+
   public JediEmulator(TerminalDataStream dataStream, Terminal terminal) {
     super(dataStream, terminal);
   }
 
+  @Override
+  protected int processNonControlCharacters(Terminal terminal) throws IOException {
+    return myDataStream.readNonControlCharacters(terminal.distanceToLineEnd(), myNonControlCharactersWriter);
+  }
+
+  /**
+   * Writes the longest prefix of the run that fits into the rest of the line, straight from the stream buffer.
+   * Rare cases (C1 OSC at the start, a double-width char not fitting into the last column) are left to
+   * {@link #processChar}.
+   */
+  private int writeNonControlCharacters(char[] buf, int offset, int length) {
+    if (buf[offset] == SystemCommandSequence.OSC) {
+      return 0;
+    }
+    int maxChars = myTerminal.distanceToLineEnd();
+    boolean ambiguousAreDWC = myTerminal.ambiguousCharsAreDoubleWidth();
+    int visualLength = 0;
+    int end = 0;
+    while (end < length) {
+      visualLength += CharUtils.isDoubleWidthCharacter(buf[offset + end], ambiguousAreDWC) ? 2 : 1;
+      if (visualLength > maxChars) {
+        break;
+      }
+      end++;
+    }
+    if (end == 0 || (end == maxChars - 1 && end < length
+                     && CharUtils.isDoubleWidthCharacter(buf[offset + end], ambiguousAreDWC))) {
+      // the next char is double-width and doesn't fit: let processChar pad the line with a space to wrap it
+      return 0;
+    }
+    myTerminal.writeCharacters(buf, offset, end);
+    return end;
+  }
+
   @Override
   public void processChar(char ch, Terminal terminal) throws IOException {
     switch (ch) {
@@ -79,6 +79,14 @@ public class GraphicSetState {
     return CharacterSets.getChar(ch, getGL(), getGR());
   }
 
+  /**
+   * @return true if {@link #map} leaves printable ASCII characters as is: GL is designated as US-ASCII
+   * and there is no pending single shift
+   */
+  public boolean isAsciiMappedToItself() {
+    return myGlOverride == null && myGL.getDesignation() == CharacterSet.ASCII;
+  }
+
   /**
    * Overrides the GL graphic set for the next written character.
    *
@@ -6,9 +6,27 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
 
+/**
+ * Rewraps lines to the new width. Only the bottom of the history is rewrapped synchronously along with the screen,
+ * the lines above it are left in the previous width (see {@link #getStaleHistoryLineCount()}) to be rewrapped
+ * in the background by {@link HistoryReflow}, so that resizing a terminal with a long history doesn't block it.
+ */
 class ChangeWidthOperation {
   private static final Logger LOG = LoggerFactory.getLogger(TerminalTextBuffer.class);
+  /** Min count of history lines rewrapped synchronously, the history is rewrapped in the background only if it's longer */
+  private static final int SYNC_REFLOW_HISTORY_LINES = 1000;
+  /** Max count of lines rewrapped by a single task of {@link #rewrapInParallel} */
+  private static final int PARALLEL_REWRAP_TASK_LINES = 4096;
+  /**
+   * Tasks of {@link #rewrapInParallel} run under the buffer lock, so they don't use the common pool:
+   * tasks of other code waiting for the lock there would starve them. Idle threads of the pool are terminated.
+   */
+  private static final ForkJoinPool REWRAP_POOL = createRewrapPool();
 
   private final TerminalTextBuffer myTextBuffer;
   private final int myNewWidth;
@@ -17,6 +35,7 @@ class ChangeWidthOperation {
   private final List<TerminalLine> myAllLines = new ArrayList<>();
   private TerminalLine myCurrentLine;
   private int myCurrentLineLength;
+  private int myStaleHistoryLineCount;
 
   ChangeWidthOperation(@NotNull TerminalTextBuffer textBuffer,
                        int newWidth, int newHeight) { 
@@ -47,9 +66,110 @@ class ChangeWidthOperation {
     return original;
   }
 
+  /**
+   * @return count of lines at the top of the history which haven't been rewrapped
+   */
+  int getStaleHistoryLineCount() {
+    return myStaleHistoryLineCount;
+  }
+
+  /**
+   * Rewraps the lines in the new width, e.g. history lines, the lines must start with a logical line.
+   */
+  static @NotNull List<TerminalLine> rewrap(@NotNull TerminalTextBuffer textBuffer, @NotNull List<TerminalLine> lines, int newWidth) {
+    ChangeWidthOperation operation = new ChangeWidthOperation(textBuffer, newWidth, textBuffer.getHeight());
+    for (TerminalLine line : lines) {
+      operation.addLine(line);
+    }
+    return operation.myAllLines;
+  }
+
+  /**
+   * Same as {@link #rewrap}, but the lines are partitioned at logical line boundaries and the partitions
+   * are rewrapped by fork/join tasks, in a dedicated pool unless called from a fork/join task, i.e. in the caller's pool.
+   * Logical lines are rewrapped independently, so the results are just concatenated.
+   * The lines must not be modified until it returns.
+   */
+  static @NotNull List<TerminalLine> rewrapInParallel(@NotNull TerminalTextBuffer textBuffer, @NotNull List<TerminalLine> lines, int newWidth) {
+    if (lines.size() <= PARALLEL_REWRAP_TASK_LINES) {
+      return rewrap(textBuffer, lines, newWidth);
+    }
+    RewrapTask task = new RewrapTask(textBuffer, lines, newWidth);
+    return ForkJoinTask.inForkJoinPool() ? task.invoke() : REWRAP_POOL.invoke(task);
+  }
+
+  /**
+   * @return count of threads rewrapping lines in {@link #rewrapInParallel}
+   */
+  static int getRewrapParallelism() {
+    return REWRAP_POOL.getParallelism();
+  }
+
+  private static @NotNull ForkJoinPool createRewrapPool() {
+    return new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+      ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+      thread.setName("JediTerm history rewrap " + thread.getPoolIndex());
+      return thread;
+    }, null, false);
+  }
+
   void run() {
     LinesStorage historyLinesStorage = myTextBuffer.getHistoryLinesStorageOrBackup$core();
-    for (int i = 0; i < historyLinesStorage.getSize(); i++) {
+    int historySize = historyLinesStorage.getSize();
+    int historyStart = historyLinesStorage.findLogicalLineStart(Math.max(0, historySize - SYNC_REFLOW_HISTORY_LINES));
+    int screenStartInd = reflow(historyLinesStorage, historyStart);
+    // the screen might need more history lines to be filled, e.g. if the terminal became wider
+    while (historyStart > 0 && myAllLines.size() < myNewHeight) {
+      historyStart = historyLinesStorage.findLogicalLineStart(Math.max(0, historyStart - myNewHeight));
+      myAllLines.clear();
+      myCurrentLine = null;
+      myCurrentLineLength = 0;
+      myTrackingPoints.replaceAll((point, result) -> null);
+      screenStartInd = reflow(historyLinesStorage, historyStart);
+    }
+
+    int emptyBottomLineCount = getEmptyBottomLineCount();
+    int bottomMostPointY = 0;
+    for (Map.Entry<TrackingPoint, Point> entry : myTrackingPoints.entrySet()) {
+      if (entry.getKey().getForceVisible()) {
+        Point resultPoint = Objects.requireNonNull(entry.getValue());
+        bottomMostPointY = Math.max(bottomMostPointY, resultPoint.y);
+      }
+    }
+
+    screenStartInd = Math.max(screenStartInd, myAllLines.size() - Math.min(myAllLines.size(), myNewHeight) - emptyBottomLineCount);
+    screenStartInd = Math.min(screenStartInd, myAllLines.size() - Math.min(myAllLines.size(), myNewHeight));
+    screenStartInd = Math.max(screenStartInd, bottomMostPointY - myNewHeight + 1);
+    LinesStorageKt.removeFromBottom(historyLinesStorage, historySize - historyStart);
+    LinesStorageKt.addAllToBottom(historyLinesStorage, myAllLines.subList(0, screenStartInd));
+    // the top lines are discarded if the rewrapped history exceeds the capacity
+    int discardedLineCount = historyStart + screenStartInd - historyLinesStorage.getSize();
+    myStaleHistoryLineCount = Math.max(0, historyStart - discardedLineCount);
+    LinesStorage screenLinesStorage = myTextBuffer.getScreenLinesStorageOrBackup$core();
+    screenLinesStorage.clear();
+    LinesStorageKt.addAllToBottom(screenLinesStorage, myAllLines.subList(screenStartInd, Math.min(screenStartInd + myNewHeight, myAllLines.size())));
+    for (Map.Entry<TrackingPoint, Point> entry : myTrackingPoints.entrySet()) {
+      Point p = entry.getValue();
+      if (p != null) {
+        p.y -= screenStartInd;
+      } else {
+        TrackingPoint key = entry.getKey();
+        p = new Point(key.getX(), key.getY());
+        entry.setValue(p);
+      }
+      p.x = Math.min(myNewWidth, Math.max(0, p.x));
+      p.y = Math.min(myNewHeight, Math.max(0, p.y));
+    }
+  }
+
+  /**
+   * Rewraps history lines starting from {@code historyStart} and the screen lines to {@link #myAllLines}
+   * and maps the tracked points, the lines above {@code historyStart} are kept as is.
+   *
+   * @return index of the first screen line in {@link #myAllLines}
+   */
+  private int reflow(@NotNull LinesStorage historyLinesStorage, int historyStart) {
+    for (int i = historyStart; i < historyLinesStorage.getSize(); i++) {
       TerminalLine line = historyLinesStorage.get(i);
       addLine(line);
     }
@@ -85,35 +205,7 @@ class ChangeWidthOperation {
         myTrackingPoints.put(point, new Point(newX, newY));
       }
     }
-    
-    int emptyBottomLineCount = getEmptyBottomLineCount();
-    int bottomMostPointY = 0;
-    for (Map.Entry<TrackingPoint, Point> entry : myTrackingPoints.entrySet()) {
-      if (entry.getKey().getForceVisible()) {
-        Point resultPoint = Objects.requireNonNull(entry.getValue());
-        bottomMostPointY = Math.max(bottomMostPointY, resultPoint.y);
-      }
-    }
-
-    screenStartInd = Math.max(screenStartInd, myAllLines.size() - Math.min(myAllLines.size(), myNewHeight) - emptyBottomLineCount);
-    screenStartInd = Math.min(screenStartInd, myAllLines.size() - Math.min(myAllLines.size(), myNewHeight));
-    screenStartInd = Math.max(screenStartInd, bottomMostPointY - myNewHeight + 1);
-    historyLinesStorage.clear();
-    LinesStorageKt.addAllToBottom(historyLinesStorage, myAllLines.subList(0, screenStartInd));
-    screenLinesStorage.clear();
-    LinesStorageKt.addAllToBottom(screenLinesStorage, myAllLines.subList(screenStartInd, Math.min(screenStartInd + myNewHeight, myAllLines.size())));
-    for (Map.Entry<TrackingPoint, Point> entry : myTrackingPoints.entrySet()) {
-      Point p = entry.getValue();
-      if (p != null) {
-        p.y -= screenStartInd;
-      } else {
-        TrackingPoint key = entry.getKey();
-        p = new Point(key.getX(), key.getY());
-        entry.setValue(p);
-      }
-      p.x = Math.min(myNewWidth, Math.max(0, p.x));
-      p.y = Math.min(myNewHeight, Math.max(0, p.y));
-    }
+    return screenStartInd;
   }
 
   private int getEmptyBottomLineCount() {
@@ -184,6 +276,36 @@ class ChangeWidthOperation {
     return new TerminalLine.TextEntry(entry.getStyle(), entry.getText().subBuffer(startInd, count));
   }
 
+  @SuppressWarnings("serial") // never serialized
+  private static final class RewrapTask extends RecursiveTask<List<TerminalLine>> {
+    private final TerminalTextBuffer myTextBuffer;
+    private final List<TerminalLine> myLines;
+    private final int myNewWidth;
+
+    RewrapTask(@NotNull TerminalTextBuffer textBuffer, @NotNull List<TerminalLine> lines, int newWidth) {
+      myTextBuffer = textBuffer;
+      myLines = lines;
+      myNewWidth = newWidth;
+    }
+
+    @Override
+    protected List<TerminalLine> compute() {
+      int middle = myLines.size() / 2;
+      while (middle < myLines.size() && myLines.get(middle - 1).isWrapped()) {
+        middle++;
+      }
+      if (myLines.size() <= PARALLEL_REWRAP_TASK_LINES || middle == myLines.size()) {
+        return rewrap(myTextBuffer, myLines, myNewWidth);
+      }
+      RewrapTask top = new RewrapTask(myTextBuffer, myLines.subList(0, middle), myNewWidth);
+      top.fork();
+      List<TerminalLine> bottomLines = new RewrapTask(myTextBuffer, myLines.subList(middle, myLines.size()), myNewWidth).compute();
+      List<TerminalLine> result = top.join();
+      result.addAll(bottomLines);
+      return result;
+    }
+  }
+
   public static class TrackingPoint {
     private final int myX;
     private final int myY;
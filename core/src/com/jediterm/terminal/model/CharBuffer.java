@@ -89,7 +89,7 @@ public class CharBuffer implements Iterable<Character>, CharSequence {
   }
 
   public boolean isNul() {
-    return myLength > 0 && myBuf[0] == CharUtils.NUL_CHAR;
+    return myLength > 0 && myBuf[myStart] == CharUtils.NUL_CHAR;
   }
 
   public void unNullify() {
@@ -0,0 +1,520 @@
+package com.jediterm.terminal.model
+
+import java.nio.ByteBuffer
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+/**
+ * Keeps the most recent lines as [TerminalLine] objects (the hot tier) and packs older lines into compressed blocks
+ * (the cold tier). A block holds up to [blockSize] lines serialized with run-length encoded styles and deflated together,
+ * it is decompressed transparently when one of its lines is accessed. A few decompressed blocks are cached,
+ * lines of a cached block modified after decompression are compressed again when the block is evicted.
+ * Compressed lines can't be modified anymore (see [TerminalLine.isEvicted]), a new object is decompressed instead.
+ *
+ * Lines which cannot be serialized (e.g. with hyperlink styles) are kept in their block as objects.
+ * Highlightings and type-ahead predictions of a line are not preserved once it is compressed.
+ *
+ * Reading a cold line decompresses its block and may compress an evicted one, so the operations are synchronized:
+ * readers holding the shared lock of the text buffer (painting, search) access the storage concurrently.
+ *
+ * @param maxCapacity maximum number of stored lines; -1 means no restriction
+ * @param styleRegistry provides ids of styles stored in the serialized lines
+ * @param hotLinesCount minimum number of bottom lines which are never compressed
+ */
+internal class CompressedLinesStorage(
+  private val maxCapacity: Int,
+  private val styleRegistry: TextStyleRegistry,
+  private val hotLinesCount: Int = DEFAULT_HOT_LINES_COUNT,
+  private val blockSize: Int = DEFAULT_BLOCK_SIZE,
+  private val decodedBlocksCount: Int = DEFAULT_DECODED_BLOCKS_COUNT
+) : LinesStorage {
+
+  private val isCapacityLimited: Boolean = maxCapacity >= 0
+
+  /**
+   * Cold tier from top to bottom. Blocks occupy consecutive ranges of slots,
+   * the slots of the first block before [topSlot] are removed.
+   */
+  private val blocks: ArrayDeque<Block> = ArrayDeque()
+  private var topSlot: Long = 0
+
+  /** Sequence number of the top line, see [TerminalLine.mySequence] */
+  private var topSequence: Long = 0
+
+  private val hotLines: ArrayDeque<TerminalLine> = ArrayDeque()
+
+  private val wrappedLines: WrappedLinesIndex = WrappedLinesIndex()
+
+  private val decodedBlocks = object : LinkedHashMap<Block, Array<TerminalLine?>>(16, 0.75f, true) {
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Block, Array<TerminalLine?>>): Boolean {
+      if (size > decodedBlocksCount) {
+        eldest.key.encodeIfChanged(eldest.value)
+        eldest.key.markEvicted(eldest.value)
+        return true
+      }
+      return false
+    }
+  }
+
+  private val deflater: Deflater = Deflater(Deflater.BEST_SPEED)
+  private val inflater: Inflater = Inflater()
+  private var rawBuffer: ByteBuffer = ByteBuffer.allocate(0)
+  private var compressedBuffer: ByteArray = ByteArray(0)
+
+  private val coldSize: Int
+    get() = if (blocks.isEmpty()) 0 else (blocks.last().end - topSlot).toInt()
+
+  override val size: Int
+    @Synchronized get() = coldSize + hotLines.size
+
+  /** O(1) for hot lines, O(log(blocks count)) for cached lines, otherwise O(block size) */
+  @Synchronized
+  override fun get(index: Int): TerminalLine {
+    if (index < 0) {
+      throw IndexOutOfBoundsException("Negative index: $index")
+    }
+
+    if (index >= size) {
+      repeat(index - size + 1) {
+        addToBottom(TerminalLine.createEmpty())
+      }
+    }
+
+    val coldSize = coldSize
+    if (index >= coldSize) {
+      return hotLines[index - coldSize]
+    }
+    val slot = topSlot + index
+    val blockIndex = findBlock(slot)
+    return decoded(blockIndex)[(slot - blocks[blockIndex].start).toInt()]!!
+  }
+
+  /** O(log(blocks count)), only hot, cached and not serialized lines can be found */
+  @Synchronized
+  override fun indexOf(line: TerminalLine): Int {
+    val index = line.mySequence - topSequence
+    if (index < 0 || index >= size) {
+      return -1
+    }
+    val coldSize = coldSize
+    val storedLine = if (index >= coldSize) {
+      hotLines[(index - coldSize).toInt()]
+    }
+    else {
+      val slot = topSlot + index
+      val block = blocks[findBlock(slot)]
+      val offset = (slot - block.start).toInt()
+      decodedBlocks[block]?.get(offset) ?: block.getHeapLine(offset)
+    }
+    return if (storedLine === line) index.toInt() else -1
+  }
+
+  @Synchronized
+  override fun addToTop(line: TerminalLine) {
+    if (isCapacityLimited && size == maxCapacity) {
+      return
+    }
+    line.mySequence = --topSequence
+    wrappedLines.addFirst(line.isWrapped)
+    if (blocks.isEmpty()) {
+      hotLines.addFirst(line)
+      return
+    }
+    if (topSlot == blocks.first().start) {
+      val lines = arrayOfNulls<TerminalLine>(blockSize)
+      val block = Block(topSlot - blockSize, lines)
+      blocks.addFirst(block)
+      decodedBlocks[block] = lines
+    }
+    val block = blocks.first()
+    topSlot--
+    decoded(0)[(topSlot - block.start).toInt()] = line
+    block.isModified = true
+  }
+
+  @Synchronized
+  override fun addToBottom(line: TerminalLine) {
+    line.mySequence = topSequence + size
+    hotLines.addLast(line)
+    wrappedLines.addLast(line.isWrapped)
+    if (isCapacityLimited && size > maxCapacity) {
+      dropTop()
+    }
+    if (hotLines.size >= hotLinesCount + blockSize) {
+      compressTopHotLines()
+    }
+  }
+
+  @Synchronized
+  override fun removeFromTop(): TerminalLine {
+    if (size == 0) {
+      throw NoSuchElementException("Storage is empty")
+    }
+    if (blocks.isEmpty()) {
+      topSequence++
+      wrappedLines.removeFirst()
+      return hotLines.removeFirst()
+    }
+    val line = get(0)
+    dropTop()
+    return line
+  }
+
+  @Synchronized
+  override fun removeFromBottom(): TerminalLine {
+    if (size == 0) {
+      throw NoSuchElementException("Storage is empty")
+    }
+    if (hotLines.isEmpty()) {
+      decompressBottomBlock()
+    }
+    wrappedLines.removeLast()
+    return hotLines.removeLast()
+  }
+
+  @Synchronized
+  override fun clear() {
+    blocks.clear()
+    decodedBlocks.clear()
+    hotLines.clear()
+    wrappedLines.clear()
+    topSlot = 0
+  }
+
+  /**
+   * Decompresses only the blocks at the ends of the range, the blocks on the shorter side of the range are moved
+   * (only their positions change, see [Block.start]).
+   */
+  @Synchronized
+  override fun replace(index: Int, count: Int, lines: List<TerminalLine>) {
+    wrappedLines.replace(index, count, BooleanArray(lines.size) { lines[it].isWrapped })
+    if (index + count > coldSize || index == coldSize) {
+      while (coldSize > index) {
+        decompressBottomBlock()
+      }
+      replaceHotLines(index - coldSize, count, lines)
+    }
+    else {
+      replaceColdLines(index, count, lines)
+    }
+    for ((i, line) in lines.withIndex()) {
+      line.mySequence = topSequence + index + i
+    }
+    while (isCapacityLimited && size > maxCapacity) {
+      dropTop()
+    }
+  }
+
+  /** O(1) for hot and cached lines, otherwise O(block size) */
+  @Synchronized
+  override fun setLineWrapped(index: Int, isWrapped: Boolean) {
+    get(index).isWrapped = isWrapped
+    wrappedLines[index] = isWrapped
+  }
+
+  /** Doesn't decompress lines */
+  @Synchronized
+  override fun findLogicalLineStart(index: Int): Int = wrappedLines.findLogicalLineStart(index)
+
+  /** Doesn't decompress lines */
+  @Synchronized
+  override fun findLogicalLineEnd(index: Int): Int = wrappedLines.findLogicalLineEnd(index)
+
+  override fun iterator(): Iterator<TerminalLine> = object : Iterator<TerminalLine> {
+    private var index = 0
+
+    override fun hasNext(): Boolean = index < size
+
+    override fun next(): TerminalLine {
+      if (index >= size) {
+        throw NoSuchElementException()
+      }
+      return get(index++)
+    }
+  }
+
+  /**
+   * Iterates over the lines currently materialized as objects, without decompressing other lines.
+   */
+  @Synchronized
+  fun forEachLoadedLine(action: (TerminalLine) -> Unit) {
+    hotLines.forEach(action)
+    for ((block, lines) in decodedBlocks) {
+      lines.forEach { if (it != null) action(it) }
+      block.forEachHeapLine(action)
+    }
+    for (block in blocks) {
+      if (!decodedBlocks.containsKey(block)) {
+        block.forEachHeapLine(action)
+      }
+    }
+  }
+
+  /** Removes the top line without decompressing it. */
+  private fun dropTop() {
+    topSequence++
+    wrappedLines.removeFirst()
+    if (blocks.isEmpty()) {
+      hotLines.removeFirst()
+      return
+    }
+    val block = blocks.first()
+    val offset = (topSlot - block.start).toInt()
+    decodedBlocks[block]?.set(offset, null)
+    block.removeHeapLine(offset)
+    topSlot++
+    if (topSlot == block.end) {
+      decodedBlocks.remove(blocks.removeFirst())
+    }
+  }
+
+  private fun compressTopHotLines() {
+    val lines = arrayOfNulls<TerminalLine>(blockSize)
+    for (i in 0 until blockSize) {
+      lines[i] = hotLines.removeFirst()
+    }
+    val block = Block(if (blocks.isEmpty()) topSlot else blocks.last().end, lines)
+    block.markEvicted(lines)
+    blocks.addLast(block)
+  }
+
+  private fun decompressBottomBlock() {
+    val block = blocks.last()
+    val lines = decoded(blocks.lastIndex)
+    decodedBlocks.remove(block)
+    blocks.removeLast()
+    for (i in block.slotCount - 1 downTo maxOf(topSlot - block.start, 0).toInt()) {
+      hotLines.addFirst(lines[i]!!)
+    }
+  }
+
+  private fun replaceHotLines(hotIndex: Int, count: Int, lines: List<TerminalLine>) {
+    hotLines.subList(hotIndex, hotIndex + count).clear()
+    hotLines.addAll(hotIndex, lines)
+    val coldSize = coldSize
+    for (i in hotIndex + lines.size until hotLines.size) {
+      hotLines[i].mySequence = topSequence + coldSize + i
+    }
+    while (hotLines.size >= hotLinesCount + blockSize) {
+      compressTopHotLines()
+    }
+  }
+
+  private fun replaceColdLines(index: Int, count: Int, lines: List<TerminalLine>) {
+    val firstSlot = topSlot + index
+    val endSlot = firstSlot + count
+    val firstBlockIndex = findBlock(firstSlot)
+    val lastBlockIndex = findBlock(maxOf(endSlot - 1, firstSlot))
+    val firstBlock = blocks[firstBlockIndex]
+    val lastBlock = blocks[lastBlockIndex]
+    val newLines = ArrayList<TerminalLine?>()
+    // the prefix is copied before the last block is decoded, decoding may evict the first one
+    val firstBlockLines = decoded(firstBlockIndex)
+    for (i in maxOf(topSlot - firstBlock.start, 0).toInt() until (firstSlot - firstBlock.start).toInt()) {
+      newLines.add(firstBlockLines[i])
+    }
+    val prefixSize = newLines.size
+    newLines.addAll(lines)
+    val lastBlockLines = decoded(lastBlockIndex)
+    for (i in (endSlot - lastBlock.start).toInt() until lastBlock.slotCount) {
+      newLines.add(lastBlockLines[i])
+    }
+    for (i in firstBlockIndex..lastBlockIndex) {
+      decodedBlocks.remove(blocks[i])
+    }
+    blocks.subList(firstBlockIndex, lastBlockIndex + 1).clear()
+
+    val delta = lines.size - count
+    val moveBlocksAbove = firstBlockIndex < blocks.size - firstBlockIndex
+    val newBlocksStart = firstSlot - prefixSize - if (moveBlocksAbove) delta else 0
+    // the lines are compressed right away, so the serialized ones are not modifiable anymore
+    val newBlocks = newLines.chunked(blockSize).mapIndexed { i, chunk ->
+      val blockLines = chunk.toTypedArray()
+      Block(newBlocksStart + i.toLong() * blockSize, blockLines).also { it.markEvicted(blockLines) }
+    }
+    blocks.addAll(firstBlockIndex, newBlocks)
+    if (moveBlocksAbove) {
+      for (i in 0 until firstBlockIndex) {
+        blocks[i].move(-delta)
+      }
+      topSlot -= delta
+      topSequence -= delta
+    }
+    else {
+      for (i in firstBlockIndex + newBlocks.size until blocks.size) {
+        blocks[i].move(delta)
+      }
+      hotLines.forEach { it.mySequence += delta }
+    }
+    // lines kept as objects stay in the new blocks, so the moved prefix or suffix lines are renumbered too
+    for ((i, line) in newLines.withIndex()) {
+      line?.mySequence = topSequence + (newBlocksStart + i - topSlot)
+    }
+  }
+
+  /** @return index of the block containing the [slot] */
+  private fun findBlock(slot: Long): Int {
+    var low = 0
+    var high = blocks.lastIndex
+    while (low < high) {
+      val middle = (low + high + 1) ushr 1
+      if (blocks[middle].start <= slot) {
+        low = middle
+      }
+      else {
+        high = middle - 1
+      }
+    }
+    return low
+  }
+
+  private fun decoded(blockIndex: Int): Array<TerminalLine?> {
+    val block = blocks[blockIndex]
+    return decodedBlocks[block] ?: block.decode(topSequence + (block.start - topSlot)).also {
+      decodedBlocks[block] = it
+    }
+  }
+
+  /**
+   * @param start slot of the first line of the block
+   */
+  private inner class Block(var start: Long, lines: Array<TerminalLine?>) {
+    val slotCount: Int = lines.size
+
+    val end: Long
+      get() = start + slotCount
+
+    private var data: ByteArray = ByteArray(0)
+    private var rawSize: Int = 0
+
+    /** Lines which cannot be serialized, by slot; allocated only when needed */
+    private var heapLines: Array<TerminalLine?>? = null
+
+    /** Set when lines are added to the decoded block, modifications of the lines themselves are tracked by lines. */
+    var isModified: Boolean = false
+
+    init {
+      encode(lines)
+    }
+
+    /** Moves the block by [shift] slots, sequence numbers of its loaded lines are changed accordingly */
+    fun move(shift: Int) {
+      start += shift
+      val lines = decodedBlocks[this] ?: heapLines ?: return
+      lines.forEach { if (it != null) it.mySequence += shift }
+    }
+
+    fun encodeIfChanged(lines: Array<TerminalLine?>) {
+      if (isModified || lines.any { it != null && it.isContentChanged }) {
+        encode(lines)
+      }
+    }
+
+    /**
+     * Every slot is written as a marker byte followed by the serialized line for [SERIALIZED] slots.
+     */
+    private fun encode(lines: Array<TerminalLine?>) {
+      val sizes = IntArray(slotCount)
+      var rawSize = slotCount
+      var heapLines: Array<TerminalLine?>? = null
+      for ((slot, line) in lines.withIndex()) {
+        if (line == null) continue
+        sizes[slot] = line.getSerializedSize(styleRegistry)
+        if (sizes[slot] >= 0) {
+          rawSize += sizes[slot]
+        }
+        else {
+          heapLines = heapLines ?: arrayOfNulls(slotCount)
+          heapLines[slot] = line
+        }
+      }
+
+      val raw = rawBuffer(rawSize)
+      for ((slot, line) in lines.withIndex()) {
+        when {
+          line == null -> raw.put(ABSENT)
+          sizes[slot] < 0 -> raw.put(ON_HEAP)
+          else -> {
+            raw.put(SERIALIZED)
+            line.serialize(raw, styleRegistry)
+            line.isContentChanged = false
+          }
+        }
+      }
+
+      deflater.reset()
+      deflater.setInput(raw.array(), 0, rawSize)
+      deflater.finish()
+      var compressedSize = 0
+      while (!deflater.finished()) {
+        if (compressedSize == compressedBuffer.size) {
+          compressedBuffer = compressedBuffer.copyOf(maxOf(1024, compressedBuffer.size * 2))
+        }
+        compressedSize += deflater.deflate(compressedBuffer, compressedSize, compressedBuffer.size - compressedSize)
+      }
+      this.data = compressedBuffer.copyOf(compressedSize)
+      this.rawSize = rawSize
+      this.heapLines = heapLines
+      isModified = false
+    }
+
+    /** @param firstSequence sequence number of the first slot */
+    fun decode(firstSequence: Long): Array<TerminalLine?> {
+      val raw = rawBuffer(rawSize)
+      inflater.reset()
+      inflater.setInput(data)
+      var size = 0
+      while (size < rawSize && !inflater.finished() && !inflater.needsInput() && !inflater.needsDictionary()) {
+        size += inflater.inflate(raw.array(), size, rawSize - size)
+      }
+      check(size == rawSize) { "Corrupted block: $size of $rawSize bytes are decompressed" }
+
+      val lines = arrayOfNulls<TerminalLine>(slotCount)
+      for (slot in 0 until slotCount) {
+        lines[slot] = when (raw.get()) {
+          SERIALIZED -> TerminalLine.deserialize(raw, styleRegistry).also { it.mySequence = firstSequence + slot }
+          ON_HEAP -> heapLines!![slot]
+          else -> null
+        }
+      }
+      return lines
+    }
+
+    /** Marks the lines dropped as objects, i.e. all except the lines kept on the heap */
+    fun markEvicted(lines: Array<TerminalLine?>) {
+      for ((slot, line) in lines.withIndex()) {
+        if (line != null && heapLines?.get(slot) !== line) {
+          line.markEvicted()
+        }
+      }
+    }
+
+    fun getHeapLine(slot: Int): TerminalLine? = heapLines?.get(slot)
+
+    fun forEachHeapLine(action: (TerminalLine) -> Unit) {
+      heapLines?.forEach { if (it != null) action(it) }
+    }
+
+    fun removeHeapLine(slot: Int) {
+      heapLines?.set(slot, null)
+    }
+  }
+
+  private fun rawBuffer(size: Int): ByteBuffer {
+    if (rawBuffer.capacity() < size) {
+      rawBuffer = ByteBuffer.allocate(maxOf(size, rawBuffer.capacity() * 2))
+    }
+    rawBuffer.clear()
+    return rawBuffer
+  }
+
+  companion object {
+    private const val DEFAULT_HOT_LINES_COUNT: Int = 1000
+    private const val DEFAULT_BLOCK_SIZE: Int = 256
+    private const val DEFAULT_DECODED_BLOCKS_COUNT: Int = 4
+
+    private const val ABSENT: Byte = 0
+    private const val SERIALIZED: Byte = 1
+    private const val ON_HEAP: Byte = 2
+  }
+}
@@ -7,8 +7,13 @@ internal class CyclicBufferLinesStorage(private val maxCapacity: Int) : LinesSto
 
   private val lines: ArrayDeque<TerminalLine> = ArrayDeque()
 
+  private val wrappedLines: WrappedLinesIndex = WrappedLinesIndex()
+
   private val isCapacityLimited: Boolean = maxCapacity >= 0
 
+  /** Sequence number of the top line, see [TerminalLine.mySequence] */
+  private var topSequence: Long = 0
+
   override val size: Int
     get() = lines.size
 
@@ -27,8 +32,11 @@ internal class CyclicBufferLinesStorage(private val maxCapacity: Int) : LinesSto
     return lines[index]
   }
 
-  /** O(size) */
-  override fun indexOf(line: TerminalLine): Int = lines.indexOf(line)
+  /** O(1) */
+  override fun indexOf(line: TerminalLine): Int {
+    val index = line.mySequence - topSequence
+    return if (index >= 0 && index < size && lines[index.toInt()] === line) index.toInt() else -1
+  }
 
   /**
    * Amortized 0(1).
@@ -38,7 +46,9 @@ internal class CyclicBufferLinesStorage(private val maxCapacity: Int) : LinesSto
     if (isCapacityLimited && lines.size == maxCapacity) {
       return
     }
+    line.mySequence = --topSequence
     lines.addFirst(line)
+    wrappedLines.addFirst(line.isWrapped)
   }
 
   /**
@@ -46,24 +56,64 @@ internal class CyclicBufferLinesStorage(private val maxCapacity: Int) : LinesSto
    * The worst case is when we need to extend the internal storage of the array deque.
    */
   override fun addToBottom(line: TerminalLine) {
+    line.mySequence = topSequence + lines.size
     lines.addLast(line)
+    wrappedLines.addLast(line.isWrapped)
     if (isCapacityLimited && lines.size > maxCapacity) {
       lines.removeFirst()
+      wrappedLines.removeFirst()
+      topSequence++
     }
   }
 
   /** O(1) */
   override fun removeFromTop(): TerminalLine {
-    return lines.removeFirst()
+    val line = lines.removeFirst()
+    wrappedLines.removeFirst()
+    topSequence++
+    return line
   }
 
   /** O(1) */
   override fun removeFromBottom(): TerminalLine {
-    return lines.removeLast()
+    val line = lines.removeLast()
+    wrappedLines.removeLast()
+    return line
   }
 
   /** O(size) */
-  override fun clear() = lines.clear()
+  override fun clear() {
+    lines.clear()
+    wrappedLines.clear()
+  }
+
+  /** O(min(lines above, lines below) + lines.size) */
+  override fun replace(index: Int, count: Int, lines: List<TerminalLine>) {
+    val delta = lines.size - count
+    val moveLinesAbove = index < size - index - count
+    // the deque moves the lines on the shorter side, sequence numbers of these lines are changed
+    this.lines.subList(index, index + count).clear()
+    this.lines.addAll(index, lines)
+    if (moveLinesAbove) {
+      topSequence -= delta
+    }
+    for (ind in if (moveLinesAbove) 0 until index + lines.size else index until size) {
+      this.lines[ind].mySequence = topSequence + ind
+    }
+    wrappedLines.replace(index, count, BooleanArray(lines.size) { lines[it].isWrapped })
+    while (isCapacityLimited && size > maxCapacity) {
+      removeFromTop()
+    }
+  }
+
+  override fun setLineWrapped(index: Int, isWrapped: Boolean) {
+    get(index).isWrapped = isWrapped
+    wrappedLines[index] = isWrapped
+  }
+
+  override fun findLogicalLineStart(index: Int): Int = wrappedLines.findLogicalLineStart(index)
+
+  override fun findLogicalLineEnd(index: Int): Int = wrappedLines.findLogicalLineEnd(index)
 
   override fun iterator(): Iterator<TerminalLine> = lines.iterator()
 }
@@ -0,0 +1,114 @@
+package com.jediterm.terminal.model;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Rewraps the history lines left in a previous width by {@link ChangeWidthOperation}, i.e. the lines at the top
+ * of the history storage. The lines are rewrapped in the background in chunks of logical lines, from the bottom
+ * of the stale lines up, so the history closer to the screen is rewrapped first.
+ * Every chunk is rewrapped under the buffer lock, which is released between chunks, and replaces the stale lines
+ * in place (see {@link LinesStorage#replace}), so the lines around it are not re-added. The lines of a chunk are rewrapped
+ * in parallel (see {@link ChangeWidthOperation#rewrapInParallel}), so chunks are larger when there are more cores.
+ * <p>
+ * The reflow is cancelled by the next width change, which starts a new one for the remaining stale lines
+ * (rewrapping doesn't depend on the width lines were wrapped in), and by clearing the history.
+ * All methods except {@link #start()} must be called under the buffer lock.
+ */
+final class HistoryReflow implements Runnable {
+  /** Count of lines in a chunk per rewrapping thread, see {@link ChangeWidthOperation#getRewrapParallelism()} */
+  private static final int CHUNK_LINES = 2000;
+  private static final Executor EXECUTOR = createExecutor();
+
+  private final TerminalTextBuffer myTextBuffer;
+  private final LinesStorage myStorage;
+  private final int myNewWidth;
+  private int myStaleLineCount;
+  private boolean myCancelled;
+
+  HistoryReflow(@NotNull TerminalTextBuffer textBuffer, @NotNull LinesStorage storage, int newWidth, int staleLineCount) {
+    myTextBuffer = textBuffer;
+    myStorage = storage;
+    myNewWidth = newWidth;
+    myStaleLineCount = staleLineCount;
+  }
+
+  private static @NotNull Executor createExecutor() {
+    return Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "JediTerm history reflow");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  void start() {
+    EXECUTOR.execute(this);
+  }
+
+  void cancel() {
+    myCancelled = true;
+  }
+
+  boolean isDone() {
+    return myCancelled || myStaleLineCount == 0;
+  }
+
+  /**
+   * Keeps track of the stale lines when lines are discarded from the top of the storage.
+   */
+  void linesDiscarded(@NotNull LinesStorage storage, int count) {
+    if (storage == myStorage) {
+      myStaleLineCount = Math.max(0, myStaleLineCount - count);
+    }
+  }
+
+  /**
+   * Rewraps all remaining stale lines at once.
+   */
+  void finish() {
+    if (!isDone()) {
+      reflowChunk(myStaleLineCount);
+    }
+  }
+
+  @Override
+  public void run() {
+    boolean done;
+    myTextBuffer.lock();
+    try {
+      if (!isDone()) {
+        reflowChunk(CHUNK_LINES * ChangeWidthOperation.getRewrapParallelism());
+      }
+      done = isDone();
+    }
+    finally {
+      myTextBuffer.unlock();
+    }
+    if (!done) {
+      // the next chunk is queued after reflows of other terminals
+      EXECUTOR.execute(this);
+    }
+  }
+
+  private void reflowChunk(int maxLineCount) {
+    int end = Math.min(myStaleLineCount, myStorage.getSize());
+    int start = myStorage.findLogicalLineStart(Math.max(0, end - maxLineCount));
+    List<TerminalLine> staleLines = new ArrayList<>(end - start);
+    for (int i = start; i < end; i++) {
+      staleLines.add(myStorage.get(i));
+    }
+    List<TerminalLine> rewrappedLines = ChangeWidthOperation.rewrapInParallel(myTextBuffer, staleLines, myNewWidth);
+    int sizeBefore = myStorage.getSize();
+    int expectedSize = sizeBefore - staleLines.size() + rewrappedLines.size();
+    myStorage.replace(start, staleLines.size(), rewrappedLines);
+    // the topmost lines are dropped if the chunk has become longer than the storage capacity allows
+    int discardedLineCount = expectedSize - myStorage.getSize();
+    myStaleLineCount = Math.max(0, start - discardedLineCount);
+    myTextBuffer.historyReflowed$core(myStorage, start - sizeBefore, staleLines.size(), rewrappedLines.size(),
+                                      discardedLineCount, myStaleLineCount);
+  }
+}
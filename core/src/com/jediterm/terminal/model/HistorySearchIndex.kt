@@ -0,0 +1,225 @@
+package com.jediterm.terminal.model
+
+import org.jetbrains.annotations.ApiStatus
+import java.util.Locale
+
+/**
+ * Trigram index of the history lines, narrows a substring search down to the history rows which can contain
+ * the pattern, so that a search doesn't scan the whole history.
+ *
+ * The history is split into blocks of [BLOCK_ROWS] rows, every block has a bloom filter of the trigrams of its text
+ * in lower case. A trigram spanning rows (the search matches text across rows) belongs to the block of its last char.
+ * Lines are indexed on [findRowsToSearch], so only the lines added to the history since the previous search are read.
+ * The changes of indexed lines come from [TextBufferChangesListener], the listener must be added to the buffer:
+ * a change of the bottom history lines makes them indexed again, a change of older lines
+ * (e.g. rewrapping after a width change, see [TextBufferChangesListener.historyLinesReplaced]) resets the index.
+ *
+ * The screen lines aren't indexed, a search always scans them.
+ */
+@ApiStatus.Experimental
+class HistorySearchIndex(private val textBuffer: TerminalTextBuffer) : TextBufferChangesListener {
+  private val blocks: ArrayDeque<Block> = ArrayDeque()
+
+  /** The indexed history storage, it is replaced e.g. by the alternate buffer */
+  private var storage: LinesStorage? = null
+
+  /** Width of the indexed lines, the changes can be delivered after the buffer is read, see [TerminalTextBuffer.beginChangesBatch] */
+  private var width: Int = 0
+
+  /** Count of lines discarded from the top of the history since the index was reset */
+  private var discardedLineCount: Long = 0
+
+  /** Absolute index (including the discarded lines) of the first history line which isn't indexed */
+  private var indexedEnd: Long = 0
+
+  /**
+   * Must be called under the text buffer lock, the read lock is enough.
+   *
+   * @return ranges of history rows which can contain [pattern] in ascending order, the rows of a match start in
+   * one of the ranges, the last range always ends with the last history line; `null` if the index can't narrow down
+   * the search, e.g. for patterns shorter than a trigram
+   */
+  @Synchronized
+  fun findRowsToSearch(pattern: String): List<IntRange>? {
+    // the search matches chars converted to lower case one by one, see SubstringFinder
+    val lowerCasePattern = String(CharArray(pattern.length) { Character.toLowerCase(pattern[it]) })
+    if (pattern.length < 3 || lowerCasePattern != pattern.lowercase(Locale.getDefault())) {
+      return null
+    }
+    update()
+    if (blocks.isEmpty()) {
+      return emptyList()
+    }
+    val trigramBits = IntArray(pattern.length - 2) {
+      trigramBit(lowerCasePattern[it], lowerCasePattern[it + 1], lowerCasePattern[it + 2])
+    }
+    val result = ArrayList<IntRange>()
+    var lastBlockInd = 0
+    var followingCharCount = 0L
+    for (blockInd in blocks.indices) {
+      // a match starting in the block ends in one of the blocks up to the last block
+      if (lastBlockInd > blockInd) {
+        followingCharCount -= blocks[blockInd].charCount
+      }
+      else {
+        lastBlockInd = blockInd
+        followingCharCount = 0
+      }
+      while (followingCharCount < pattern.length - 1 && lastBlockInd < blocks.size - 1) {
+        lastBlockInd++
+        followingCharCount += blocks[lastBlockInd].charCount
+      }
+      if (blockInd == blocks.size - 1 || trigramBits.all { bit -> (blockInd..lastBlockInd).any { blocks[it].hasBit(bit) } }) {
+        addRows(result, blocks[blockInd].start, blocks[lastBlockInd].end)
+      }
+    }
+    return result
+  }
+
+  private fun addRows(result: MutableList<IntRange>, start: Long, end: Long) {
+    val first = (maxOf(start, discardedLineCount) - discardedLineCount).toInt()
+    val last = (end - discardedLineCount).toInt() - 1
+    val previous = result.lastOrNull()
+    if (previous != null && previous.last + 1 >= first) {
+      result[result.size - 1] = previous.first..maxOf(previous.last, last)
+    }
+    else {
+      result.add(first..last)
+    }
+  }
+
+  @Synchronized
+  override fun linesChanged(fromIndex: Int) {
+    if (fromIndex >= 0 || !isIndexedStorage()) {
+      return
+    }
+    val line = discardedLineCount + textBuffer.historyLinesCount + fromIndex
+    if (line < indexedEnd - RECENT_LINES) {
+      reset()
+    }
+    else if (line < indexedEnd) {
+      truncate(line)
+    }
+  }
+
+  @Synchronized
+  override fun linesDiscardedFromHistory(lines: List<TerminalLine>) {
+    if (isIndexedStorage()) {
+      discardedLineCount += lines.size
+    }
+  }
+
+  @Synchronized
+  override fun historyLinesReplaced(fromIndex: Int, oldCount: Int, newCount: Int) {
+    reset()
+  }
+
+  @Synchronized
+  override fun historyCleared() {
+    reset()
+  }
+
+  @Synchronized
+  override fun widthResized() {
+    reset()
+  }
+
+  /**
+   * Events about another storage (e.g. the history of the alternate buffer) can't be mapped to the index.
+   */
+  private fun isIndexedStorage(): Boolean {
+    if (textBuffer.historyLinesStorage !== storage) {
+      reset()
+      return false
+    }
+    return true
+  }
+
+  private fun reset() {
+    blocks.clear()
+    storage = null
+    discardedLineCount = 0
+    indexedEnd = 0
+  }
+
+  /**
+   * Removes the block containing [line] and the blocks below it.
+   */
+  private fun truncate(line: Long) {
+    while (blocks.isNotEmpty() && blocks.last().end > line) {
+      indexedEnd = blocks.removeLast().start
+    }
+  }
+
+  private fun update() {
+    val history = textBuffer.historyLinesStorage
+    if (history !== storage || textBuffer.width != width) {
+      reset()
+      storage = history
+      width = textBuffer.width
+    }
+    val end = discardedLineCount + history.size
+    if (indexedEnd > end) {
+      truncate(end)
+    }
+    while (blocks.isNotEmpty() && blocks.first().end <= discardedLineCount) {
+      blocks.removeFirst()
+    }
+    if (blocks.isEmpty()) {
+      indexedEnd = maxOf(indexedEnd, discardedLineCount)
+    }
+    while (indexedEnd < end) {
+      val lastBlock = blocks.lastOrNull()
+      val block = if (lastBlock != null && lastBlock.rowCount < BLOCK_ROWS) lastBlock else Block(indexedEnd, lastBlock).also { blocks.addLast(it) }
+      block.add(history[(indexedEnd - discardedLineCount).toInt()].text)
+      indexedEnd++
+    }
+  }
+
+  private class Block(val start: Long, previous: Block?) {
+    private val bits: LongArray = LongArray(BLOOM_BITS / Long.SIZE_BITS)
+    var rowCount: Int = 0
+      private set
+    var charCount: Long = 0
+      private set
+
+    /** The last two chars of the text up to the end of the block, trigrams continue them */
+    private var tailChars: Int = previous?.tailChars ?: 0
+    private var tailLength: Int = previous?.tailLength ?: 0
+
+    val end: Long
+      get() = start + rowCount
+
+    fun add(text: String) {
+      for (c in text) {
+        val lowerCaseChar = Character.toLowerCase(c)
+        if (tailLength == 2) {
+          val bit = trigramBit((tailChars ushr 16).toChar(), tailChars.toChar(), lowerCaseChar)
+          bits[bit ushr 6] = bits[bit ushr 6] or (1L shl bit)
+        }
+        else {
+          tailLength++
+        }
+        tailChars = (tailChars shl 16) or lowerCaseChar.code
+      }
+      charCount += text.length
+      rowCount++
+    }
+
+    fun hasBit(bit: Int): Boolean = bits[bit ushr 6] and (1L shl bit) != 0L
+  }
+
+  companion object {
+    private const val BLOCK_ROWS: Int = 256
+    private const val BLOOM_BITS_LOG: Int = 15
+    private const val BLOOM_BITS: Int = 1 shl BLOOM_BITS_LOG
+
+    /** Changes of lines older than that reset the index instead of indexing the lines below again */
+    private const val RECENT_LINES: Int = 2 * BLOCK_ROWS
+
+    private fun trigramBit(c1: Char, c2: Char, c3: Char): Int {
+      val trigram = (c1.code.toLong() shl 32) or (c2.code.toLong() shl 16) or c3.code.toLong()
+      return ((trigram * -0x61c8864680b583ebL) ushr (Long.SIZE_BITS - BLOOM_BITS_LOG)).toInt()
+    }
+  }
+}
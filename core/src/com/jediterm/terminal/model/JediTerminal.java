@@ -138,10 +138,28 @@ public class JediTerminal implements Terminal, TerminalMouseListener, TerminalCo
     writeDecodedCharacters(decodeUsingGraphicalState(normalized));
   }
 
+  @Override
+  public void writeCharacters(char @NotNull [] chars, int offset, int length) {
+    if (myGraphicSetState.isAsciiMappedToItself() && CharUtils.isPrintableAscii(chars, offset, length)) {
+      // fast path: already normalized, no graphic set mapping, no double width characters
+      writeDecodedCharacters(new CharBuffer(chars, offset, length));
+    }
+    else if (CharUtils.isNormalizedNFC(chars, offset, length)) {
+      writeDecodedCharacters(decodeUsingGraphicalState(chars, offset, length));
+    }
+    else {
+      writeCharacters(new String(chars, offset, length));
+    }
+  }
+
   private void writeDecodedCharacters(char[] string) {
+    writeDecodedCharacters(string.length != 0 ? newCharBuf(string) : CharBuffer.EMPTY);
+  }
+
+  private void writeDecodedCharacters(@NotNull CharBuffer characters) {
     myTerminalTextBuffer.lock();
     try {
-      if (myCursorYChanged && string.length > 0) {
+      if (myCursorYChanged && characters.length() > 0) {
         myCursorYChanged = false;
         if (myCursorY > 1) {
           myTerminalTextBuffer.setLineWrapped(myCursorY - 2, false);
@@ -150,8 +168,7 @@ public class JediTerminal implements Terminal, TerminalMouseListener, TerminalCo
       wrapLines();
       scrollY();
 
-      if (string.length != 0) {
-        CharBuffer characters = newCharBuf(string);
+      if (characters.length() != 0) {
         myTerminalTextBuffer.writeString(myCursorX, myCursorY, characters);
         myCursorX += characters.length();
       }
@@ -176,6 +193,14 @@ public class JediTerminal implements Terminal, TerminalMouseListener, TerminalCo
     return chars;
   }
 
+  private char[] decodeUsingGraphicalState(char[] chars, int offset, int length) {
+    char[] result = new char[length];
+    for (int i = 0; i < length; i++) {
+      result[i] = myGraphicSetState.map(chars[offset + i]);
+    }
+    return result;
+  }
+
   public void writeUnwrappedString(String string) {
     int length = string.length();
     int off = 0;
@@ -562,7 +587,7 @@ public class JediTerminal implements Terminal, TerminalMouseListener, TerminalCo
   public void deleteLines(int count) {
     myTerminalTextBuffer.lock();
     try {
-      myTerminalTextBuffer.deleteLines(myCursorY - 1, count, myScrollRegionBottom);
+      myTerminalTextBuffer.discardLines(myCursorY - 1, count, myScrollRegionBottom);
     } finally {
       myTerminalTextBuffer.unlock();
     }
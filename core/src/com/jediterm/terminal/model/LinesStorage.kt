@@ -19,7 +19,12 @@ interface LinesStorage : Iterable<TerminalLine> {
    */
   operator fun get(index: Int): TerminalLine
 
-  /** @return -1 if there is no such line */
+  /**
+   * Storages assign a monotonic sequence number to every added line, so the index of a line is resolved from it
+   * in O(1). A line belongs to the storage it was last added to.
+   *
+   * @return -1 if there is no such line
+   */
   fun indexOf(line: TerminalLine): Int
 
   /**
@@ -50,6 +55,59 @@ interface LinesStorage : Iterable<TerminalLine> {
 
   fun clear()
 
+  /**
+   * Replaces [count] lines starting at [index] with [lines], e.g. with the lines rewrapped in another width.
+   * If the storage becomes larger than its max capacity, the lines from the top are removed.
+   *
+   * The default implementation removes and adds back the lines above [index],
+   * storages override it to avoid moving the lines one by one.
+   */
+  fun replace(index: Int, count: Int, lines: List<TerminalLine>) {
+    val linesAbove = removeFromTop(index)
+    removeFromTop(count)
+    addAllToTop(lines)
+    addAllToTop(linesAbove)
+  }
+
+  /**
+   * Removes all lines and releases the resources held outside the Java heap, e.g. when the terminal is closed.
+   * The storage can still be used afterwards.
+   */
+  fun dispose() {
+    clear()
+  }
+
+  /**
+   * Changes the wrapped flag of the line at [index], storages indexing logical lines keep the index up to date.
+   */
+  fun setLineWrapped(index: Int, isWrapped: Boolean) {
+    get(index).isWrapped = isWrapped
+  }
+
+  /**
+   * A logical line is a line of output split into wrapped lines: all its lines but the last one are wrapped.
+   *
+   * @return index of the first line of the logical line containing the line at [index]
+   */
+  fun findLogicalLineStart(index: Int): Int {
+    var ind = index
+    while (ind > 0 && this[ind - 1].isWrapped) {
+      ind--
+    }
+    return ind
+  }
+
+  /**
+   * @return index of the last line of the logical line containing the line at [index]
+   */
+  fun findLogicalLineEnd(index: Int): Int {
+    var ind = index
+    while (ind < size - 1 && this[ind].isWrapped) {
+      ind++
+    }
+    return ind
+  }
+
   companion object {
     const val DEFAULT_MAX_LINES_COUNT: Int = 5000
   }
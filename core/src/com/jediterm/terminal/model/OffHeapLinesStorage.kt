@@ -0,0 +1,439 @@
+package com.jediterm.terminal.model
+
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Stores lines serialized outside the Java heap: in direct byte buffers or in a memory-mapped temporary file.
+ * The heap cost of a stored line is a single `long` with its location, [TerminalLine] objects are materialized
+ * lazily on [get] and kept in a small LRU cache.
+ *
+ * Lines are appended to fixed-size segments. A segment is reused once all its lines are removed,
+ * which is the usual case for the history where old lines are dropped from the top.
+ * Cached lines modified after they were stored are serialized again when evicted from the cache.
+ * An evicted line can't be modified anymore (see [TerminalLine.isEvicted]), the storage materializes a new one.
+ * Lines which cannot be serialized (e.g. with hyperlink styles) are kept on the heap as is.
+ *
+ * Highlightings and type-ahead predictions of a line are not preserved once it is evicted from the cache.
+ *
+ * The segments and the temporary file are released by [dispose], the lines added after that are kept on the heap.
+ *
+ * Reading a line updates the cache and the segment buffers, so the operations are synchronized:
+ * readers holding the shared lock of the text buffer (painting, search) access the storage concurrently.
+ *
+ * @param maxCapacity maximum number of stored lines; -1 means no restriction
+ * @param styleRegistry provides ids of styles stored in the serialized lines
+ * @param useMappedFile store segments in a memory-mapped temporary file instead of direct buffers
+ */
+internal class OffHeapLinesStorage(
+  private val maxCapacity: Int,
+  private val styleRegistry: TextStyleRegistry,
+  private val useMappedFile: Boolean = false,
+  private val segmentSize: Int = DEFAULT_SEGMENT_SIZE,
+  private val cacheSize: Int = DEFAULT_CACHE_SIZE
+) : LinesStorage {
+
+  private val isCapacityLimited: Boolean = maxCapacity >= 0
+
+  /** Cyclic array of line locations: segment index in high bits and offset in low bits, or `-id` of a heap line. */
+  private var locations: LongArray = LongArray(16)
+  private var head: Int = 0
+
+  private val wrappedLines: WrappedLinesIndex = WrappedLinesIndex()
+
+  /**
+   * Sequence number of the top line, see [TerminalLine.mySequence].
+   * Cached lines are keyed by sequence numbers as indices shift on removal.
+   */
+  private var topSequence: Long = 0
+
+  private val cache = object : LinkedHashMap<Long, TerminalLine>(16, 0.75f, true) {
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Long, TerminalLine>): Boolean {
+      if (size > cacheSize) {
+        evict(eldest.key, eldest.value)
+        return true
+      }
+      return false
+    }
+  }
+
+  private val heapLines: MutableMap<Long, TerminalLine> = HashMap()
+  private var nextHeapLineId: Long = 1
+
+  private val segments: MutableList<ByteBuffer?> = ArrayList()
+  private var segmentLineCounts: IntArray = IntArray(4)
+  private val freeSegments: ArrayDeque<Int> = ArrayDeque()
+  private var currentSegment: Int = -1
+  private var currentOffset: Int = 0
+  private var channel: FileChannel? = null
+  private var isDisposed: Boolean = false
+
+  override var size: Int = 0
+    @Synchronized get
+    private set
+
+  /** O(1) if the line is cached, otherwise O(line length) */
+  @Synchronized
+  override fun get(index: Int): TerminalLine {
+    if (index < 0) {
+      throw IndexOutOfBoundsException("Negative index: $index")
+    }
+
+    if (index >= size) {
+      repeat(index - size + 1) {
+        addToBottom(TerminalLine.createEmpty())
+      }
+    }
+
+    val sequence = topSequence + index
+    cache[sequence]?.let { return it }
+    val location = locationAt(index)
+    if (location < 0) {
+      return heapLines.getValue(-location)
+    }
+    val line = read(location)
+    line.mySequence = sequence
+    cache[sequence] = line
+    return line
+  }
+
+  /** O(1), only cached and heap lines can be found */
+  @Synchronized
+  override fun indexOf(line: TerminalLine): Int {
+    val index = line.mySequence - topSequence
+    if (index < 0 || index >= size) {
+      return -1
+    }
+    val location = locationAt(index.toInt())
+    val storedLine = if (location < 0) heapLines[-location] else cache[line.mySequence]
+    return if (storedLine === line) index.toInt() else -1
+  }
+
+  @Synchronized
+  override fun addToTop(line: TerminalLine) {
+    if (isCapacityLimited && size == maxCapacity) {
+      return
+    }
+    ensureCapacity(size + 1)
+    head = (head - 1 + locations.size) % locations.size
+    size++
+    topSequence--
+    line.mySequence = topSequence
+    locations[head] = store(line)
+    wrappedLines.addFirst(line.isWrapped)
+    cacheIfStored(topSequence, locations[head], line)
+  }
+
+  @Synchronized
+  override fun addToBottom(line: TerminalLine) {
+    ensureCapacity(size + 1)
+    line.mySequence = topSequence + size
+    val location = store(line)
+    locations[(head + size) % locations.size] = location
+    wrappedLines.addLast(line.isWrapped)
+    size++
+    cacheIfStored(topSequence + size - 1, location, line)
+    if (isCapacityLimited && size > maxCapacity) {
+      cache.remove(topSequence)
+      release(locationAt(0))
+      removeTopLocation()
+    }
+  }
+
+  @Synchronized
+  override fun removeFromTop(): TerminalLine {
+    if (size == 0) {
+      throw NoSuchElementException("Storage is empty")
+    }
+    val line = take(0)
+    removeTopLocation()
+    return line
+  }
+
+  @Synchronized
+  override fun removeFromBottom(): TerminalLine {
+    if (size == 0) {
+      throw NoSuchElementException("Storage is empty")
+    }
+    val line = take(size - 1)
+    wrappedLines.removeLast()
+    size--
+    return line
+  }
+
+  @Synchronized
+  override fun clear() {
+    cache.clear()
+    heapLines.clear()
+    wrappedLines.clear()
+    head = 0
+    size = 0
+    for (segment in segments.indices) {
+      if (segmentLineCounts[segment] > 0) {
+        segmentLineCounts[segment] = 0
+        if (segment != currentSegment) {
+          freeSegments.addLast(segment)
+        }
+      }
+    }
+    currentOffset = 0
+  }
+
+  /**
+   * Doesn't deserialize lines: only locations of the lines on the shorter side of the range are moved,
+   * cached lines among them are re-keyed by their new sequence numbers.
+   */
+  @Synchronized
+  override fun replace(index: Int, count: Int, lines: List<TerminalLine>) {
+    for (ind in index until index + count) {
+      cache.remove(topSequence + ind)
+      release(locationAt(ind))
+    }
+    val delta = lines.size - count
+    ensureCapacity(size + delta)
+    val moveLinesAbove = index < size - index - count
+    val from = if (moveLinesAbove) 0 else index + count
+    val length = if (moveLinesAbove) index else size - index - count
+    // sequence numbers of the moved lines change by the same shift as their positions
+    val shift = if (moveLinesAbove) -delta else delta
+    val movedCachedLines = ArrayList<TerminalLine>()
+    val cachedEntries = cache.entries.iterator()
+    while (cachedEntries.hasNext()) {
+      val (sequence, line) = cachedEntries.next()
+      if (sequence - topSequence in from until from + length) {
+        movedCachedLines.add(line)
+        cachedEntries.remove()
+      }
+    }
+    moveLocations(from, length, shift)
+    if (moveLinesAbove) {
+      head = Math.floorMod(head - delta, locations.size)
+      topSequence -= delta
+    }
+    size += delta
+    for ((i, line) in lines.withIndex()) {
+      line.mySequence = topSequence + index + i
+      locations[(head + index + i) % locations.size] = store(line)
+    }
+    wrappedLines.replace(index, count, BooleanArray(lines.size) { lines[it].isWrapped })
+    for (line in movedCachedLines) {
+      line.mySequence += shift
+      cache[line.mySequence] = line
+    }
+    for ((i, line) in lines.withIndex()) {
+      cacheIfStored(line.mySequence, locationAt(index + i), line)
+    }
+    while (isCapacityLimited && size > maxCapacity) {
+      cache.remove(topSequence)
+      release(locationAt(0))
+      removeTopLocation()
+    }
+  }
+
+  /**
+   * Mapped segments are unmapped by GC once they are unreachable, the temporary file is already deleted by then.
+   */
+  @Synchronized
+  override fun dispose() {
+    clear()
+    isDisposed = true
+    segments.clear()
+    freeSegments.clear()
+    currentSegment = -1
+    channel?.close()
+    channel = null
+  }
+
+  /** O(1) if the line is cached, otherwise O(line length) */
+  @Synchronized
+  override fun setLineWrapped(index: Int, isWrapped: Boolean) {
+    get(index).isWrapped = isWrapped
+    wrappedLines[index] = isWrapped
+  }
+
+  /** Doesn't deserialize lines */
+  @Synchronized
+  override fun findLogicalLineStart(index: Int): Int = wrappedLines.findLogicalLineStart(index)
+
+  /** Doesn't deserialize lines */
+  @Synchronized
+  override fun findLogicalLineEnd(index: Int): Int = wrappedLines.findLogicalLineEnd(index)
+
+  override fun iterator(): Iterator<TerminalLine> = object : Iterator<TerminalLine> {
+    private var index = 0
+
+    override fun hasNext(): Boolean = index < size
+
+    override fun next(): TerminalLine {
+      if (index >= size) {
+        throw NoSuchElementException()
+      }
+      return get(index++)
+    }
+  }
+
+  /**
+   * Iterates over the lines currently materialized as objects, without deserializing other lines.
+   */
+  @Synchronized
+  fun forEachLoadedLine(action: (TerminalLine) -> Unit) {
+    cache.values.forEach(action)
+    heapLines.values.forEach(action)
+  }
+
+  private fun locationAt(index: Int): Long = locations[(head + index) % locations.size]
+
+  private fun removeTopLocation() {
+    wrappedLines.removeFirst()
+    head = (head + 1) % locations.size
+    size--
+    topSequence++
+  }
+
+  /**
+   * Moves [length] locations starting at [from] by [shift] positions, the index may become negative (before the head).
+   */
+  private fun moveLocations(from: Int, length: Int, shift: Int) {
+    if (shift == 0) return
+    val indices = if (shift < 0) from until from + length else from + length - 1 downTo from
+    for (ind in indices) {
+      val location = locationAt(ind)
+      if (location < 0) {
+        heapLines.getValue(-location).mySequence += shift
+      }
+      locations[Math.floorMod(head + ind + shift, locations.size)] = location
+    }
+  }
+
+  private fun ensureCapacity(capacity: Int) {
+    if (capacity <= locations.size) return
+    val newLocations = LongArray(maxOf(capacity, locations.size * 2))
+    for (index in 0 until size) {
+      newLocations[index] = locationAt(index)
+    }
+    locations = newLocations
+    head = 0
+  }
+
+  private fun take(index: Int): TerminalLine {
+    val location = locationAt(index)
+    val line = cache.remove(topSequence + index) ?: if (location < 0) heapLines.getValue(-location) else read(location)
+    release(location)
+    return line
+  }
+
+  private fun cacheIfStored(sequence: Long, location: Long, line: TerminalLine) {
+    if (location >= 0) {
+      cache[sequence] = line
+    }
+  }
+
+  private fun evict(sequence: Long, line: TerminalLine) {
+    val index = sequence - topSequence
+    if (index < 0 || index >= size) return
+    val position = ((head + index) % locations.size).toInt()
+    if (line.isContentChanged) {
+      release(locations[position])
+      locations[position] = store(line)
+    }
+    // a line which can't be serialized anymore is kept on the heap and stays modifiable
+    if (locations[position] >= 0) {
+      line.markEvicted()
+    }
+  }
+
+  /** @return location of the stored line */
+  private fun store(line: TerminalLine): Long {
+    val serializedSize = line.getSerializedSize(styleRegistry)
+    if (serializedSize < 0 || serializedSize > segmentSize || isDisposed) {
+      val id = nextHeapLineId++
+      heapLines[id] = line
+      return -id
+    }
+    if (currentSegment < 0 || currentOffset + serializedSize > segmentSize) {
+      startNewSegment()
+    }
+    val buffer = segments[currentSegment]!!
+    buffer.position(currentOffset)
+    line.serialize(buffer, styleRegistry)
+    line.isContentChanged = false
+    val location = (currentSegment.toLong() shl 32) or currentOffset.toLong()
+    currentOffset += serializedSize
+    segmentLineCounts[currentSegment]++
+    return location
+  }
+
+  private fun read(location: Long): TerminalLine {
+    val buffer = segments[(location ushr 32).toInt()]!!
+    buffer.position(location.toInt())
+    return TerminalLine.deserialize(buffer, styleRegistry)
+  }
+
+  private fun release(location: Long) {
+    if (location < 0) {
+      heapLines.remove(-location)
+      return
+    }
+    val segment = (location ushr 32).toInt()
+    if (--segmentLineCounts[segment] == 0) {
+      if (segment == currentSegment) {
+        currentOffset = 0
+      }
+      else {
+        freeSegment(segment)
+      }
+    }
+  }
+
+  private fun startNewSegment() {
+    if (currentSegment >= 0 && segmentLineCounts[currentSegment] == 0) {
+      currentOffset = 0
+      return
+    }
+    val segment = freeSegments.removeFirstOrNull() ?: segments.size.also {
+      segments.add(null)
+      if (it == segmentLineCounts.size) {
+        segmentLineCounts = segmentLineCounts.copyOf(it * 2)
+      }
+    }
+    if (segments[segment] == null) {
+      segments[segment] = allocateSegment(segment)
+    }
+    currentSegment = segment
+    currentOffset = 0
+  }
+
+  private fun freeSegment(segment: Int) {
+    // keep a few free segments to avoid re-allocation, the rest is returned to the OS
+    if (freeSegments.size >= MAX_FREE_SEGMENTS && !useMappedFile) {
+      segments[segment] = null
+    }
+    freeSegments.addLast(segment)
+  }
+
+  private fun allocateSegment(segment: Int): ByteBuffer {
+    if (!useMappedFile) {
+      return ByteBuffer.allocateDirect(segmentSize)
+    }
+    val channel = channel ?: openTempFileChannel().also { channel = it }
+    return channel.map(FileChannel.MapMode.READ_WRITE, segment.toLong() * segmentSize, segmentSize.toLong())
+  }
+
+  companion object {
+    private const val DEFAULT_SEGMENT_SIZE: Int = 1024 * 1024
+    private const val DEFAULT_CACHE_SIZE: Int = 1024
+    private const val MAX_FREE_SEGMENTS: Int = 2
+
+    private fun openTempFileChannel(): FileChannel {
+      val file = File.createTempFile("jediterm-history", ".bin")
+      val channel = RandomAccessFile(file, "rw").channel
+      // mappings stay valid after the file is deleted on Unix-like systems
+      if (!file.delete()) {
+        file.deleteOnExit()
+      }
+      return channel
+    }
+  }
+}
@@ -0,0 +1,219 @@
+package com.jediterm.terminal.model
+
+import com.jediterm.terminal.TextStyle
+import kotlin.math.min
+
+/**
+ * Storage of the screen lines with in-place scrolling of regions.
+ *
+ * Lines are kept in slots of an array. Scrolling a region only updates the rotation of the region,
+ * lines are moved to their slots lazily: when the storage is modified from the top or another region is scrolled.
+ * Lines scrolled out of a region are reset and reused as blank lines, unless the caller takes them
+ * (e.g. to move them to the history).
+ *
+ * Sequence numbers of lines are their slots, so [indexOf] does not depend on the rotation.
+ */
+internal class ScreenLinesStorage : LinesStorage {
+
+  private var lines: Array<TerminalLine?> = arrayOfNulls(16)
+
+  /** Line `regionTop + i` is stored in the slot `regionTop + (i + regionShift) % regionSize`. */
+  private var regionTop: Int = 0
+  private var regionSize: Int = 0
+  private var regionShift: Int = 0
+
+  override var size: Int = 0
+    private set
+
+  /** O(1) */
+  override fun get(index: Int): TerminalLine {
+    if (index < 0) {
+      throw IndexOutOfBoundsException("Negative index: $index")
+    }
+
+    if (index >= size) {
+      repeat(index - size + 1) {
+        addToBottom(TerminalLine.createEmpty())
+      }
+    }
+
+    return lines[slotOf(index)]!!
+  }
+
+  /** O(1) */
+  override fun indexOf(line: TerminalLine): Int {
+    val slot = line.mySequence
+    if (slot < 0 || slot >= size || lines[slot.toInt()] !== line) {
+      return -1
+    }
+    return indexOfSlot(slot.toInt())
+  }
+
+  /** O(size) */
+  override fun addToTop(line: TerminalLine) {
+    normalize()
+    ensureCapacity(size + 1)
+    System.arraycopy(lines, 0, lines, 1, size)
+    lines[0] = line
+    size++
+    updateSequences(0, size)
+  }
+
+  /** Amortized O(1) */
+  override fun addToBottom(line: TerminalLine) {
+    ensureCapacity(size + 1)
+    line.mySequence = size.toLong()
+    lines[size++] = line
+  }
+
+  /** O(size) */
+  override fun removeFromTop(): TerminalLine {
+    if (size == 0) {
+      throw NoSuchElementException("Storage is empty")
+    }
+    normalize()
+    val line = lines[0]!!
+    System.arraycopy(lines, 1, lines, 0, size - 1)
+    lines[--size] = null
+    updateSequences(0, size)
+    return line
+  }
+
+  /** O(1) if the bottom line is not in a scrolled region */
+  override fun removeFromBottom(): TerminalLine {
+    if (size == 0) {
+      throw NoSuchElementException("Storage is empty")
+    }
+    if (regionTop + regionSize == size) {
+      normalize()
+    }
+    val line = lines[size - 1]!!
+    lines[--size] = null
+    return line
+  }
+
+  /** O(size) */
+  override fun clear() {
+    lines.fill(null, 0, size)
+    size = 0
+    regionSize = 0
+    regionShift = 0
+  }
+
+  override fun iterator(): Iterator<TerminalLine> = object : Iterator<TerminalLine> {
+    private var index = 0
+
+    override fun hasNext(): Boolean = index < size
+
+    override fun next(): TerminalLine {
+      if (index >= size) {
+        throw NoSuchElementException()
+      }
+      return get(index++)
+    }
+  }
+
+  /**
+   * Same as [deleteLines], but scrolls the region in place:
+   * the top [count] lines of `[y, lastLine]` are removed and blank lines of [style] are added at the bottom of the region.
+   *
+   * @param removedLines receives the removed lines, new blank lines are created in this case;
+   * if null, the removed lines are reset and reused as the blank lines
+   */
+  fun scrollUp(y: Int, count: Int, lastLine: Int, style: TextStyle, width: Int, removedLines: MutableList<TerminalLine>?) {
+    val regionSize = min(lastLine, size - 1) - y + 1
+    val scrolledCount = min(count, regionSize)
+    if (scrolledCount <= 0) {
+      return
+    }
+    rotate(y, regionSize, scrolledCount)
+    for (index in y + regionSize - scrolledCount until y + regionSize) {
+      replaceWithBlankLine(index, style, width, removedLines)
+    }
+  }
+
+  /**
+   * Same as [insertLines], but scrolls the region in place:
+   * the bottom [count] lines of `[y, lastLine]` are reset and reused as blank lines of [style] at the top of the region.
+   */
+  fun scrollDown(y: Int, count: Int, lastLine: Int, style: TextStyle, width: Int) {
+    val regionSize = min(lastLine, size - 1) - y + 1
+    val scrolledCount = min(count, regionSize)
+    if (scrolledCount <= 0) {
+      return
+    }
+    rotate(y, regionSize, regionSize - scrolledCount)
+    for (index in y until y + scrolledCount) {
+      replaceWithBlankLine(index, style, width, null)
+    }
+  }
+
+  private fun replaceWithBlankLine(index: Int, style: TextStyle, width: Int, removedLines: MutableList<TerminalLine>?) {
+    val slot = slotOf(index)
+    val line = lines[slot]!!
+    // highlightings are bound to the line instance, so such lines are not reused
+    if (removedLines == null && !line.hasCustomHighlightings()) {
+      line.reset(style, width)
+      return
+    }
+    removedLines?.add(line)
+    val blankLine = TerminalLine()
+    blankLine.reset(style, width)
+    blankLine.mySequence = slot.toLong()
+    lines[slot] = blankLine
+  }
+
+  /** Rotates lines `[top, top + size)` up by [shift] */
+  private fun rotate(top: Int, size: Int, shift: Int) {
+    if (top != regionTop || size != regionSize) {
+      normalize()
+      regionTop = top
+      regionSize = size
+    }
+    regionShift = (regionShift + shift) % size
+  }
+
+  /** Moves lines of the rotated region to their slots. */
+  private fun normalize() {
+    if (regionShift != 0) {
+      reverse(regionTop, regionTop + regionShift)
+      reverse(regionTop + regionShift, regionTop + regionSize)
+      reverse(regionTop, regionTop + regionSize)
+      updateSequences(regionTop, regionTop + regionSize)
+    }
+    regionSize = 0
+    regionShift = 0
+  }
+
+  private fun reverse(from: Int, to: Int) {
+    var i = from
+    var j = to - 1
+    while (i < j) {
+      val line = lines[i]
+      lines[i++] = lines[j]
+      lines[j--] = line
+    }
+  }
+
+  private fun slotOf(index: Int): Int {
+    val offset = index - regionTop
+    return if (offset in 0 until regionSize) regionTop + (offset + regionShift) % regionSize else index
+  }
+
+  private fun indexOfSlot(slot: Int): Int {
+    val offset = slot - regionTop
+    return if (offset in 0 until regionSize) regionTop + (offset - regionShift + regionSize) % regionSize else slot
+  }
+
+  private fun updateSequences(from: Int, to: Int) {
+    for (slot in from until to) {
+      lines[slot]!!.mySequence = slot.toLong()
+    }
+  }
+
+  private fun ensureCapacity(capacity: Int) {
+    if (capacity > lines.size) {
+      lines = lines.copyOf(maxOf(capacity, lines.size * 2))
+    }
+  }
+}
@@ -48,7 +48,18 @@ public class SelectionUtil {
   public static String getSelectionText(@NotNull Point selectionStart,
                                         @NotNull Point selectionEnd,
                                         @NotNull TerminalTextBuffer terminalTextBuffer) {
+    terminalTextBuffer.readLock();
+    try {
+      return doGetSelectionText(selectionStart, selectionEnd, terminalTextBuffer);
+    }
+    finally {
+      terminalTextBuffer.readUnlock();
+    }
+  }
 
+  private static @NotNull String doGetSelectionText(@NotNull Point selectionStart,
+                                                    @NotNull Point selectionEnd,
+                                                    @NotNull TerminalTextBuffer terminalTextBuffer) {
     Pair<Point, Point> pair = sortPoints(selectionStart, selectionEnd);
     pair.getFirst().y = Math.max(pair.getFirst().y, - terminalTextBuffer.getHistoryLinesCount());
     pair = sortPoints(pair.getFirst(), pair.getSecond()); // previous line may have changed the order
@@ -59,7 +70,10 @@ public class SelectionUtil {
     final StringBuilder selectionText = new StringBuilder();
 
     for (int i = top.y; i <= bottom.y; i++) {
-      TerminalLine line = terminalTextBuffer.getLine(i);
+      TerminalLine line = terminalTextBuffer.findLine(i);
+      if (line == null) {
+        line = TerminalLine.createEmpty();
+      }
       String text = line.getText();
       if (i == top.y) {
         if (i == bottom.y) {
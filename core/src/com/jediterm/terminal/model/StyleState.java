@@ -9,6 +9,7 @@ import java.util.Objects;
 public class StyleState {
   private volatile TextStyle myCurrentStyle = TextStyle.EMPTY;
   private volatile TextStyle myDefaultStyle = TextStyle.EMPTY;
+  private final TextStyleRegistry myStyleRegistry = new TextStyleRegistry();
 
   public StyleState() {
   }
@@ -22,7 +23,7 @@ public class StyleState {
   }
 
   public void setDefaultStyle(@NotNull TextStyle defaultStyle) {
-    myDefaultStyle = defaultStyle;
+    myDefaultStyle = myStyleRegistry.intern(defaultStyle);
   }
 
   public @NotNull TerminalColor getDefaultBackground() {
@@ -33,7 +34,15 @@ public class StyleState {
     return Objects.requireNonNull(myDefaultStyle.getForeground());
   }
 
+  /**
+   * Sets the current style replacing it with the canonical instance, so that text written with equal styles
+   * shares one style object.
+   */
   public void setCurrent(@NotNull TextStyle current) {
-    myCurrentStyle = current;
+    myCurrentStyle = myStyleRegistry.intern(current);
+  }
+
+  public @NotNull TextStyleRegistry getStyleRegistry() {
+    return myStyleRegistry;
   }
 }
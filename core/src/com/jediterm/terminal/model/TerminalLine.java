@@ -1,37 +1,97 @@
 package com.jediterm.terminal.model;
 
+import com.jediterm.core.Color;
 import com.jediterm.terminal.StyledTextConsumer;
+import com.jediterm.terminal.TerminalColor;
 import com.jediterm.terminal.TextStyle;
 import com.jediterm.terminal.util.CharUtils;
-import kotlin.Pair;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
+ * A line of the terminal stored in a packed form: a flat array of chars plus style runs.
+ * <p>
+ * Cells {@code [0, myTextLength)} hold text, cells {@code [myTextLength, myLength)} are NUL (never written)
+ * and their chars are not stored at all. Styles are stored as runs: the i-th run covers cells
+ * {@code [myRunEnds[i - 1], myRunEnds[i])} and adjacent runs always have different styles.
+ * {@link TextEntry} instances are created on demand and share chars with the line, so the line's own chars
+ * are copied before the next modification (copy-on-write).
+ * <p>
+ * Lines moved to the history are trimmed and, if all their chars fit in one byte, stored as Latin-1 bytes
+ * (the same trick as compact strings in the JDK) until modified again.
+ *
  * @author traff
  */
 public final class TerminalLine {
   private static final Logger LOG = LoggerFactory.getLogger(TerminalLine.class);
 
-  private TextEntries myTextEntries = new TextEntries();
+  private static final AtomicIntegerFieldUpdater<TerminalLine> MODIFICATION_COUNT_UPDATER =
+    AtomicIntegerFieldUpdater.newUpdater(TerminalLine.class, "myModificationCount");
+
+  private static final char[] NO_CHARS = new char[0];
+  private static final int[] NO_RUN_ENDS = new int[0];
+  private static final TextStyle[] NO_RUN_STYLES = new TextStyle[0];
+
+  private static final int SERIALIZED_HEADER_SIZE = 13;
+  private static final int SERIALIZED_INLINE_STYLE_SIZE = 14;
+  private static final byte SERIALIZED_WRAPPED = 1;
+  private static final byte SERIALIZED_LATIN1 = 2;
+
+  private static volatile char[] ourNulChars = new char[256];
+
+  private char[] myChars = NO_CHARS;
+  /**
+   * Text of a compacted line, {@link #myChars} is not used while it is not null.
+   */
+  private byte[] myLatin1Chars;
+  private int myTextLength = 0;
+  private int myLength = 0;
+  private int[] myRunEnds = NO_RUN_ENDS;
+  private TextStyle[] myRunStyles = NO_RUN_STYLES;
+  private int myRunCount = 0;
+  /**
+   * True if {@link #myChars} is referenced from outside (entries, buffers passed to consumers).
+   */
+  private boolean myCharsShared = false;
+  private CharBuffer myTextBuffer;
+  /**
+   * Text of a compacted line inflated for consumers, it is kept while they reference it.
+   */
+  private WeakReference<CharBuffer> myInflatedTextBuffer;
   private boolean myWrapped = false;
-  private final List<TerminalLineIntervalHighlighting> myCustomHighlightings = new CopyOnWriteArrayList<>();
-  private final AtomicInteger myModificationCount = new AtomicInteger(0);
+  /**
+   * Set on every change of the content, used by storages keeping a serialized copy of the line.
+   */
+  private boolean myContentChanged = false;
+  /**
+   * Set when a storage keeping a serialized copy of the line drops this object, see {@link #markEvicted()}.
+   */
+  private boolean myEvicted = false;
+  private volatile List<TerminalLineIntervalHighlighting> myCustomHighlightings;
+  @SuppressWarnings("unused") // updated via MODIFICATION_COUNT_UPDATER
+  private volatile int myModificationCount = 0;
   TerminalLine myTypeAheadLine;
+  /**
+   * Sequence number assigned by the storage the line was last added to, see {@link LinesStorage#indexOf}.
+   */
+  long mySequence;
 
   public TerminalLine() {
   }
 
   public TerminalLine(@NotNull TextEntry entry) {
-    myTextEntries.add(entry);
+    appendEntry(entry);
   }
 
   public static TerminalLine createEmpty() {
@@ -39,40 +99,137 @@ public final class TerminalLine {
   }
 
   public @NotNull String getText() {
-    StringBuilder result = new StringBuilder(myTextEntries.myLength);
-    for (TerminalLine.TextEntry textEntry : myTextEntries) {
-      // NUL can only be at the end
-      if (textEntry.getText().isNul()) {
-        break;
-      }
-      result.append(textEntry.getText());
+    byte[] latin1Chars = myLatin1Chars;
+    if (latin1Chars != null) {
+      return new String(latin1Chars, 0, myTextLength, StandardCharsets.ISO_8859_1);
     }
-    return result.toString();
+    return new String(myChars, 0, myTextLength);
   }
 
   public @NotNull TerminalLine copy() {
     TerminalLine result = new TerminalLine();
-    for (TextEntry entry : myTextEntries) {
-      result.myTextEntries.add(entry);
+    if (myLatin1Chars != null) {
+      result.myLatin1Chars = Arrays.copyOf(myLatin1Chars, myTextLength);
     }
+    else if (myTextLength > 0) {
+      result.myChars = Arrays.copyOf(myChars, myTextLength);
+    }
+    result.myTextLength = myTextLength;
+    result.myLength = myLength;
+    if (myRunCount > 0) {
+      result.myRunEnds = Arrays.copyOf(myRunEnds, myRunCount);
+      result.myRunStyles = Arrays.copyOf(myRunStyles, myRunCount);
+    }
+    result.myRunCount = myRunCount;
     result.myWrapped = myWrapped;
     return result;
   }
 
+  /**
+   * @return an immutable copy of the line sharing the text with it, the line copies its text on the next modification
+   */
+  @NotNull TerminalLine snapshot() {
+    TerminalLine result = new TerminalLine();
+    if (myLatin1Chars != null) {
+      result.myLatin1Chars = myLatin1Chars;
+    }
+    else if (myTextLength > 0) {
+      result.myChars = myChars;
+      result.myCharsShared = true;
+      myCharsShared = true;
+    }
+    result.myTextLength = myTextLength;
+    result.myLength = myLength;
+    if (myRunCount > 0) {
+      result.myRunEnds = Arrays.copyOf(myRunEnds, myRunCount);
+      result.myRunStyles = Arrays.copyOf(myRunStyles, myRunCount);
+    }
+    result.myRunCount = myRunCount;
+    result.myWrapped = myWrapped;
+    result.myCustomHighlightings = myCustomHighlightings;
+    TerminalLine typeAheadLine = myTypeAheadLine;
+    result.myTypeAheadLine = typeAheadLine != null ? typeAheadLine.snapshot() : null;
+    return result;
+  }
+
+  /**
+   * @return true if the lines would be painted the same; cheap for snapshots of an unmodified line,
+   * as they share the text with it. Lines with highlightings are never considered the same,
+   * as highlightings can change without modifying the line.
+   */
+  public boolean hasSameContent(@NotNull TerminalLine other) {
+    if (myTextLength != other.myTextLength || myLength != other.myLength || myWrapped != other.myWrapped ||
+        myRunCount != other.myRunCount || hasCustomHighlightings() || other.hasCustomHighlightings()) {
+      return false;
+    }
+    if (!hasSameText(other)) {
+      return false;
+    }
+    for (int i = 0; i < myRunCount; i++) {
+      if (myRunEnds[i] != other.myRunEnds[i] || !Objects.equals(myRunStyles[i], other.myRunStyles[i])) {
+        return false;
+      }
+    }
+    TerminalLine typeAheadLine = myTypeAheadLine;
+    TerminalLine otherTypeAheadLine = other.myTypeAheadLine;
+    if (typeAheadLine == null || otherTypeAheadLine == null) {
+      return typeAheadLine == otherTypeAheadLine;
+    }
+    return typeAheadLine.hasSameContent(otherTypeAheadLine);
+  }
+
+  /**
+   * @return hash code of the content compared by {@link #hasSameContent}
+   */
+  public int getContentHash() {
+    int hash = 31 * myLength + (myWrapped ? 1 : 0);
+    byte[] latin1Chars = myLatin1Chars;
+    for (int i = 0; i < myTextLength; i++) {
+      hash = 31 * hash + (latin1Chars != null ? (char)(latin1Chars[i] & 0xFF) : myChars[i]);
+    }
+    for (int i = 0; i < myRunCount; i++) {
+      hash = 31 * (31 * hash + myRunEnds[i]) + Objects.hashCode(myRunStyles[i]);
+    }
+    TerminalLine typeAheadLine = myTypeAheadLine;
+    return typeAheadLine != null ? 31 * hash + typeAheadLine.getContentHash() : hash;
+  }
+
+  private boolean hasSameText(@NotNull TerminalLine other) {
+    byte[] latin1Chars = myLatin1Chars;
+    byte[] otherLatin1Chars = other.myLatin1Chars;
+    if (latin1Chars != null && otherLatin1Chars != null) {
+      return latin1Chars == otherLatin1Chars || Arrays.equals(latin1Chars, 0, myTextLength, otherLatin1Chars, 0, myTextLength);
+    }
+    if (latin1Chars == null && otherLatin1Chars == null) {
+      return myChars == other.myChars || Arrays.equals(myChars, 0, myTextLength, other.myChars, 0, myTextLength);
+    }
+    for (int i = 0; i < myTextLength; i++) {
+      char c = latin1Chars != null ? (char)(latin1Chars[i] & 0xFF) : myChars[i];
+      char otherC = otherLatin1Chars != null ? (char)(otherLatin1Chars[i] & 0xFF) : other.myChars[i];
+      if (c != otherC) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   public char charAt(int x) {
     TerminalLine typeAheadLine = myTypeAheadLine;
     if (typeAheadLine != null) {
       return typeAheadLine.charAt(x);
     }
-    String text = getText();
-    return x < text.length() ? text.charAt(x) : CharUtils.EMPTY_CHAR;
+    if (x < 0 || x >= myTextLength) {
+      return CharUtils.EMPTY_CHAR;
+    }
+    byte[] latin1Chars = myLatin1Chars;
+    return latin1Chars != null ? (char)(latin1Chars[x] & 0xFF) : myChars[x];
   }
 
   /**
    * @return total length of text entries.
    */
   public int length() {
-    return myTextEntries.length();
+    return myLength;
   }
 
   public boolean isWrapped() {
@@ -80,100 +237,69 @@ public final class TerminalLine {
   }
 
   public void setWrapped(boolean wrapped) {
-    myWrapped = wrapped;
+    if (myWrapped != wrapped) {
+      checkNotEvicted();
+      myWrapped = wrapped;
+      myContentChanged = true;
+    }
   }
 
   public void clear(@NotNull TextEntry filler) {
-    myTextEntries.clear();
-    myTextEntries.add(filler);
-  }
-
-  public void writeString(int x, @NotNull CharBuffer str, @NotNull TextStyle style) {
-    writeCharacters(x, style, str);
-  }
-
-  public void insertString(int x, @NotNull CharBuffer str, @NotNull TextStyle style) {
-    insertCharacters(x, style, str);
+    checkNotEvicted();
+    removeAllCells();
+    appendEntry(filler);
   }
 
-  private void writeCharacters(int x, @NotNull TextStyle style, @NotNull CharBuffer characters) {
-    int len = myTextEntries.length();
-
-    if (x >= len) {
-      // fill the gap
-      if (x - len > 0) {
-        myTextEntries.add(new TextEntry(TextStyle.EMPTY, new CharBuffer(CharUtils.NUL_CHAR, x - len)));
-      }
-      myTextEntries.add(new TextEntry(style, characters));
-    } else {
-      len = Math.max(len, x + characters.length());
-      myTextEntries = merge(x, characters, style, myTextEntries, len);
-    }
+  /**
+   * Makes the line blank: <b>width</b> NUL cells of <b>style</b>, not wrapped and without a type-ahead prediction.
+   * Lines scrolled out of a region are reset and reused instead of allocating new ones.
+   */
+  void reset(@NotNull TextStyle style, int width) {
+    checkNotEvicted();
+    removeAllCells();
+    writeCells(0, null, 0, CharUtils.NUL_CHAR, width, style);
+    myWrapped = false;
+    myTypeAheadLine = null;
   }
 
-  private void insertCharacters(int x, @NotNull TextStyle style, @NotNull CharBuffer characters) {
-    int length = myTextEntries.length();
-    if (x > length) {
-      writeCharacters(x, style, characters);
-      return;
-    }
-
-    Pair<char[], TextStyle[]> pair = toBuf(myTextEntries, length + characters.length());
-
-    for (int i = length - 1; i >= x; i--) {
-      pair.getFirst()[i + characters.length()] = pair.getFirst()[i];
-      pair.getSecond()[i + characters.length()] = pair.getSecond()[i];
-    }
-    for (int i = 0; i < characters.length(); i++) {
-      pair.getFirst()[i + x] = characters.charAt(i);
-      pair.getSecond()[i + x] = style;
-    }
-    myTextEntries = collectFromBuffer(pair.getFirst(), pair.getSecond());
+  boolean hasCustomHighlightings() {
+    List<TerminalLineIntervalHighlighting> highlightings = myCustomHighlightings;
+    return highlightings != null && !highlightings.isEmpty();
   }
 
-  private static TextEntries merge(int x, @NotNull CharBuffer str, @NotNull TextStyle style, @NotNull TextEntries entries, int lineLength) {
-    Pair<char[], TextStyle[]> pair = toBuf(entries, lineLength);
-
-    for (int i = 0; i < str.length(); i++) {
-      pair.getFirst()[i + x] = str.charAt(i);
-      pair.getSecond()[i + x] = style;
+  private void removeAllCells() {
+    myLatin1Chars = null;
+    if (myCharsShared) {
+      myChars = NO_CHARS;
+      myCharsShared = false;
     }
-
-    return collectFromBuffer(pair.getFirst(), pair.getSecond());
+    Arrays.fill(myRunStyles, 0, myRunCount, null);
+    myTextLength = 0;
+    myLength = 0;
+    myRunCount = 0;
+    onContentChanged();
   }
 
-  private static Pair<char[], TextStyle[]> toBuf(TextEntries entries, int lineLength) {
-    Pair<char[], TextStyle[]> pair = new Pair<>(new char[lineLength], new TextStyle[lineLength]);
-
-
-    int p = 0;
-    for (TextEntry entry : entries) {
-      for (int i = 0; i < entry.getLength(); i++) {
-        pair.getFirst()[p + i] = entry.getText().charAt(i);
-        pair.getSecond()[p + i] = entry.getStyle();
-      }
-      p += entry.getLength();
-    }
-    return pair;
+  public void writeString(int x, @NotNull CharBuffer str, @NotNull TextStyle style) {
+    checkNotEvicted();
+    writeCells(x, str.getBuf(), str.getStart(), CharUtils.NUL_CHAR, str.length(), style);
   }
 
-  private static TextEntries collectFromBuffer(char[] buf, @NotNull TextStyle[] styles) {
-    TextEntries result = new TextEntries();
-
-    TextStyle curStyle = styles[0];
-    int start = 0;
-
-    for (int i = 1; i < buf.length; i++) {
-      if (styles[i] != curStyle) {
-        result.add(new TextEntry(curStyle, new CharBuffer(buf, start, i - start)));
-        curStyle = styles[i];
-        start = i;
-      }
+  public void insertString(int x, @NotNull CharBuffer str, @NotNull TextStyle style) {
+    checkNotEvicted();
+    int length = myLength;
+    if (x > length) {
+      writeString(x, str, style);
+      return;
     }
-
-    result.add(new TextEntry(curStyle, new CharBuffer(buf, start, buf.length - start)));
-
-    return result;
+    int count = str.length();
+    char[] chars = new char[length + count];
+    TextStyle[] styles = new TextStyle[length + count];
+    unpack(chars, styles, 0, 0, x);
+    System.arraycopy(str.getBuf(), str.getStart(), chars, x, count);
+    Arrays.fill(styles, x, x + count, style);
+    unpack(chars, styles, x + count, x, length - x);
+    pack(chars, styles);
   }
 
   public void deleteCharacters(int x) {
@@ -181,141 +307,107 @@ public final class TerminalLine {
   }
 
   public void deleteCharacters(int x, @NotNull TextStyle style) {
-    deleteCharacters(x, myTextEntries.length() - x, style);
+    deleteCharacters(x, myLength - x, style);
   }
 
   public void deleteCharacters(int x, int count, @NotNull TextStyle style) {
-    int p = 0;
-    TextEntries newEntries = new TextEntries();
-
-    int remaining = count;
-
-    for (TextEntry entry : myTextEntries) {
-      if (remaining == 0) {
-        newEntries.add(entry);
-        continue;
-      }
-      int len = entry.getLength();
-      if (p + len <= x) {
-        p += len;
-        newEntries.add(entry);
-        continue;
-      }
-      int dx = x - p; //>=0
-      if (dx > 0) {
-        //part of entry before x
-        newEntries.add(new TextEntry(entry.getStyle(), entry.getText().subBuffer(0, dx)));
-        p = x;
-      }
-      if (dx + remaining < len) {
-        //part that left after deleting count 
-        newEntries.add(new TextEntry(entry.getStyle(), entry.getText().subBuffer(dx + remaining, len - (dx + remaining))));
-        remaining = 0;
-      } else {
-        remaining -= (len - dx);
-        p = x;
+    checkNotEvicted();
+    int from = Math.max(x, 0);
+    int to = Math.min(x + count, myLength);
+    if (from < to) {
+      if (from < myTextLength) {
+        int textTo = Math.min(to, myTextLength);
+        ensureCharsCapacity(myTextLength);
+        System.arraycopy(myChars, textTo, myChars, from, myTextLength - textTo);
+        myTextLength -= textTo - from;
       }
+      removeRunCells(from, to);
+      myLength -= to - from;
+      onContentChanged();
     }
     if (count > 0 && style != TextStyle.EMPTY) { // apply style to the end of the line
-      newEntries.add(new TextEntry(style, new CharBuffer(CharUtils.NUL_CHAR, count)));
+      writeCells(myLength, null, 0, CharUtils.NUL_CHAR, count, style);
     }
-
-    myTextEntries = newEntries;
   }
 
   public void insertBlankCharacters(int x, int count, int maxLen, @NotNull TextStyle style) {
-    int len = myTextEntries.length();
-    len = Math.min(len + count, maxLen);
-
-    char[] buf = new char[len];
-    TextStyle[] styles = new TextStyle[len];
-
-    int p = 0;
-    for (TextEntry entry : myTextEntries) {
-      for (int i = 0; i < entry.getLength() && p < len; i++) {
-        if (p == x) {
-          for (int j = 0; j < count && p < len; j++) {
-            buf[p] = CharUtils.EMPTY_CHAR;
-            styles[p] = style;
-            p++;
-          }
-        }
-        if (p < len) {
-          buf[p] = entry.getText().charAt(i);
-          styles[p] = entry.getStyle();
-          p++;
-        }
-      }
-      if (p >= len) {
-        break;
-      }
+    checkNotEvicted();
+    int length = Math.min(myLength + count, maxLen);
+    if (length <= 0) {
+      return;
     }
-
-    // if not inserted yet (ie. x > len)
-    for (; p < x && p < len; p++) {
-      buf[p] = CharUtils.EMPTY_CHAR;
-      styles[p] = TextStyle.EMPTY;
-      p++;
+    char[] chars = new char[length];
+    TextStyle[] styles = new TextStyle[length];
+    int blankStart = Math.min(x, length);
+    int blankEnd = Math.min(x + count, length);
+    unpack(chars, styles, 0, 0, Math.min(blankStart, myLength));
+    // if not inserted yet (ie. x > length)
+    if (blankStart > myLength) {
+      Arrays.fill(chars, myLength, blankStart, CharUtils.EMPTY_CHAR);
+      Arrays.fill(styles, myLength, blankStart, TextStyle.EMPTY);
     }
-    for (; p < x + count && p < len; p++) {
-      buf[p] = CharUtils.EMPTY_CHAR;
-      styles[p] = style;
-      p++;
+    Arrays.fill(chars, blankStart, blankEnd, CharUtils.EMPTY_CHAR);
+    Arrays.fill(styles, blankStart, blankEnd, style);
+    if (blankEnd < length) {
+      unpack(chars, styles, blankEnd, blankStart, length - blankEnd);
     }
-
-    myTextEntries = collectFromBuffer(buf, styles);
+    pack(chars, styles);
   }
 
   public void clearArea(int leftX, int rightX, @NotNull TextStyle style) {
+    checkNotEvicted();
     if (rightX == -1) {
-      rightX = Math.max(myTextEntries.length(), leftX);
+      rightX = Math.max(myLength, leftX);
     }
-    writeCharacters(leftX, style, new CharBuffer(
-            rightX >= myTextEntries.length() ? CharUtils.NUL_CHAR : CharUtils.EMPTY_CHAR,
-            rightX - leftX));
+    writeCells(leftX, null, 0, rightX >= myLength ? CharUtils.NUL_CHAR : CharUtils.EMPTY_CHAR,
+               rightX - leftX, style);
   }
 
   public @Nullable TextStyle getStyleAt(int x) {
-    int i = 0;
-
-    for (TextEntry te : myTextEntries) {
-      if (x >= i && x < i + te.getLength()) {
-        return te.getStyle();
-      }
-      i += te.getLength();
+    if (x < 0 || x >= myLength) {
+      return null;
     }
-
-    return null;
+    return myRunStyles[findRun(x)];
   }
 
   public void process(int y, StyledTextConsumer consumer, int startRow) {
-    int x = 0;
-    int nulIndex = -1;
-    TerminalLineIntervalHighlighting highlighting = myCustomHighlightings.stream().findFirst().orElse(null);
+    List<TerminalLineIntervalHighlighting> highlightings = myCustomHighlightings;
+    TerminalLineIntervalHighlighting highlighting = highlightings != null && !highlightings.isEmpty()
+                                                    ? highlightings.stream().findFirst().orElse(null) : null;
     TerminalLine typeAheadLine = myTypeAheadLine;
-    TextEntries textEntries = typeAheadLine != null ? typeAheadLine.myTextEntries : myTextEntries;
-    for (TextEntry te : textEntries) {
-      if (te.getText().isNul()) {
-        if (nulIndex < 0) {
-          nulIndex = x;
-        }
-        consumer.consumeNul(x, y, nulIndex, te.getStyle(), te.getText(), startRow);
-      } else {
-        if (highlighting != null && te.getLength() > 0 && highlighting.intersectsWith(x, x + te.getLength())) {
-          processIntersection(x, y, te, consumer, startRow, highlighting);
+    (typeAheadLine != null ? typeAheadLine : this).processCells(y, consumer, startRow, highlighting);
+  }
+
+  private void processCells(int y, @NotNull StyledTextConsumer consumer, int startRow,
+                            @Nullable TerminalLineIntervalHighlighting highlighting) {
+    CharBuffer text = myTextLength > 0 ? getTextBuffer() : CharBuffer.EMPTY;
+    int textLength = myTextLength;
+    int start = 0;
+    for (int i = 0; i < myRunCount; i++) {
+      int end = myRunEnds[i];
+      TextStyle style = myRunStyles[i];
+      int textEnd = Math.min(end, textLength);
+      if (start < textEnd) {
+        CharBuffer subText = new SubCharBuffer(text, start, textEnd - start);
+        if (highlighting != null && highlighting.intersectsWith(start, textEnd)) {
+          processIntersection(start, y, style, subText, consumer, startRow, highlighting);
         }
         else {
-          consumer.consume(x, y, te.getStyle(), te.getText(), startRow);
+          consumer.consume(start, y, style, subText, startRow);
         }
       }
-      x += te.getLength();
+      int nulStart = Math.max(start, textLength);
+      if (nulStart < end) {
+        consumer.consumeNul(nulStart, y, textLength, style, nulChars(end - nulStart), startRow);
+      }
+      start = end;
     }
-    consumer.consumeQueue(x, y, nulIndex < 0 ? x : nulIndex, startRow);
+    consumer.consumeQueue(myLength, y, Math.min(textLength, myLength), startRow);
   }
 
-  private void processIntersection(int startTextOffset, int y, @NotNull TextEntry te, @NotNull StyledTextConsumer consumer,
-                                   int startRow, @NotNull TerminalLineIntervalHighlighting highlighting) {
-    CharBuffer text = te.getText();
+  private void processIntersection(int startTextOffset, int y, @NotNull TextStyle style, @NotNull CharBuffer text,
+                                   @NotNull StyledTextConsumer consumer, int startRow,
+                                   @NotNull TerminalLineIntervalHighlighting highlighting) {
     int endTextOffset = startTextOffset + text.length();
     int[] offsets = new int[] {startTextOffset, endTextOffset, highlighting.getStartOffset(), highlighting.getEndOffset()};
     Arrays.sort(offsets);
@@ -324,7 +416,7 @@ public final class TerminalLine {
     if (startTextOffsetInd < 0 || endTextOffsetInd < 0) {
       LOG.error("Cannot find " + Arrays.toString(new int[] {startTextOffset, endTextOffset})
         + " in " + Arrays.toString(offsets) + ": " + Arrays.toString(new int[] {startTextOffsetInd, endTextOffsetInd}));
-      consumer.consume(startTextOffset, y, te.getStyle(), text, startRow);
+      consumer.consume(startTextOffset, y, style, text, startRow);
       return;
     }
     for (int i = startTextOffsetInd; i < endTextOffsetInd; i++) {
@@ -332,86 +424,630 @@ public final class TerminalLine {
       if (length == 0) continue;
       CharBuffer subText = new SubCharBuffer(text, offsets[i] - startTextOffset, length);
       if (highlighting.intersectsWith(offsets[i], offsets[i + 1])) {
-        consumer.consume(offsets[i], y, highlighting.mergeWith(te.getStyle()), subText, startRow);
+        consumer.consume(offsets[i], y, highlighting.mergeWith(style), subText, startRow);
       }
       else {
-        consumer.consume(offsets[i], y, te.getStyle(), subText, startRow);
+        consumer.consume(offsets[i], y, style, subText, startRow);
       }
     }
   }
 
   public boolean isNul() {
-    for (TextEntry e : myTextEntries) {
-      if (!e.isNul()) {
-        return false;
-      }
-    }
-
-    return true;
+    return myTextLength == 0;
   }
 
   public boolean isEmpty() {
-    for (TextEntry e : myTextEntries) {
-      if (!e.isNul() && e.getLength() > 0) {
-        return false;
-      }
-    }
-    return true;
+    return myTextLength == 0;
   }
 
   public boolean isNulOrEmpty() {
     return isNul() || isEmpty();
   }
 
+  /**
+   * Iterates over the line content grouped into entries of the same style, NUL cells always form separate entries.
+   * The entries are created on each call and share chars with the line.
+   */
   public void forEachEntry(@NotNull Consumer<TextEntry> action) {
-    myTextEntries.forEach(action);
+    CharBuffer text = myTextLength > 0 ? getTextBuffer() : CharBuffer.EMPTY;
+    int start = 0;
+    for (int i = 0; i < myRunCount; i++) {
+      int end = myRunEnds[i];
+      int textEnd = Math.min(end, myTextLength);
+      if (start < textEnd) {
+        action.accept(new TextEntry(myRunStyles[i], text.subBuffer(start, textEnd - start), false));
+      }
+      int nulStart = Math.max(start, myTextLength);
+      if (nulStart < end) {
+        action.accept(new TextEntry(myRunStyles[i], nulChars(end - nulStart), false));
+      }
+      start = end;
+    }
   }
 
   public @NotNull List<TextEntry> getEntries() {
-    return Collections.unmodifiableList(myTextEntries.entries());
+    List<TextEntry> entries = new ArrayList<>(myRunCount + 1);
+    forEachEntry(entries::add);
+    return Collections.unmodifiableList(entries);
   }
 
   void appendEntry(@NotNull TextEntry entry) {
-    myTextEntries.add(entry);
+    CharBuffer text = entry.getText();
+    writeCells(myLength, text.getBuf(), text.getStart(), CharUtils.NUL_CHAR, text.length(), entry.getStyle());
+  }
+
+  /**
+   * Releases spare capacity and compacts Latin-1 text, called when the line is not expected to change anymore
+   * (e.g. moved to the history).
+   */
+  void trimToSize() {
+    if (myLatin1Chars == null && myTextLength > 0 && isLatin1(myChars, myTextLength)) {
+      byte[] latin1Chars = new byte[myTextLength];
+      for (int i = 0; i < myTextLength; i++) {
+        latin1Chars[i] = (byte)myChars[i];
+      }
+      myLatin1Chars = latin1Chars;
+      myChars = NO_CHARS;
+      myCharsShared = false;
+      resetTextBuffer();
+    }
+    else if (myChars.length > myTextLength) {
+      myChars = myTextLength > 0 ? Arrays.copyOf(myChars, myTextLength) : NO_CHARS;
+      myCharsShared = false;
+      resetTextBuffer();
+    }
+    if (myRunEnds.length > myRunCount) {
+      myRunEnds = Arrays.copyOf(myRunEnds, myRunCount);
+      myRunStyles = Arrays.copyOf(myRunStyles, myRunCount);
+    }
+  }
+
+  boolean isContentChanged() {
+    return myContentChanged;
+  }
+
+  void setContentChanged(boolean contentChanged) {
+    myContentChanged = contentChanged;
+  }
+
+  /**
+   * @return true if the line was dropped by a storage keeping its serialized copy (e.g. evicted from the cache of
+   * {@link OffHeapLinesStorage}), so the line can be read, but not modified: the changes would be lost.
+   * The actual line should be got from the storage again.
+   */
+  public boolean isEvicted() {
+    return myEvicted;
+  }
+
+  void markEvicted() {
+    myEvicted = true;
+  }
+
+  private void checkNotEvicted() {
+    if (myEvicted) {
+      throw new IllegalStateException("The line is evicted from the history storage, changes would be lost");
+    }
+  }
+
+  /**
+   * @return size of the form written by {@link #serialize}, or -1 if some style of the line can be neither
+   * identified by <b>registry</b> nor written inline
+   */
+  int getSerializedSize(@NotNull TextStyleRegistry registry) {
+    int size = SERIALIZED_HEADER_SIZE + myRunCount * 8 + (isLatin1Text() ? myTextLength : myTextLength * 2);
+    for (int i = 0; i < myRunCount; i++) {
+      if (registry.getId(myRunStyles[i]) == TextStyleRegistry.NO_ID) {
+        if (!canSerializeInline(myRunStyles[i])) {
+          return -1;
+        }
+        size += SERIALIZED_INLINE_STYLE_SIZE;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Writes the line at the current position of <b>buffer</b>: flags, length, text length, run count,
+   * runs as (end, style id) pairs and the text as Latin-1 bytes or UTF-16 chars.
+   * Styles without an id (e.g. when the registry is full) are written inline after {@link TextStyleRegistry#NO_ID}.
+   * Highlightings and type-ahead predictions are not serialized.
+   */
+  void serialize(@NotNull ByteBuffer buffer, @NotNull TextStyleRegistry registry) {
+    boolean latin1 = isLatin1Text();
+    buffer.put((byte)((myWrapped ? SERIALIZED_WRAPPED : 0) | (latin1 ? SERIALIZED_LATIN1 : 0)));
+    buffer.putInt(myLength);
+    buffer.putInt(myTextLength);
+    buffer.putInt(myRunCount);
+    for (int i = 0; i < myRunCount; i++) {
+      buffer.putInt(myRunEnds[i]);
+      int styleId = registry.getId(myRunStyles[i]);
+      buffer.putInt(styleId);
+      if (styleId == TextStyleRegistry.NO_ID) {
+        serializeInline(buffer, myRunStyles[i]);
+      }
+    }
+    byte[] latin1Chars = myLatin1Chars;
+    if (latin1Chars != null) {
+      buffer.put(latin1Chars, 0, myTextLength);
+    }
+    else if (latin1) {
+      for (int i = 0; i < myTextLength; i++) {
+        buffer.put((byte)myChars[i]);
+      }
+    }
+    else {
+      for (int i = 0; i < myTextLength; i++) {
+        buffer.putChar(myChars[i]);
+      }
+    }
+  }
+
+  static @NotNull TerminalLine deserialize(@NotNull ByteBuffer buffer, @NotNull TextStyleRegistry registry) {
+    TerminalLine line = new TerminalLine();
+    byte flags = buffer.get();
+    line.myWrapped = (flags & SERIALIZED_WRAPPED) != 0;
+    line.myLength = buffer.getInt();
+    line.myTextLength = buffer.getInt();
+    int runCount = buffer.getInt();
+    if (runCount > 0) {
+      line.myRunEnds = new int[runCount];
+      line.myRunStyles = new TextStyle[runCount];
+      for (int i = 0; i < runCount; i++) {
+        line.myRunEnds[i] = buffer.getInt();
+        int styleId = buffer.getInt();
+        line.myRunStyles[i] = styleId != TextStyleRegistry.NO_ID ? registry.getStyle(styleId)
+                                                                 : registry.intern(deserializeInline(buffer));
+      }
+    }
+    line.myRunCount = runCount;
+    if (line.myTextLength > 0) {
+      if ((flags & SERIALIZED_LATIN1) != 0) {
+        line.myLatin1Chars = new byte[line.myTextLength];
+        buffer.get(line.myLatin1Chars);
+      }
+      else {
+        line.myChars = new char[line.myTextLength];
+        for (int i = 0; i < line.myTextLength; i++) {
+          line.myChars[i] = buffer.getChar();
+        }
+      }
+    }
+    return line;
+  }
+
+  private static boolean canSerializeInline(@NotNull TextStyle style) {
+    return style.getClass() == TextStyle.class && canSerializeInline(style.getForeground()) &&
+           canSerializeInline(style.getBackground());
+  }
+
+  private static boolean canSerializeInline(@Nullable TerminalColor color) {
+    return color == null || !color.isSupplied();
+  }
+
+  private static void serializeInline(@NotNull ByteBuffer buffer, @NotNull TextStyle style) {
+    buffer.putInt(style.getOptionsMask());
+    serializeInline(buffer, style.getForeground());
+    serializeInline(buffer, style.getBackground());
+  }
+
+  private static void serializeInline(@NotNull ByteBuffer buffer, @Nullable TerminalColor color) {
+    if (color == null) {
+      buffer.put((byte)0).putInt(0);
+    }
+    else if (color.isIndexed()) {
+      buffer.put((byte)1).putInt(color.getColorIndex());
+    }
+    else {
+      buffer.put((byte)2).putInt(color.toColor().getRGB());
+    }
+  }
+
+  private static @NotNull TextStyle deserializeInline(@NotNull ByteBuffer buffer) {
+    int options = buffer.getInt();
+    TextStyle.Builder builder = new TextStyle.Builder()
+      .setForeground(deserializeInlineColor(buffer))
+      .setBackground(deserializeInlineColor(buffer));
+    for (TextStyle.Option option : TextStyle.Option.values()) {
+      builder.setOption(option, (options & option.getMask()) != 0);
+    }
+    return builder.build();
+  }
+
+  private static @Nullable TerminalColor deserializeInlineColor(@NotNull ByteBuffer buffer) {
+    byte kind = buffer.get();
+    int value = buffer.getInt();
+    switch (kind) {
+      case 1:
+        return TerminalColor.index(value);
+      case 2:
+        Color color = new Color(value);
+        return TerminalColor.rgb(color.getRed(), color.getGreen(), color.getBlue());
+      default:
+        return null;
+    }
+  }
+
+  private boolean isLatin1Text() {
+    return myLatin1Chars != null || isLatin1(myChars, myTextLength);
   }
 
   int getModificationCount() {
-    return myModificationCount.get();
+    return myModificationCount;
   }
 
   void incrementAndGetModificationCount() {
-    myModificationCount.incrementAndGet();
+    MODIFICATION_COUNT_UPDATER.incrementAndGet(this);
   }
 
   @SuppressWarnings("unused") // used by IntelliJ
   public @NotNull TerminalLineIntervalHighlighting addCustomHighlighting(int startOffset, int length, @NotNull TextStyle textStyle) {
+    List<TerminalLineIntervalHighlighting> highlightings = getOrCreateCustomHighlightings();
     TerminalLineIntervalHighlighting highlighting = new TerminalLineIntervalHighlighting(this, startOffset, length, textStyle) {
       @Override
       protected void doDispose() {
-        myCustomHighlightings.remove(this);
+        highlightings.remove(this);
       }
     };
-    myCustomHighlightings.add(highlighting);
+    highlightings.add(highlighting);
     return highlighting;
   }
 
+  private synchronized @NotNull List<TerminalLineIntervalHighlighting> getOrCreateCustomHighlightings() {
+    List<TerminalLineIntervalHighlighting> highlightings = myCustomHighlightings;
+    if (highlightings == null) {
+      highlightings = new CopyOnWriteArrayList<>();
+      myCustomHighlightings = highlightings;
+    }
+    return highlightings;
+  }
+
   @Override
   public String toString() {
-    return myTextEntries.length() + " chars, " +
+    List<TextEntry> entries = getEntries();
+    return myLength + " chars, " +
         (myWrapped ? "wrapped, " : "") +
-        myTextEntries.myTextEntries.size() + " entries: " +
-        myTextEntries.myTextEntries.stream()
+        entries.size() + " entries: " +
+        entries.stream()
           .map(entry -> entry.getText().toString())
           .collect(Collectors.joining("|"));
   }
 
+  /**
+   * Overwrites cells {@code [x, x + count)} with chars from <b>src</b> (or with <b>fill</b> if <b>src</b> is null).
+   * NUL can only be at the end of the line, so written NULs followed by text and the gap between the text and
+   * <b>x</b> become spaces.
+   */
+  private void writeCells(int x, char @Nullable [] src, int srcOffset, char fill, int count, @NotNull TextStyle style) {
+    if (count <= 0) {
+      return;
+    }
+    int end = x + count;
+    int lastNonNul = -1;
+    if (src == null) {
+      if (fill != CharUtils.NUL_CHAR) {
+        lastNonNul = end - 1;
+      }
+    }
+    else {
+      for (int i = count - 1; i >= 0; i--) {
+        if (src[srcOffset + i] != CharUtils.NUL_CHAR) {
+          lastNonNul = x + i;
+          break;
+        }
+      }
+    }
+    if (lastNonNul >= 0) {
+      int textLength = Math.max(myTextLength, lastNonNul + 1);
+      int charsEnd = Math.min(end, textLength);
+      ensureCharsCapacity(textLength);
+      if (x > myTextLength) {
+        Arrays.fill(myChars, myTextLength, x, CharUtils.EMPTY_CHAR);
+      }
+      if (src == null) {
+        Arrays.fill(myChars, x, charsEnd, fill);
+      }
+      else {
+        System.arraycopy(src, srcOffset, myChars, x, charsEnd - x);
+        for (int i = x; i < charsEnd; i++) {
+          if (myChars[i] == CharUtils.NUL_CHAR) {
+            myChars[i] = CharUtils.EMPTY_CHAR;
+          }
+        }
+      }
+      myTextLength = textLength;
+    }
+    else if (end < myTextLength) {
+      ensureCharsCapacity(myTextLength);
+      Arrays.fill(myChars, x, end, CharUtils.EMPTY_CHAR);
+    }
+    else if (x < myTextLength) {
+      myTextLength = x;
+    }
+    setRunStyle(x, end, style);
+    onContentChanged();
+  }
+
+  /**
+   * Replaces the whole content with the given cells, the inverse of {@link #unpack}.
+   */
+  private void pack(char @NotNull [] chars, @NotNull TextStyle @NotNull [] styles) {
+    int textLength = chars.length;
+    while (textLength > 0 && chars[textLength - 1] == CharUtils.NUL_CHAR) {
+      textLength--;
+    }
+    for (int i = 0; i < textLength; i++) {
+      if (chars[i] == CharUtils.NUL_CHAR) {
+        chars[i] = CharUtils.EMPTY_CHAR;
+      }
+    }
+    myChars = chars;
+    myLatin1Chars = null;
+    myCharsShared = false;
+    myTextLength = textLength;
+    myLength = chars.length;
+    myRunCount = 0;
+    int start = 0;
+    for (int i = 1; i <= styles.length; i++) {
+      if (i == styles.length || styles[i] != styles[start]) {
+        appendRun(i, styles[start]);
+        start = i;
+      }
+    }
+    onContentChanged();
+  }
+
+  /**
+   * Copies <b>count</b> cells starting from <b>from</b> into the given arrays.
+   */
+  private void unpack(char @NotNull [] chars, @NotNull TextStyle @NotNull [] styles, int offset, int from, int count) {
+    if (count <= 0) {
+      return;
+    }
+    inflate();
+    int textCount = Math.max(Math.min(from + count, myTextLength) - from, 0);
+    System.arraycopy(myChars, from, chars, offset, textCount);
+    Arrays.fill(chars, offset + textCount, offset + count, CharUtils.NUL_CHAR);
+    int run = findRun(from);
+    for (int i = 0; i < count; i++) {
+      if (from + i >= myRunEnds[run]) {
+        run++;
+      }
+      styles[offset + i] = myRunStyles[run];
+    }
+  }
+
+  /**
+   * Makes {@link #myChars} writable and able to hold <b>capacity</b> chars. Screen lines have a known length
+   * (usually the terminal width), so the array is allocated for the whole line at once.
+   */
+  private void ensureCharsCapacity(int capacity) {
+    inflate();
+    if (myChars.length < capacity) {
+      int newCapacity = Math.max(capacity, Math.max(myLength, myChars.length + (myChars.length >> 1)));
+      myChars = Arrays.copyOf(myChars, newCapacity);
+      myCharsShared = false;
+    }
+    else if (myCharsShared) {
+      myChars = myChars.clone();
+      myCharsShared = false;
+    }
+  }
+
+  private @NotNull CharBuffer getTextBuffer() {
+    byte[] latin1Chars = myLatin1Chars;
+    if (latin1Chars != null) {
+      WeakReference<CharBuffer> ref = myInflatedTextBuffer;
+      CharBuffer textBuffer = ref != null ? ref.get() : null;
+      if (textBuffer == null || textBuffer.length() != myTextLength) {
+        textBuffer = new CharBuffer(inflate(latin1Chars, myTextLength), 0, myTextLength);
+        myInflatedTextBuffer = new WeakReference<>(textBuffer);
+      }
+      return textBuffer;
+    }
+    CharBuffer textBuffer = myTextBuffer;
+    if (textBuffer == null) {
+      textBuffer = new CharBuffer(myChars, 0, myTextLength);
+      myTextBuffer = textBuffer;
+      myCharsShared = true;
+    }
+    return textBuffer;
+  }
+
+  private void onContentChanged() {
+    resetTextBuffer();
+    myContentChanged = true;
+  }
+
+  private void resetTextBuffer() {
+    myTextBuffer = null;
+    myInflatedTextBuffer = null;
+  }
+
+  private void inflate() {
+    byte[] latin1Chars = myLatin1Chars;
+    if (latin1Chars != null) {
+      myChars = inflate(latin1Chars, latin1Chars.length);
+      myCharsShared = false;
+      myLatin1Chars = null;
+      resetTextBuffer();
+    }
+  }
+
+  private static char @NotNull [] inflate(byte @NotNull [] latin1Chars, int length) {
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = (char)(latin1Chars[i] & 0xFF);
+    }
+    return chars;
+  }
+
+  private static boolean isLatin1(char @NotNull [] chars, int length) {
+    for (int i = 0; i < length; i++) {
+      if (chars[i] > 0xFF) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return index of the run containing cell <b>x</b>, x should be less than {@link #myLength}
+   */
+  private int findRun(int x) {
+    int low = 0;
+    int high = myRunCount - 1;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (myRunEnds[mid] <= x) {
+        low = mid + 1;
+      }
+      else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Sets <b>style</b> for cells {@code [from, to)}, extending the line if needed. The gap between the line end
+   * and <b>from</b> gets {@link TextStyle#EMPTY}.
+   */
+  private void setRunStyle(int from, int to, @NotNull TextStyle style) {
+    if (from >= myLength) {
+      if (from > myLength) {
+        appendRun(from, TextStyle.EMPTY);
+      }
+      appendRun(to, style);
+      myLength = to;
+      return;
+    }
+    int run = findRun(from);
+    if (myRunStyles[run] == style && myRunEnds[run] >= to) {
+      return;
+    }
+    int first = splitRun(from);
+    int last = to < myLength ? splitRun(to) : myRunCount;
+    removeRuns(first + 1, last);
+    myRunEnds[first] = to;
+    myRunStyles[first] = style;
+    myLength = Math.max(myLength, to);
+    if (first + 1 < myRunCount && myRunStyles[first + 1] == style) {
+      myRunEnds[first] = myRunEnds[first + 1];
+      removeRuns(first + 1, first + 2);
+    }
+    if (first > 0 && myRunStyles[first - 1] == style) {
+      myRunEnds[first - 1] = myRunEnds[first];
+      removeRuns(first, first + 1);
+    }
+  }
+
+  /**
+   * Splits the run containing cell <b>x</b>, so that a run starts exactly at <b>x</b>.
+   *
+   * @return index of the run starting at <b>x</b>
+   */
+  private int splitRun(int x) {
+    int run = findRun(x);
+    int start = run > 0 ? myRunEnds[run - 1] : 0;
+    if (start == x) {
+      return run;
+    }
+    ensureRunsCapacity(myRunCount + 1);
+    System.arraycopy(myRunEnds, run, myRunEnds, run + 1, myRunCount - run);
+    System.arraycopy(myRunStyles, run, myRunStyles, run + 1, myRunCount - run);
+    myRunEnds[run] = x;
+    myRunCount++;
+    return run + 1;
+  }
+
+  /**
+   * Removes runs {@code [first, last)} without changing the cells covered by the remaining runs.
+   */
+  private void removeRuns(int first, int last) {
+    if (first >= last) {
+      return;
+    }
+    System.arraycopy(myRunEnds, last, myRunEnds, first, myRunCount - last);
+    System.arraycopy(myRunStyles, last, myRunStyles, first, myRunCount - last);
+    int runCount = myRunCount - (last - first);
+    Arrays.fill(myRunStyles, runCount, myRunCount, null);
+    myRunCount = runCount;
+  }
+
+  private void ensureRunsCapacity(int capacity) {
+    if (myRunEnds.length < capacity) {
+      int newCapacity = Math.max(capacity, myRunEnds.length + (myRunEnds.length >> 1) + 1);
+      myRunEnds = Arrays.copyOf(myRunEnds, newCapacity);
+      myRunStyles = Arrays.copyOf(myRunStyles, newCapacity);
+    }
+  }
+
+  private void appendRun(int end, @NotNull TextStyle style) {
+    if (myRunCount > 0 && myRunStyles[myRunCount - 1] == style) {
+      myRunEnds[myRunCount - 1] = end;
+      return;
+    }
+    ensureRunsCapacity(myRunCount + 1);
+    myRunEnds[myRunCount] = end;
+    myRunStyles[myRunCount] = style;
+    myRunCount++;
+  }
+
+  /**
+   * Removes cells {@code [from, to)} from the style runs, merging the runs that become adjacent.
+   */
+  private void removeRunCells(int from, int to) {
+    int removed = to - from;
+    int count = 0;
+    for (int i = 0; i < myRunCount; i++) {
+      int end = myRunEnds[i];
+      int newEnd = end <= from ? end : Math.max(end - removed, from);
+      int start = count > 0 ? myRunEnds[count - 1] : 0;
+      if (newEnd == start) {
+        continue; // the run is removed completely
+      }
+      if (count > 0 && myRunStyles[count - 1] == myRunStyles[i]) {
+        myRunEnds[count - 1] = newEnd;
+      }
+      else {
+        myRunEnds[count] = newEnd;
+        myRunStyles[count] = myRunStyles[i];
+        count++;
+      }
+    }
+    for (int i = count; i < myRunCount; i++) {
+      myRunStyles[i] = null;
+    }
+    myRunCount = count;
+  }
+
+  /**
+   * @return a buffer of <b>count</b> NUL chars, shared between all lines
+   */
+  private static @NotNull CharBuffer nulChars(int count) {
+    char[] nulChars = ourNulChars;
+    if (nulChars.length < count) {
+      nulChars = new char[Math.max(count, nulChars.length * 2)];
+      ourNulChars = nulChars;
+    }
+    return new CharBuffer(nulChars, 0, count);
+  }
+
   public static class TextEntry {
     private final TextStyle myStyle;
     private final CharBuffer myText;
 
     public TextEntry(@NotNull TextStyle style, @NotNull CharBuffer text) {
+      this(style, text, true);
+    }
+
+    /**
+     * @param copyText false if <b>text</b> is a part of a line or another entry, entries never modify their chars,
+     *                 so the underlying array can be shared
+     */
+    private TextEntry(@NotNull TextStyle style, @NotNull CharBuffer text, boolean copyText) {
       myStyle = style;
-      myText = text.clone();
+      myText = copyText ? text.clone() : text;
     }
 
     public TextStyle getStyle() {
@@ -435,41 +1071,4 @@ public final class TerminalLine {
       return myText.length() + " chars, style: " + myStyle + ", text: " + myText;
     }
   }
-
-  private static class TextEntries implements Iterable<TextEntry> {
-    private final List<TextEntry> myTextEntries = new ArrayList<>();
-
-    private int myLength = 0;
-
-    public void add(TextEntry entry) {
-      // NUL can only be at the end of the line
-      if (!entry.getText().isNul()) {
-        for (TextEntry t : myTextEntries) {
-          if (t.getText().isNul()) {
-            t.getText().unNullify();
-          }
-        }
-      }
-      myTextEntries.add(entry);
-      myLength += entry.getLength();
-    }
-
-    private List<TextEntry> entries() {
-      return myTextEntries;
-    }
-
-    @NotNull
-    public Iterator<TextEntry> iterator() {
-      return myTextEntries.iterator();
-    }
-
-    public int length() {
-      return myLength;
-    }
-
-    public void clear() {
-      myTextEntries.clear();
-      myLength = 0;
-    }
-  }
 }
@@ -11,8 +11,8 @@ import com.jediterm.terminal.util.CharUtils
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 import java.util.concurrent.CopyOnWriteArrayList
-import java.util.concurrent.locks.Lock
-import java.util.concurrent.locks.ReentrantLock
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.function.Supplier
 import kotlin.math.max
 import kotlin.math.min
 
@@ -24,12 +24,13 @@ import kotlin.math.min
  * it doesn't fit to screen width).
  */
 @Suppress("DEPRECATION", "removal")
-class TerminalTextBuffer internal constructor(
+class TerminalTextBuffer @JvmOverloads internal constructor(
   initialWidth: Int,
   initialHeight: Int,
   private val styleState: StyleState,
   private val maxHistoryLinesCount: Int,
-  internal val textProcessing: TextProcessing?
+  internal val textProcessing: TextProcessing?,
+  fairLock: Boolean = java.lang.Boolean.getBoolean(CHUNKED_EMULATOR_LOCK_PROPERTY)
 ) {
   var width: Int = initialWidth
     private set
@@ -58,10 +59,29 @@ class TerminalTextBuffer internal constructor(
   val historyLinesCount: Int
     get() = historyLinesStorage.size
 
+  /**
+   * Count of lines discarded from the top of the history since the buffer was created: when the history exceeds
+   * its capacity or is cleared. Rows counted with the discarded lines (e.g. of found items) don't change
+   * when lines are discarded.
+   */
+  var discardedHistoryLinesCount: Long = 0
+    private set
+
   val screenLinesCount: Int
     get() = screenLinesStorage.size
 
-  private val myLock: Lock = ReentrantLock()
+  private val screenLines: ScreenLinesStorage
+    get() = screenLinesStorage as ScreenLinesStorage
+
+  /**
+   * Writers (the emulator) take the exclusive lock via [lock] or [modify].
+   * Readers that only copy or read lines (painting, search, selection) take the shared lock via [readLock] or [read],
+   * so they don't block each other.
+   * The lock is fair only when the emulator holds it for a long time (see `ChunkedEmulatorLock`),
+   * so that the emulator can't take it again before waiting readers. Otherwise the emulator takes the lock
+   * per operation, and a fair lock would only add a queue hand-off to each of them.
+   */
+  private val myLock: ReentrantReadWriteLock = ReentrantReadWriteLock(fairLock)
 
   private var historyLinesStorageBackup: LinesStorage? = null
   private var screenLinesStorageBackup: LinesStorage? = null
@@ -78,6 +98,16 @@ class TerminalTextBuffer internal constructor(
   private val historyBufferListeners: MutableList<TerminalHistoryBufferListener> = CopyOnWriteArrayList()
   private val changesMulticaster: TextBufferChangesMulticaster = TextBufferChangesMulticaster()
 
+  // Events coalesced by the thread batching changes, see [beginChangesBatch]. Guarded by the write lock.
+  private var batchThread: Thread? = null
+  private var batchDepth: Int = 0
+  private var batchModelChanged: Boolean = false
+  private var batchHistoryLineCountChanged: Boolean = false
+  private var batchChangedFromIndex: Int = NO_CHANGED_LINES
+
+  // Rewraps history lines left in a previous width after a width change, guarded by the write lock.
+  private var historyReflow: HistoryReflow? = null
+
   @JvmOverloads
   constructor(width: Int, height: Int, styleState: StyleState, maxHistoryLinesCount: Int = LinesStorage.DEFAULT_MAX_LINES_COUNT) : this(
     width,
@@ -88,10 +118,17 @@ class TerminalTextBuffer internal constructor(
   )
 
   private fun createScreenLinesStorage(): LinesStorage {
-    return CyclicBufferLinesStorage(-1)
+    return ScreenLinesStorage()
   }
 
   private fun createHistoryLinesStorage(): LinesStorage {
+    if (java.lang.Boolean.getBoolean(OFF_HEAP_HISTORY_PROPERTY)) {
+      val useMappedFile = java.lang.Boolean.getBoolean(MAPPED_HISTORY_FILE_PROPERTY)
+      return OffHeapLinesStorage(maxHistoryLinesCount, styleState.styleRegistry, useMappedFile)
+    }
+    if (java.lang.Boolean.getBoolean(COMPRESSED_HISTORY_PROPERTY)) {
+      return CompressedLinesStorage(maxHistoryLinesCount, styleState.styleRegistry)
+    }
     return CyclicBufferLinesStorage(maxHistoryLinesCount)
   }
 
@@ -107,6 +144,8 @@ class TerminalTextBuffer internal constructor(
     val oldCursorY = oldCursor.y
 
     if (width != newWidth) {
+      // the new reflow picks up the lines left stale by the previous one
+      cancelHistoryReflow()
       val changeWidthOperation = ChangeWidthOperation(this, newWidth, newHeight)
       val cursorPoint = Point(oldCursor.x - 1, oldCursor.y - 1)
       changeWidthOperation.addPointToTrack(cursorPoint, true)
@@ -115,6 +154,10 @@ class TerminalTextBuffer internal constructor(
         changeWidthOperation.addPointToTrack(selection.end, false)
       }
       changeWidthOperation.run()
+      if (changeWidthOperation.staleHistoryLineCount > 0) {
+        historyReflow = HistoryReflow(this, historyLinesStorageOrBackup, newWidth, changeWidthOperation.staleHistoryLineCount)
+          .also { it.start() }
+      }
       width = newWidth
       height = newHeight
       val newCursor = changeWidthOperation.getTrackedPoint(cursorPoint)
@@ -124,7 +167,7 @@ class TerminalTextBuffer internal constructor(
         selection.start.setLocation(changeWidthOperation.getTrackedPoint(selection.start))
         selection.end.setLocation(changeWidthOperation.getTrackedPoint(selection.end))
       }
-      changesMulticaster.widthResized()
+      fireWidthResized()
     }
 
     val oldHeight = height
@@ -165,6 +208,7 @@ class TerminalTextBuffer internal constructor(
           val historyLinesCount = min(newHeight - oldHeight, historyLinesStorage.size)
           val removedLines = historyLinesStorage.removeFromBottom(historyLinesCount)
           screenLinesStorage.addAllToTop(removedLines)
+          shiftPendingChangedLines(removedLines.size)
           newCursorY = oldCursorY + historyLinesCount
           selection?.shiftY(historyLinesCount)
         }
@@ -205,14 +249,126 @@ class TerminalTextBuffer internal constructor(
     historyBufferListeners.remove(listener)
   }
 
+  /**
+   * Starts coalescing change events fired by the current thread, e.g. by the emulator while it processes a chunk of output.
+   * Instead of notifying listeners on every modification, [flushChangesBatch] and [endChangesBatch] deliver
+   * at most one [TerminalModelListener.modelChanged], one [TerminalHistoryBufferListener.historyBufferLineCountChanged]
+   * and one [TextBufferChangesListener.linesChanged] from the topmost changed line.
+   *
+   * Discarded history lines are reported immediately. Before history clearing, width changes and events
+   * fired by other threads, the pending events are delivered to keep the order of changes.
+   * Batches are reentrant, only one thread can batch changes at a time.
+   */
+  fun beginChangesBatch() {
+    modify {
+      val thread = Thread.currentThread()
+      check(batchThread == null || batchThread === thread) { "Changes are already batched by ${batchThread?.name}" }
+      batchThread = thread
+      batchDepth++
+    }
+  }
+
+  /**
+   * Delivers the events coalesced by the current batch, the batch remains open.
+   */
+  fun flushChangesBatch() {
+    modify {
+      firePendingChanges()
+    }
+  }
+
+  fun endChangesBatch() {
+    modify {
+      check(batchThread === Thread.currentThread()) { "Changes aren't batched by the current thread" }
+      if (--batchDepth == 0) {
+        batchThread = null
+        firePendingChanges()
+      }
+    }
+  }
+
+  private val isBatchingChanges: Boolean
+    get() = batchThread === Thread.currentThread()
+
+  private fun firePendingChanges() {
+    if (batchChangedFromIndex != NO_CHANGED_LINES) {
+      // the topmost changed line could have been discarded from the history since then
+      val fromIndex = max(batchChangedFromIndex, -historyLinesCount)
+      batchChangedFromIndex = NO_CHANGED_LINES
+      changesMulticaster.linesChanged(fromIndex)
+    }
+    if (batchHistoryLineCountChanged) {
+      batchHistoryLineCountChanged = false
+      for (historyBufferListener in historyBufferListeners) {
+        historyBufferListener.historyBufferLineCountChanged()
+      }
+    }
+    if (batchModelChanged) {
+      batchModelChanged = false
+      for (modelListener in listeners) {
+        modelListener.modelChanged()
+      }
+    }
+  }
+
+  /**
+   * Keeps the pending changed line index pointing to the same line when lines move between the screen and the history.
+   */
+  private fun shiftPendingChangedLines(delta: Int) {
+    if (batchChangedFromIndex != NO_CHANGED_LINES) {
+      batchChangedFromIndex += delta
+    }
+  }
+
   private fun fireModelChangeEvent() {
+    if (isBatchingChanges) {
+      batchModelChanged = true
+      return
+    }
+    firePendingChanges()
     for (modelListener in listeners) {
       modelListener.modelChanged()
     }
   }
 
+  private fun fireLinesChanged(fromIndex: Int) {
+    if (isBatchingChanges) {
+      batchChangedFromIndex = min(batchChangedFromIndex, fromIndex)
+      return
+    }
+    firePendingChanges()
+    changesMulticaster.linesChanged(fromIndex)
+  }
+
+  private fun fireHistoryLinesReplaced(fromIndex: Int, oldCount: Int, newCount: Int) {
+    firePendingChanges()
+    changesMulticaster.historyLinesReplaced(fromIndex, oldCount, newCount)
+  }
+
+  private fun fireHistoryCleared() {
+    firePendingChanges()
+    changesMulticaster.historyCleared()
+  }
+
+  private fun fireWidthResized() {
+    firePendingChanges()
+    changesMulticaster.widthResized()
+  }
+
+  private var lastEmptyStyleWithColors: Pair<TextStyle, TextStyle>? = null
+
+  /**
+   * Lines store styles by identity, so the same instance is reused while the current style is unchanged.
+   */
   private fun createEmptyStyleWithCurrentColor(): TextStyle {
-    return styleState.current.createEmptyWithColors()
+    val current = styleState.current
+    val last = lastEmptyStyleWithColors
+    if (last != null && last.first === current) {
+      return last.second
+    }
+    val style = styleState.styleRegistry.intern(current.createEmptyWithColors())
+    lastEmptyStyleWithColors = Pair(current, style)
+    return style
   }
 
   private fun createFillerEntry(): TextEntry {
@@ -229,7 +385,7 @@ class TerminalTextBuffer internal constructor(
     else if (count > 0) {
       screenLinesStorage[y].deleteCharacters(x, count, createEmptyStyleWithCurrentColor())
       fireModelChangeEvent()
-      changesMulticaster.linesChanged(fromIndex = y)
+      fireLinesChanged(y)
     }
   }
 
@@ -243,7 +399,7 @@ class TerminalTextBuffer internal constructor(
     else if (count > 0) { // nothing to do
       screenLinesStorage[y].insertBlankCharacters(x, count, width, createEmptyStyleWithCurrentColor())
       fireModelChangeEvent()
-      changesMulticaster.linesChanged(fromIndex = y)
+      fireLinesChanged(y)
     }
   }
 
@@ -254,7 +410,7 @@ class TerminalTextBuffer internal constructor(
   fun addLine(line: TerminalLine) {
     screenLinesStorage.addToBottom(line)
     fireModelChangeEvent()
-    changesMulticaster.linesChanged(fromIndex = screenLinesStorage.size - 1)
+    fireLinesChanged(screenLinesStorage.size - 1)
   }
 
   private fun writeString(x: Int, y: Int, str: CharBuffer, style: TextStyle) {
@@ -263,7 +419,7 @@ class TerminalTextBuffer internal constructor(
 
     textProcessing?.processHyperlinks(screenLinesStorage, line)
     fireModelChangeEvent()
-    changesMulticaster.linesChanged(fromIndex = y - 1)
+    fireLinesChanged(y - 1)
   }
 
   fun scrollArea(scrollRegionTop: Int, dy: Int, scrollRegionBottom: Int) {
@@ -274,14 +430,29 @@ class TerminalTextBuffer internal constructor(
       insertLines(scrollRegionTop - 1, dy, scrollRegionBottom)
     }
     else {
-      val deletedLines = deleteLines(scrollRegionTop - 1, -dy, scrollRegionBottom)
       if (scrollRegionTop == 1) {
-        addLinesToHistory(deletedLines)
+        addLinesToHistory(deleteLines(scrollRegionTop - 1, -dy, scrollRegionBottom))
+      }
+      else {
+        discardLines(scrollRegionTop - 1, -dy, scrollRegionBottom)
       }
       fireModelChangeEvent()
     }
   }
 
+  /**
+   * Same as [getLine], but doesn't create missing screen lines, so it can be called under the read lock.
+   *
+   * @return null if there is no such line
+   */
+  fun findLine(index: Int): TerminalLine? {
+    if (index >= 0) {
+      return if (index < min(height, screenLinesStorage.size)) screenLinesStorage[index] else null
+    }
+    val historyIndex = historyLinesCount + index
+    return if (historyIndex >= 0) historyLinesStorage[historyIndex] else null
+  }
+
   /**
    * Negative indexes are for history buffer. Non-negative for screen buffer.
    *
@@ -299,7 +470,7 @@ class TerminalTextBuffer internal constructor(
       if (index >= sizeBefore) {
         // Lines Storage creates lines up to the requested index if there were no lines.
         // So we need to report it in this case.
-        changesMulticaster.linesChanged(index)
+        fireLinesChanged(index)
       }
       return line
     }
@@ -316,16 +487,62 @@ class TerminalTextBuffer internal constructor(
    * Negative indexes are for history buffer. Non-negative for screen buffer.
    */
   fun setLineWrapped(index: Int, isWrapped: Boolean) {
-    getLine(index).isWrapped = isWrapped
-    changesMulticaster.linesChanged(fromIndex = index)
+    if (index < 0 && index >= -historyLinesCount) {
+      // the history storage indexes wrapped lines
+      historyLinesStorage.setLineWrapped(historyLinesCount + index, isWrapped)
+    }
+    else {
+      getLine(index).isWrapped = isWrapped
+    }
+    fireLinesChanged(index)
+  }
+
+  /**
+   * Negative indexes are for history buffer. Non-negative for screen buffer.
+   * A logical line spans the screen and the history when the top screen line continues the last history line.
+   *
+   * @return index of the first line of the logical line containing the line at [index]
+   */
+  fun findLogicalLineStart(index: Int): Int {
+    if (index < -historyLinesCount || index >= screenLinesStorage.size) {
+      return index
+    }
+    if (index >= 0) {
+      val screenStart = screenLinesStorage.findLogicalLineStart(index)
+      if (screenStart > 0 || historyLinesCount == 0 || !historyLinesStorage[historyLinesCount - 1].isWrapped) {
+        return screenStart
+      }
+      return historyLinesStorage.findLogicalLineStart(historyLinesCount - 1) - historyLinesCount
+    }
+    return historyLinesStorage.findLogicalLineStart(historyLinesCount + index) - historyLinesCount
+  }
+
+  /**
+   * Negative indexes are for history buffer. Non-negative for screen buffer.
+   *
+   * @return index of the last line of the logical line containing the line at [index]
+   */
+  fun findLogicalLineEnd(index: Int): Int {
+    if (index < -historyLinesCount || index >= min(height, screenLinesStorage.size)) {
+      return index
+    }
+    if (index < 0) {
+      val historyEnd = historyLinesStorage.findLogicalLineEnd(historyLinesCount + index)
+      if (historyEnd < historyLinesCount - 1 || !historyLinesStorage[historyEnd].isWrapped || screenLinesStorage.size == 0) {
+        return historyEnd - historyLinesCount
+      }
+      return min(screenLinesStorage.findLogicalLineEnd(0), height - 1)
+    }
+    return min(screenLinesStorage.findLogicalLineEnd(index), height - 1)
   }
 
   fun getScreenLines(): String {
-    myLock.lock()
+    readLock()
     try {
       val sb = StringBuilder()
       for (row in 0 until height) {
-        val line = StringBuilder(screenLinesStorage[row].text)
+        // missing lines are not created, as the buffer can't be modified under the read lock
+        val line = StringBuilder(if (row < screenLinesStorage.size) screenLinesStorage[row].text else "")
 
         for (i in line.length until width) {
           line.append(' ')
@@ -340,7 +557,7 @@ class TerminalTextBuffer internal constructor(
       return sb.toString()
     }
     finally {
-      myLock.unlock()
+      readUnlock()
     }
   }
 
@@ -348,21 +565,24 @@ class TerminalTextBuffer internal constructor(
     screenLinesStorage.processLines(yStart, yCount, consumer)
   }
 
+  /**
+   * Acquires the exclusive lock, required to modify the buffer. It's reentrant and can be held with the read lock.
+   */
   fun lock() {
-    myLock.lock()
+    myLock.writeLock().lock()
   }
 
   fun unlock() {
-    myLock.unlock()
+    myLock.writeLock().unlock()
   }
 
   fun modify(runnable: Runnable) {
-    myLock.lock()
+    lock()
     try {
       runnable.run()
     }
     finally {
-      myLock.unlock()
+      unlock()
     }
   }
 
@@ -371,7 +591,35 @@ class TerminalTextBuffer internal constructor(
   }
 
   fun tryLock(): Boolean {
-    return myLock.tryLock()
+    return myLock.writeLock().tryLock()
+  }
+
+  /** @return true if some threads wait to take the lock */
+  internal fun hasQueuedThreads(): Boolean {
+    return myLock.hasQueuedThreads()
+  }
+
+  /**
+   * Acquires the shared lock, held by readers that neither modify the buffer nor call methods that can modify it
+   * (e.g. [getLine] creates missing screen lines, use [findLine] instead).
+   * The read lock can't be upgraded: [lock] and [modify] must not be called while holding it.
+   */
+  fun readLock() {
+    myLock.readLock().lock()
+  }
+
+  fun readUnlock() {
+    myLock.readLock().unlock()
+  }
+
+  fun <T> read(reader: Supplier<T>): T {
+    readLock()
+    try {
+      return reader.get()
+    }
+    finally {
+      readUnlock()
+    }
   }
 
   fun getBuffersCharAt(x: Int, y: Int): Char {
@@ -395,10 +643,12 @@ class TerminalTextBuffer internal constructor(
     alternateBuffer = enabled
     if (enabled) {
       if (!isUsingAlternateBuffer) {
+        // the history storage of the previous alternate buffer is reused, an off-heap one keeps its segments
+        val alternateHistoryLinesStorage = historyLinesStorageBackup ?: createHistoryLinesStorage()
         screenLinesStorageBackup = screenLinesStorage
         historyLinesStorageBackup = historyLinesStorage
         screenLinesStorage = createScreenLinesStorage()
-        historyLinesStorage = createHistoryLinesStorage()
+        historyLinesStorage = alternateHistoryLinesStorage
 
         screenBufferBackup = screenBuffer
         historyBufferBackup = historyBuffer
@@ -409,10 +659,12 @@ class TerminalTextBuffer internal constructor(
     }
     else {
       if (isUsingAlternateBuffer) {
+        val alternateHistoryLinesStorage = historyLinesStorage
+        alternateHistoryLinesStorage.clear()
         screenLinesStorage = screenLinesStorageBackup!!
         historyLinesStorage = historyLinesStorageBackup!!
         screenLinesStorageBackup = createScreenLinesStorage()
-        historyLinesStorageBackup = createHistoryLinesStorage()
+        historyLinesStorageBackup = alternateHistoryLinesStorage
 
         screenBuffer = screenBufferBackup!!
         historyBuffer = historyBufferBackup!!
@@ -425,19 +677,29 @@ class TerminalTextBuffer internal constructor(
   }
 
   fun insertLines(y: Int, count: Int, scrollRegionBottom: Int) {
-    screenLinesStorage.insertLines(y, count, scrollRegionBottom - 1, createFillerEntry())
+    screenLines.scrollDown(y, count, scrollRegionBottom - 1, createEmptyStyleWithCurrentColor(), width)
     fireModelChangeEvent()
-    changesMulticaster.linesChanged(fromIndex = y)
+    fireLinesChanged(y)
   }
 
   // returns deleted lines
   fun deleteLines(y: Int, count: Int, scrollRegionBottom: Int): List<TerminalLine> {
-    val deletedLines = screenLinesStorage.deleteLines(y, count, scrollRegionBottom - 1, createFillerEntry())
+    val deletedLines = ArrayList<TerminalLine>(max(0, min(count, height)))
+    screenLines.scrollUp(y, count, scrollRegionBottom - 1, createEmptyStyleWithCurrentColor(), width, deletedLines)
     fireModelChangeEvent()
-    changesMulticaster.linesChanged(fromIndex = y)
+    fireLinesChanged(y)
     return deletedLines
   }
 
+  /**
+   * Same as [deleteLines], but the deleted lines are reused as the added blank lines.
+   */
+  fun discardLines(y: Int, count: Int, scrollRegionBottom: Int) {
+    screenLines.scrollUp(y, count, scrollRegionBottom - 1, createEmptyStyleWithCurrentColor(), width, null)
+    fireModelChangeEvent()
+    fireLinesChanged(y)
+  }
+
   fun clearLines(startRow: Int, endRow: Int) {
     val filler = createFillerEntry()
     for (ind in startRow..endRow) {
@@ -445,7 +707,7 @@ class TerminalTextBuffer internal constructor(
       setLineWrapped(ind, false)
     }
     fireModelChangeEvent()
-    changesMulticaster.linesChanged(fromIndex = startRow)
+    fireLinesChanged(startRow)
   }
 
   fun eraseCharacters(leftX: Int, rightX: Int, y: Int) {
@@ -453,7 +715,7 @@ class TerminalTextBuffer internal constructor(
     if (y >= 0) {
       screenLinesStorage[y].clearArea(leftX, rightX, style)
       fireModelChangeEvent()
-      changesMulticaster.linesChanged(fromIndex = y)
+      fireLinesChanged(y)
       if (textProcessing != null && y < height) {
         textProcessing.processHyperlinks(screenLinesStorage, getLine(y))
       }
@@ -464,17 +726,18 @@ class TerminalTextBuffer internal constructor(
   }
 
   fun clearScreenAndHistoryBuffers() {
+    cancelHistoryReflow()
     screenLinesStorage.clear()
     historyLinesStorage.clear()
     fireModelChangeEvent()
-    changesMulticaster.historyCleared()
-    changesMulticaster.linesChanged(fromIndex = 0)
+    fireHistoryCleared()
+    fireLinesChanged(0)
   }
 
   fun clearScreenBuffer() {
     screenLinesStorage.clear()
     fireModelChangeEvent()
-    changesMulticaster.linesChanged(fromIndex = 0)
+    fireLinesChanged(0)
   }
 
   /**
@@ -501,16 +764,62 @@ class TerminalTextBuffer internal constructor(
     }
   }
 
+  /**
+   * Copies the lines [processHistoryAndScreenLines] would process, so that they can be processed later
+   * without holding the lock (e.g. for painting). Should be called under the read or the write lock.
+   */
+  fun createViewportSnapshot(scrollOrigin: Int, maximalLinesToProcess: Int): TerminalViewportSnapshot {
+    val linesToProcess = if (maximalLinesToProcess < 0) {
+      historyLinesStorage.size + screenLinesStorage.size
+    }
+    else maximalLinesToProcess
+
+    val linesFromHistory = min(-scrollOrigin, linesToProcess)
+    val y = max(0, historyLinesStorage.size + scrollOrigin)
+    val historyLines = getLines(historyLinesStorage, y, linesFromHistory)
+    val screenLines = if (linesFromHistory < linesToProcess) {
+      getLines(screenLinesStorage, 0, linesToProcess - linesFromHistory)
+    }
+    else emptyList()
+    return TerminalViewportSnapshot(historyLines, y, screenLines, -linesFromHistory, discardedHistoryLinesCount)
+  }
+
+  private fun getLines(storage: LinesStorage, yStart: Int, count: Int): List<TerminalLine> {
+    val maxY = min(yStart + count, storage.size)
+    if (maxY <= yStart) {
+      return emptyList()
+    }
+    val lines = ArrayList<TerminalLine>(maxY - yStart)
+    for (y in yStart until maxY) {
+      lines.add(storage[y])
+    }
+    return lines
+  }
+
   fun clearHistory() {
     modify {
+      cancelHistoryReflow()
       val lineCount = historyLinesStorage.size
       historyLinesStorage.clear()
+      discardedHistoryLinesCount += lineCount
       if (lineCount > 0) {
         fireHistoryBufferLineCountChanged()
       }
       fireModelChangeEvent()
-      changesMulticaster.historyCleared()
-      changesMulticaster.linesChanged(fromIndex = 0)
+      fireHistoryCleared()
+      fireLinesChanged(0)
+    }
+  }
+
+  /**
+   * Clears the history and releases the resources its storages hold outside the Java heap
+   * (see `jediterm.history.offheap`). Called when the terminal is closed.
+   */
+  fun dispose() {
+    modify {
+      cancelHistoryReflow()
+      historyLinesStorage.dispose()
+      historyLinesStorageBackup?.dispose()
     }
   }
 
@@ -531,7 +840,7 @@ class TerminalTextBuffer internal constructor(
   private fun removeBottomEmptyLines(maxCount: Int): Int {
     val removedLinesCount = screenLinesStorage.removeBottomEmptyLines(maxCount)
     if (removedLinesCount > 0) {
-      changesMulticaster.linesChanged(fromIndex = screenLinesStorage.size)
+      fireLinesChanged(screenLinesStorage.size)
     }
     return removedLinesCount
   }
@@ -559,14 +868,61 @@ class TerminalTextBuffer internal constructor(
     }
     else emptyList()
 
+    for (line in linesToAdd) {
+      line.trimToSize()
+    }
+    val historySizeBefore = historyLinesStorage.size
     historyLinesStorage.addAllToBottom(linesToAdd)
+    shiftPendingChangedLines(-linesToAdd.size)
+    historyReflow?.linesDiscarded(historyLinesStorage, historySizeBefore + linesToAdd.size - historyLinesStorage.size)
 
     if (linesToDiscard.isNotEmpty()) {
+      discardedHistoryLinesCount += linesToDiscard.size
       changesMulticaster.linesDiscardedFromHistory(linesToDiscard)
     }
   }
 
+  /**
+   * Rewraps the history lines which haven't been rewrapped after the last width change yet, e.g. before exporting
+   * the whole history. After a width change, only the bottom of a long history is rewrapped immediately,
+   * the lines above are rewrapped in the background.
+   */
+  fun completeHistoryReflow() {
+    modify {
+      historyReflow?.finish()
+      historyReflow = null
+    }
+  }
+
+  private fun cancelHistoryReflow() {
+    historyReflow?.cancel()
+    historyReflow = null
+  }
+
+  /**
+   * Called by [HistoryReflow] when a chunk of history lines is rewrapped, see [TextBufferChangesListener.historyLinesReplaced]
+   * for the parameters; [discardedLineCount] lines were dropped from the top as the history exceeded its capacity.
+   */
+  internal fun historyReflowed(storage: LinesStorage, fromIndex: Int, oldCount: Int, newCount: Int,
+                               discardedLineCount: Int, staleLineCount: Int) {
+    if (historyReflow?.isDone == true) {
+      historyReflow = null
+    }
+    if (storage === historyLinesStorage) {
+      discardedHistoryLinesCount += discardedLineCount
+      fireHistoryLinesReplaced(fromIndex, oldCount, newCount)
+      fireHistoryBufferLineCountChanged()
+      fireLinesChanged(staleLineCount - historyLinesCount)
+    }
+    fireModelChangeEvent()
+  }
+
   private fun fireHistoryBufferLineCountChanged() {
+    if (isBatchingChanges) {
+      batchHistoryLineCountChanged = true
+      return
+    }
+    firePendingChanges()
     for (historyBufferListener in historyBufferListeners) {
       historyBufferListener.historyBufferLineCountChanged()
     }
@@ -583,13 +939,28 @@ class TerminalTextBuffer internal constructor(
   }
 
   private fun clearTypeAheadPredictions(storage: LinesStorage) {
-    for (line in storage) {
-      line.myTypeAheadLine = null
+    // serialized lines have no predictions
+    when (storage) {
+      is OffHeapLinesStorage -> storage.forEachLoadedLine { it.myTypeAheadLine = null }
+      is CompressedLinesStorage -> storage.forEachLoadedLine { it.myTypeAheadLine = null }
+      else -> for (line in storage) {
+        line.myTypeAheadLine = null
+      }
     }
   }
 
   companion object {
     private val LOG: Logger = LoggerFactory.getLogger(TerminalTextBuffer::class.java)
     private const val USE_CONPTY_COMPATIBLE_RESIZE = true
+    // history storage properties are read when a storage is created
+    private const val OFF_HEAP_HISTORY_PROPERTY: String = "jediterm.history.offheap"
+    private const val MAPPED_HISTORY_FILE_PROPERTY: String = "jediterm.history.offheap.mmap"
+    private const val COMPRESSED_HISTORY_PROPERTY: String = "jediterm.history.compressed"
+    /**
+     * Makes the emulator thread hold the buffer lock per chunk of output instead of per operation,
+     * buffers created with it have a fair lock (see `ChunkedEmulatorLock`).
+     */
+    const val CHUNKED_EMULATOR_LOCK_PROPERTY: String = "jediterm.emulator.chunked.lock"
+    private const val NO_CHANGED_LINES: Int = Int.MAX_VALUE
   }
 }
\ No newline at end of file
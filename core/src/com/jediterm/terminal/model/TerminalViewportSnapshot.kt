@@ -0,0 +1,90 @@
+package com.jediterm.terminal.model
+
+import com.jediterm.terminal.StyledTextConsumer
+import java.util.BitSet
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Immutable copy of the lines visible in the viewport: the scrolled history slice followed by the screen lines.
+ * Lines share their text with the buffer lines until those are modified, so taking a snapshot is cheap,
+ * and the snapshot can be processed without holding the text buffer lock.
+ *
+ * Snapshots can be compared row by row (see [getChangedRows]) to repaint only the rows changed since the last paint.
+ *
+ * @param historySourceLines buffer lines of the history slice, copied on creation
+ * @param screenSourceLines buffer lines of the screen, copied on creation
+ * @see TerminalTextBuffer.createViewportSnapshot
+ */
+class TerminalViewportSnapshot internal constructor(
+  private val historySourceLines: List<TerminalLine>,
+  private val firstHistoryLineIndex: Int,
+  private val screenSourceLines: List<TerminalLine>,
+  private val screenStartRow: Int,
+  /** See [TerminalTextBuffer.discardedHistoryLinesCount] */
+  val discardedHistoryLinesCount: Long
+) {
+  private val historyLines: List<TerminalLine> = historySourceLines.map { it.snapshot() }
+  private val screenLines: List<TerminalLine> = screenSourceLines.map { it.snapshot() }
+
+  /** Row of the first snapshot line counted from the top of the history, the snapshot rows follow it. */
+  val firstBufferRow: Int
+    get() = firstHistoryLineIndex
+
+  /** Number of viewport rows covered by the snapshot, some of them may have no line. */
+  val rowCount: Int
+    get() = max(historyLines.size, screenLines.size - screenStartRow)
+
+  /**
+   * Same as [TerminalTextBuffer.processHistoryAndScreenLines] for the buffer state the snapshot was taken from.
+   */
+  fun processLines(consumer: StyledTextConsumer) {
+    processLines(consumer, 0, rowCount)
+  }
+
+  /**
+   * Processes only the lines of rows `[fromRow, toRow)`.
+   */
+  fun processLines(consumer: StyledTextConsumer, fromRow: Int, toRow: Int) {
+    for (row in max(fromRow, 0) until min(toRow, historyLines.size)) {
+      historyLines[row].process(firstHistoryLineIndex + row, consumer, firstHistoryLineIndex)
+    }
+    for (ind in max(fromRow + screenStartRow, 0) until min(toRow + screenStartRow, screenLines.size)) {
+      screenLines[ind].process(ind, consumer, screenStartRow)
+    }
+  }
+
+  /**
+   * @return rows whose content differs from the same rows of [other], e.g. of the snapshot painted last time
+   */
+  fun getChangedRows(other: TerminalViewportSnapshot): BitSet {
+    val changedRows = BitSet()
+    for (row in 0 until max(rowCount, other.rowCount)) {
+      // rows without a line are painted as empty lines
+      val line = getLine(row) ?: EMPTY_LINE
+      val otherLine = other.getLine(row) ?: EMPTY_LINE
+      if (!line.hasSameContent(otherLine)) {
+        changedRows.set(row)
+      }
+    }
+    return changedRows
+  }
+
+  /**
+   * @return the copy of the line shown in [row], see [TerminalLine.hasSameContent]
+   */
+  fun getLine(row: Int): TerminalLine? {
+    return historyLines.getOrNull(row) ?: screenLines.getOrNull(row + screenStartRow)
+  }
+
+  /**
+   * @return the buffer line [row] was copied from, it identifies the line across snapshots while it stays in the buffer
+   */
+  fun getSourceLine(row: Int): TerminalLine? {
+    return historySourceLines.getOrNull(row) ?: screenSourceLines.getOrNull(row + screenStartRow)
+  }
+
+  private companion object {
+    val EMPTY_LINE: TerminalLine = TerminalLine.createEmpty()
+  }
+}
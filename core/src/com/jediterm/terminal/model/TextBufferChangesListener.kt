@@ -22,6 +22,16 @@ interface TextBufferChangesListener {
    */
   fun linesDiscardedFromHistory(lines: List<TerminalLine>) {}
 
+  /**
+   * [oldCount] history lines starting at [fromIndex] were replaced with [newCount] lines, e.g. when the history
+   * is rewrapped in the background after a width change. Lines below the replaced ones keep their indexes,
+   * lines above them are shifted by `oldCount - newCount`. If the history has become longer than its capacity,
+   * the topmost lines were discarded.
+   *
+   * @param fromIndex index of the first replaced line in the Text Buffer before the change, negative as for [linesChanged].
+   */
+  fun historyLinesReplaced(fromIndex: Int, oldCount: Int, newCount: Int) {}
+
   /**
    * All lines were removed from the history buffer.
    * For example, in a result of `clear` (ED - Erase in Display), or RIS (Reset to the Initial State) escape sequence.
@@ -25,6 +25,12 @@ internal class TextBufferChangesMulticaster : TextBufferChangesListener {
     }
   }
 
+  override fun historyLinesReplaced(fromIndex: Int, oldCount: Int, newCount: Int) {
+    forEachListeners {
+      it.historyLinesReplaced(fromIndex, oldCount, newCount)
+    }
+  }
+
   override fun historyCleared() {
     forEachListeners {
       it.historyCleared()
@@ -0,0 +1,73 @@
+package com.jediterm.terminal.model;
+
+import com.jediterm.terminal.TextStyle;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps equal text styles to one canonical instance with a small integer id, so that styles can be compared
+ * by reference and stored as ids.
+ * <p>
+ * Only plain {@link TextStyle} instances are interned: subclasses (e.g. {@link com.jediterm.terminal.HyperlinkStyle})
+ * carry extra state not taken into account by {@link TextStyle#equals}. The number of registered styles is bounded,
+ * when the limit is reached new styles are returned as is and have no id.
+ */
+public final class TextStyleRegistry {
+  public static final int NO_ID = -1;
+
+  private static final int DEFAULT_CAPACITY = 4096;
+
+  private final int myCapacity;
+  private final Map<TextStyle, Integer> myIds = new HashMap<>();
+  private final List<TextStyle> myStyles = new ArrayList<>();
+
+  public TextStyleRegistry() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public TextStyleRegistry(int capacity) {
+    myCapacity = capacity;
+    register(TextStyle.EMPTY);
+  }
+
+  /**
+   * @return the canonical instance equal to <b>style</b>, or <b>style</b> itself if it cannot be interned
+   */
+  public synchronized @NotNull TextStyle intern(@NotNull TextStyle style) {
+    int id = getId(style);
+    return id != NO_ID ? myStyles.get(id) : style;
+  }
+
+  /**
+   * @return id of the style equal to <b>style</b> registering it if needed, or {@link #NO_ID} if it cannot be interned
+   */
+  public synchronized int getId(@NotNull TextStyle style) {
+    Integer id = myIds.get(style);
+    if (id != null) {
+      return id;
+    }
+    if (style.getClass() != TextStyle.class || myStyles.size() >= myCapacity) {
+      return NO_ID;
+    }
+    return register(style);
+  }
+
+  public synchronized @NotNull TextStyle getStyle(int id) {
+    return myStyles.get(id);
+  }
+
+  public synchronized int size() {
+    return myStyles.size();
+  }
+
+  private int register(@NotNull TextStyle style) {
+    int id = myStyles.size();
+    myStyles.add(style);
+    myIds.put(style, id);
+    return id;
+  }
+}
@@ -0,0 +1,152 @@
+package com.jediterm.terminal.model
+
+/**
+ * Wrapped flags of the lines of a storage packed into a bit deque, so that a storage can find boundaries
+ * of logical lines (see [LinesStorage.findLogicalLineStart]) without accessing the lines,
+ * which means decoding them for serialized storages. Runs of wrapped lines are skipped by 64 flags at once.
+ *
+ * The flags are recorded when lines are added, so a wrapped flag of a stored line has to be changed
+ * via [LinesStorage.setLineWrapped].
+ */
+internal class WrappedLinesIndex {
+  private var words: LongArray = LongArray(1)
+
+  /** Position of the first flag in [words] */
+  private var head: Int = 0
+
+  var size: Int = 0
+    private set
+
+  private val mask: Int
+    get() = words.size * Long.SIZE_BITS - 1
+
+  operator fun get(index: Int): Boolean {
+    val position = (head + index) and mask
+    return words[position ushr 6] and (1L shl position) != 0L
+  }
+
+  operator fun set(index: Int, wrapped: Boolean) {
+    val position = (head + index) and mask
+    val word = position ushr 6
+    words[word] = if (wrapped) words[word] or (1L shl position) else words[word] and (1L shl position).inv()
+  }
+
+  fun addFirst(wrapped: Boolean) {
+    ensureCapacity(size + 1)
+    head = (head - 1) and mask
+    size++
+    this[0] = wrapped
+  }
+
+  fun addLast(wrapped: Boolean) {
+    ensureCapacity(size + 1)
+    size++
+    this[size - 1] = wrapped
+  }
+
+  fun removeFirst() {
+    head = (head + 1) and mask
+    size--
+  }
+
+  fun removeLast() {
+    size--
+  }
+
+  /**
+   * Replaces [count] flags starting at [index] with [flags], the flags on the shorter side of the range are moved.
+   */
+  fun replace(index: Int, count: Int, flags: BooleanArray) {
+    val delta = flags.size - count
+    ensureCapacity(size + delta)
+    if (index < size - index - count) {
+      move(0, index, -delta)
+      head = (head - delta) and mask
+    }
+    else {
+      move(index + count, size - index - count, delta)
+    }
+    size += delta
+    for (i in flags.indices) {
+      this[index + i] = flags[i]
+    }
+  }
+
+  /**
+   * Moves [length] flags starting at [from] by [shift] positions, the index may become negative (before the head).
+   */
+  private fun move(from: Int, length: Int, shift: Int) {
+    if (shift < 0) {
+      for (ind in from until from + length) {
+        this[ind + shift] = this[ind]
+      }
+    }
+    else if (shift > 0) {
+      for (ind in from + length - 1 downTo from) {
+        this[ind + shift] = this[ind]
+      }
+    }
+  }
+
+  fun clear() {
+    head = 0
+    size = 0
+  }
+
+  /**
+   * @return index of the first line of the logical line containing the line at [index]
+   */
+  fun findLogicalLineStart(index: Int): Int {
+    var ind = index - 1
+    while (ind >= 0) {
+      val position = (head + ind) and mask
+      val bit = position and 63
+      // flags of the word up to the line, the lower bits of the word may precede the head
+      val notWrapped = words[position ushr 6].inv() and (-1L ushr (63 - bit))
+      if (notWrapped != 0L) {
+        ind -= bit - (63 - java.lang.Long.numberOfLeadingZeros(notWrapped))
+        break
+      }
+      ind -= bit + 1
+    }
+    return maxOf(ind, -1) + 1
+  }
+
+  /**
+   * @return index of the last line of the logical line containing the line at [index]
+   */
+  fun findLogicalLineEnd(index: Int): Int {
+    var ind = index
+    while (ind < size - 1) {
+      val position = (head + ind) and mask
+      val bit = position and 63
+      val notWrapped = words[position ushr 6].inv() ushr bit
+      if (notWrapped != 0L) {
+        ind += java.lang.Long.numberOfTrailingZeros(notWrapped)
+        break
+      }
+      ind += 64 - bit
+    }
+    return minOf(ind, size - 1)
+  }
+
+  private fun ensureCapacity(capacity: Int) {
+    if (capacity <= words.size * Long.SIZE_BITS) {
+      return
+    }
+    val old = words
+    val oldMask = mask
+    var wordCount = old.size * 2
+    while (wordCount * Long.SIZE_BITS < capacity) {
+      wordCount *= 2
+    }
+    words = LongArray(wordCount)
+    for (ind in 0 until size) {
+      val position = (head + ind) and oldMask
+      if (old[position ushr 6] and (1L shl position) != 0L) {
+        words[ind ushr 6] = words[ind ushr 6] or (1L shl ind)
+      }
+    }
+    head = 0
+  }
+}
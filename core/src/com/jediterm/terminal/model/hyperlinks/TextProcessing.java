@@ -92,11 +92,12 @@ public class TextProcessing {
       String lineStr = lineInfo.getLine();
       if (lineStr == null) return;
       int terminalWidth = myTerminalTextBuffer.getWidth();
-      if (lineInfo.myTerminalWidth == terminalWidth) {
+      if (lineInfo.myTerminalWidth == terminalWidth && !lineInfo.hasEvictedLines()) {
         applyLinkResults(resultItems, lineInfo, lineStr);
       }
       else if (attemptNumber < MAX_RESCHEDULING_ATTEMPTS) {
-        // All `TerminalLine` instances are re-created by `ChangeWidthOperation`.
+        // All `TerminalLine` instances are re-created by `ChangeWidthOperation`,
+        // and history lines evicted from a serialized storage are materialized again (see `TerminalLine.isEvicted`).
         // Therefore, `TerminalLine` instances referenced by the `lineInfo` are not in the text buffer,
         // and we need to find new lines and reschedule hyperlinks highlighting.
         List<List<TerminalLine>> matchedWrappedLines = new TerminalLineFinder(myTerminalTextBuffer, lineStr)
@@ -119,14 +120,14 @@ public class TextProcessing {
       if (updatedLineInd == -1) {
         // When lines arrive fast enough, the line might be pushed to the history buffer already.
         LinesStorage historyLinesStorage = myTerminalTextBuffer.getHistoryLinesStorage();
-        updatedLineInd = findHistoryLineInd(historyLinesStorage, updatedLine);
+        updatedLineInd = historyLinesStorage.indexOf(updatedLine);
         if (updatedLineInd == -1) {
           LOG.debug("Cannot find line for links processing");
           return null;
         }
         linesStorage = historyLinesStorage;
       }
-      int startLineInd = findStartLineInd(linesStorage, updatedLineInd);
+      int startLineInd = linesStorage.findLogicalLineStart(updatedLineInd);
       List<TerminalLine> linesToProcess = collectLines(linesStorage, startLineInd, updatedLineInd);
       return new LineInfoImpl(linesToProcess, myTerminalTextBuffer.getWidth());
     }
@@ -146,14 +147,6 @@ public class TextProcessing {
     return result;
   }
 
-  private int findStartLineInd(@NotNull LinesStorage linesStorage, int lineInd) {
-    int startLineInd = lineInd;
-    while (startLineInd > 0 && linesStorage.get(startLineInd - 1).isWrapped()) {
-      startLineInd--;
-    }
-    return startLineInd;
-  }
-
   private void applyLinkResults(@NotNull List<LinkResultItem> linkResultItems,
                                 @NotNull TextProcessing.LineInfoImpl lineInfo,
                                 @NotNull String lineStr) {
@@ -194,16 +187,6 @@ public class TextProcessing {
     myHyperlinkListeners.add(listener);
   }
 
-  private int findHistoryLineInd(@NotNull LinesStorage historyLinesStorage, @NotNull TerminalLine line) {
-    int lastLineInd = Math.max(0, historyLinesStorage.getSize() - 200); // check only last lines in history buffer
-    for (int i = historyLinesStorage.getSize() - 1; i >= lastLineInd; i--) {
-      if (historyLinesStorage.get(i) == line) {
-        return i;
-      }
-    }
-    return -1;
-  }
-
   public void addHyperlinkFilter(@NotNull HyperlinkFilter filter) {
     addAsyncHyperlinkFilter(new AsyncHyperlinkFilter() {
       @Override
@@ -271,6 +254,15 @@ public class TextProcessing {
       myTerminalWidth = terminalWidth;
     }
 
+    private boolean hasEvictedLines() {
+      for (TerminalLine line : myLinesToProcess) {
+        if (line.isEvicted()) {
+          return true;
+        }
+      }
+      return false;
+    }
+
     private boolean isUpToDate() {
       boolean isUpToDate = this.isUpToDate;
       if (isUpToDate) {
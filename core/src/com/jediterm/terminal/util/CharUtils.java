@@ -32,23 +32,43 @@ public class CharUtils {
   public static byte[] VT102_RESPONSE = makeCode(ESC, '[', '?', '6', 'c');
 
   public static String getNonControlCharacters(int maxChars, char[] buf, int offset, int charsLength) {
-    int len = Math.min(maxChars, charsLength);
-
-    final int origLen = len;
-    char tmp;
-    while (len > 0) {
-      tmp = buf[offset++];
-      if (0x20 <= tmp) { //stop when we reach control chars
-        len--;
-        continue;
-      }
-      offset--;
-      break;
+    return new String(buf, offset, countNonControlCharacters(maxChars, buf, offset, charsLength));
+  }
+
+  /**
+   * @return length of the run of non-control characters starting at <b>offset</b>, but not more than <b>maxChars</b>
+   */
+  public static int countNonControlCharacters(int maxChars, char[] buf, int offset, int charsLength) {
+    int end = offset + Math.min(maxChars, charsLength);
+    int i = offset;
+    while (i < end && buf[i] >= 0x20) { //stop when we reach control chars
+      i++;
     }
+    return i - offset;
+  }
 
-    int length = origLen - len;
+  public static boolean isPrintableAscii(char[] buf, int offset, int length) {
+    for (int i = offset, end = offset + length; i < end; i++) {
+      char c = buf[i];
+      if (c < 0x20 || c >= 0x7f) {
+        return false;
+      }
+    }
+    return true;
+  }
 
-    return new String(buf, offset - length, length);
+  /**
+   * Cheap conservative check: code points below U+0300 neither decompose in NFC nor combine with preceding characters.
+   *
+   * @return true if the range is known to be in NFC, false if {@link java.text.Normalizer} should be consulted
+   */
+  public static boolean isNormalizedNFC(char[] buf, int offset, int length) {
+    for (int i = offset, end = offset + length; i < end; i++) {
+      if (buf[i] >= 0x300) {
+        return false;
+      }
+    }
+    return true;
   }
 
   public static int countDoubleWidthCharacters(char[] buf, int start, int length, boolean ambiguousIsDWC) {
@@ -3,11 +3,13 @@ package com.jediterm;
 import com.jediterm.core.compatibility.Point;
 import com.jediterm.core.util.TermSize;
 import com.jediterm.terminal.RequestOrigin;
+import com.jediterm.terminal.TerminalMode;
 import com.jediterm.terminal.model.*;
 import com.jediterm.util.BackBufferDisplay;
 import com.jediterm.util.TestSession;
 import junit.framework.TestCase;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -425,4 +427,68 @@ public class BufferResizeTest extends TestCase {
 
     session.assertCursorPosition(1, 4);
   }
+
+  public void testLongHistoryIsRewrappedToNewWidth() {
+    TestSession session = new TestSession(10, 5);
+    TerminalTextBuffer textBuffer = session.getTerminalTextBuffer();
+    JediTerminal terminal = session.getTerminal();
+    terminal.setModeEnabled(TerminalMode.AutoWrap, true);
+
+    for (int i = 0; i < 2000; i++) {
+      terminal.writeUnwrappedString(String.format("line%06d_____", i));
+      terminal.crnl();
+    }
+    assertEquals(3996, textBuffer.getHistoryLinesCount());
+    terminal.resize(new TermSize(20, 5), RequestOrigin.User);
+    textBuffer.completeHistoryReflow();
+
+    LinesStorage historyBuffer = textBuffer.getHistoryLinesStorage();
+    assertEquals(1996, historyBuffer.getSize());
+    for (int i = 0; i < historyBuffer.getSize(); i++) {
+      TerminalLine line = historyBuffer.get(i);
+      assertEquals(String.format("line%06d_____", i), line.getText());
+      assertFalse(line.isWrapped());
+    }
+    assertEquals("line001996_____     \n", textBuffer.getScreenLines().substring(0, 21));
+  }
+
+  public void testHistoryReflowReportsReplacedLines() {
+    TestSession session = new TestSession(10, 5);
+    TerminalTextBuffer textBuffer = session.getTerminalTextBuffer();
+    JediTerminal terminal = session.getTerminal();
+    terminal.setModeEnabled(TerminalMode.AutoWrap, true);
+
+    for (int i = 0; i < 2000; i++) {
+      terminal.writeUnwrappedString(String.format("line%06d_____", i));
+      terminal.crnl();
+    }
+    terminal.resize(new TermSize(20, 5), RequestOrigin.User);
+    List<int[]> replacements = new ArrayList<>();
+    int historyLineCount;
+    textBuffer.lock();
+    try {
+      historyLineCount = textBuffer.getHistoryLinesCount();
+      textBuffer.addChangesListener(new TextBufferChangesListener() {
+        @Override
+        public void historyLinesReplaced(int fromIndex, int oldCount, int newCount) {
+          replacements.add(new int[]{fromIndex, oldCount, newCount, textBuffer.getHistoryLinesCount()});
+        }
+      });
+    }
+    finally {
+      textBuffer.unlock();
+    }
+    TerminalLine lastHistoryLine = textBuffer.getLine(-1);
+    textBuffer.completeHistoryReflow();
+
+    for (int[] replacement : replacements) {
+      int fromIndex = replacement[0], oldCount = replacement[1], newCount = replacement[2];
+      assertTrue(fromIndex + oldCount <= 0);
+      // the lines below the replaced ones keep their indexes
+      assertEquals(historyLineCount + newCount - oldCount, replacement[3]);
+      historyLineCount = replacement[3];
+    }
+    assertEquals(historyLineCount, textBuffer.getHistoryLinesCount());
+    assertSame(lastHistoryLine, textBuffer.getLine(-1));
+  }
 }
@@ -148,6 +148,16 @@ public class EmulatorTest extends EmulatorTestAbstract {
     ));
   }
 
+  public void testDoubleWidthCharacterNotFittingLineEnd() throws IOException {
+    TestSession session = new TestSession(5, 3);
+    session.process("abcd\u751f\u6d3bx\u001b]0;Title\u0007");
+    assertScreenLines(session, List.of(
+      "abcd ",
+      "\u751f\uE000\u6d3b\uE000x"
+    ));
+    Assert.assertEquals("Title", session.getDisplay().getWindowTitle());
+  }
+
   public void testClear() throws IOException {
     TestSession session = new TestSession(10, 5);
     session.process(String.join("", List.of(
@@ -120,6 +120,15 @@ public class StyledTextTest extends TestCase {
     Assert.assertEquals(boldStyle, textBuffer.getStyleAt(0, 2)); // baz
   }
 
+  public void testOptionsResetIndividually() throws IOException {
+    TerminalTextBuffer terminalTextBuffer = getBufferFor(12, 1, CSI + "1;3;7mab" + CSI + "22;27mcd");
+    TextStyle style = terminalTextBuffer.getStyleAt(0, 0);
+    assertEquals(EnumSet.of(TextStyle.Option.BOLD, TextStyle.Option.ITALIC, TextStyle.Option.INVERSE), style.getOptions());
+    TextStyle resetStyle = terminalTextBuffer.getStyleAt(2, 0);
+    assertEquals(TextStyle.Option.ITALIC.getMask(), resetStyle.getOptionsMask());
+    assertFalse(resetStyle.hasAnyOption(TextStyle.Option.BOLD.getMask() | TextStyle.Option.INVERSE.getMask()));
+  }
+
   private @NotNull TerminalTextBuffer getBufferFor(int width, int height, String content) throws IOException {
     StyleState state = new StyleState();
     TerminalTextBuffer terminalTextBuffer = new TerminalTextBuffer(width, height, state);
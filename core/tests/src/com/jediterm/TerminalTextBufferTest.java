@@ -1,15 +1,26 @@
 package com.jediterm;
 
 import com.jediterm.terminal.StyledTextConsumerAdapter;
+import com.jediterm.terminal.TerminalMode;
 import com.jediterm.terminal.TextStyle;
 import com.jediterm.terminal.model.CharBuffer;
 import com.jediterm.terminal.model.JediTerminal;
 import com.jediterm.terminal.model.StyleState;
 import com.jediterm.terminal.model.TerminalTextBuffer;
+import com.jediterm.terminal.model.TextBufferChangesListener;
+import com.jediterm.terminal.model.TerminalViewportSnapshot;
+import com.jediterm.util.ArrayBasedTextConsumer;
 import com.jediterm.util.BackBufferDisplay;
 import junit.framework.TestCase;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * @author traff
  */
@@ -389,4 +400,149 @@ public class TerminalTextBufferTest extends TestCase {
     assertEquals("生\uE000活\uE000習\uE000慣\uE000病\uE000\n" +
             "          \n", terminalTextBuffer.getScreenLines());
   }
+
+  public void testViewportSnapshotIsNotAffectedByLaterChanges() {
+    StyleState state = new StyleState();
+
+    TerminalTextBuffer terminalTextBuffer = new TerminalTextBuffer(5, 2, state);
+
+    JediTerminal terminal = new JediTerminal(new BackBufferDisplay(terminalTextBuffer), terminalTextBuffer, state);
+
+    terminal.writeString("line1");
+    terminal.newLine();
+    terminal.carriageReturn();
+    terminal.writeString("line2");
+    terminal.newLine();
+    terminal.carriageReturn();
+    terminal.writeString("abc");
+
+    TerminalViewportSnapshot snapshot = terminalTextBuffer.createViewportSnapshot(-1, 2);
+    terminal.cursorPosition(1, 1);
+    terminal.writeString("xyz");
+    terminal.cursorPosition(1, 2);
+    terminal.newLine();
+
+    ArrayBasedTextConsumer textConsumer = new ArrayBasedTextConsumer(2, 5);
+    snapshot.processLines(textConsumer);
+    assertEquals("line1\n" +
+      "line2\n", textConsumer.getLines());
+  }
+
+  public void testViewportSnapshotChangedRows() {
+    StyleState state = new StyleState();
+
+    TerminalTextBuffer terminalTextBuffer = new TerminalTextBuffer(10, 4, state);
+
+    JediTerminal terminal = new JediTerminal(new BackBufferDisplay(terminalTextBuffer), terminalTextBuffer, state);
+
+    terminal.writeString("progress");
+    terminal.newLine();
+    terminal.carriageReturn();
+    terminal.writeString("10%");
+
+    TerminalViewportSnapshot painted = terminalTextBuffer.createViewportSnapshot(0, 4);
+    assertTrue(terminalTextBuffer.createViewportSnapshot(0, 4).getChangedRows(painted).isEmpty());
+
+    terminal.carriageReturn();
+    terminal.writeString("20%");
+    terminal.cursorPosition(1, 4);
+    terminal.writeString("x");
+
+    TerminalViewportSnapshot snapshot = terminalTextBuffer.createViewportSnapshot(0, 4);
+    assertEquals("{1, 3}", snapshot.getChangedRows(painted).toString());
+
+    ArrayBasedTextConsumer textConsumer = new ArrayBasedTextConsumer(4, 10);
+    snapshot.processLines(textConsumer, 1, 2);
+    assertEquals("          \n" +
+      "20%       \n" +
+      "          \n" +
+      "          \n", textConsumer.getLines());
+  }
+
+  public void testReadLockIsSharedBetweenReaders() throws Exception {
+    StyleState state = new StyleState();
+    state.setCurrent(TextStyle.EMPTY);
+    TerminalTextBuffer terminalTextBuffer = new TerminalTextBuffer(10, 3, state);
+    terminalTextBuffer.writeString(0, 1, new CharBuffer("abc"));
+
+    terminalTextBuffer.readLock();
+    try {
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try {
+        // another reader isn't blocked, a writer is
+        assertEquals("abc", executor.submit(() -> terminalTextBuffer.read(() -> terminalTextBuffer.findLine(0).getText()))
+          .get(5, TimeUnit.SECONDS));
+        assertFalse(executor.submit(terminalTextBuffer::tryLock).get(5, TimeUnit.SECONDS));
+      }
+      finally {
+        executor.shutdown();
+      }
+    }
+    finally {
+      terminalTextBuffer.readUnlock();
+    }
+    assertTrue(terminalTextBuffer.tryLock());
+    terminalTextBuffer.unlock();
+  }
+
+  public void testChangesBatchCoalescesEvents() {
+    StyleState state = new StyleState();
+    TerminalTextBuffer terminalTextBuffer = new TerminalTextBuffer(10, 3, state);
+    JediTerminal terminal = new JediTerminal(new BackBufferDisplay(terminalTextBuffer), terminalTextBuffer, state);
+    AtomicInteger modelChanges = new AtomicInteger();
+    List<Integer> changedLines = new ArrayList<>();
+    terminalTextBuffer.addModelListener(modelChanges::incrementAndGet);
+    terminalTextBuffer.addChangesListener(new TextBufferChangesListener() {
+      @Override
+      public void linesChanged(int fromIndex) {
+        changedLines.add(fromIndex);
+      }
+    });
+
+    terminalTextBuffer.beginChangesBatch();
+    for (int i = 1; i <= 5; i++) {
+      terminal.writeString("line" + i);
+      terminal.newLine();
+      terminal.carriageReturn();
+    }
+    assertEquals(0, modelChanges.get());
+    assertEquals(List.of(), changedLines);
+
+    terminalTextBuffer.flushChangesBatch();
+    assertEquals(1, modelChanges.get());
+    // the first written line has been scrolled to the history
+    assertEquals(List.of(-3), changedLines);
+
+    terminal.writeString("end");
+    terminalTextBuffer.endChangesBatch();
+    assertEquals(2, modelChanges.get());
+    assertEquals(List.of(-3, 1), changedLines);
+
+    // changes are delivered immediately when not batched
+    terminal.writeString("!");
+    assertEquals(3, modelChanges.get());
+  }
+
+  public void testFindLogicalLineAcrossHistoryAndScreen() {
+    StyleState state = new StyleState();
+    TerminalTextBuffer terminalTextBuffer = new TerminalTextBuffer(5, 3, state);
+    JediTerminal terminal = new JediTerminal(new BackBufferDisplay(terminalTextBuffer), terminalTextBuffer, state);
+    terminal.setModeEnabled(TerminalMode.AutoWrap, true);
+    terminal.writeUnwrappedString("a".repeat(22));
+    terminal.newLine();
+    terminal.carriageReturn();
+    terminal.writeString("xy");
+
+    assertEquals(3, terminalTextBuffer.getHistoryLinesCount());
+    assertEquals(-3, terminalTextBuffer.findLogicalLineStart(1));
+    assertEquals(-3, terminalTextBuffer.findLogicalLineStart(-1));
+    assertEquals(1, terminalTextBuffer.findLogicalLineEnd(-3));
+    assertEquals(1, terminalTextBuffer.findLogicalLineEnd(0));
+    assertEquals(2, terminalTextBuffer.findLogicalLineStart(2));
+    assertEquals(2, terminalTextBuffer.findLogicalLineEnd(2));
+
+    terminalTextBuffer.setLineWrapped(-2, false);
+    assertEquals(-1, terminalTextBuffer.findLogicalLineStart(1));
+    assertEquals(-2, terminalTextBuffer.findLogicalLineEnd(-3));
+  }
 }
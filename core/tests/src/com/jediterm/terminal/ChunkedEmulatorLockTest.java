@@ -0,0 +1,62 @@
+package com.jediterm.terminal;
+
+import com.jediterm.terminal.model.LinesStorage;
+import com.jediterm.terminal.model.StyleState;
+import com.jediterm.terminal.model.TerminalTextBuffer;
+import junit.framework.TestCase;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ChunkedEmulatorLockTest extends TestCase {
+  public void testReleasedOverCharsBudget() {
+    TerminalTextBuffer textBuffer = new TerminalTextBuffer(10, 3, new StyleState());
+    EmulatorLockMetrics metrics = new EmulatorLockMetrics();
+    ChunkedEmulatorLock lock = new ChunkedEmulatorLock(textBuffer, metrics, 60_000, 100);
+
+    lock.acquire(0);
+    lock.acquire(50);
+    assertTrue(lock.isHeld());
+    assertFalse(lock.isOverBudget(99));
+    assertTrue(lock.isOverBudget(100));
+    lock.release(120);
+    assertFalse(lock.isHeld());
+
+    assertEquals(1, metrics.getAcquireCount());
+    assertEquals(120, metrics.getProcessedChars());
+    assertTrue(textBuffer.tryLock());
+    textBuffer.unlock();
+  }
+
+  public void testWaitingReaderGoesBeforeReacquiring() throws Exception {
+    // the buffer lock is fair in the chunked mode
+    TerminalTextBuffer textBuffer = new TerminalTextBuffer(10, 3, new StyleState(), LinesStorage.DEFAULT_MAX_LINES_COUNT,
+                                                           null, true);
+    ChunkedEmulatorLock lock = new ChunkedEmulatorLock(textBuffer, new EmulatorLockMetrics(), 60_000, 100);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      lock.acquire(0);
+      AtomicBoolean readDone = new AtomicBoolean();
+      Future<?> reader = executor.submit(() -> {
+        textBuffer.read(() -> {
+          readDone.set(true);
+          return null;
+        });
+      });
+      // wait until the reader waits for the lock
+      while (!textBuffer.hasQueuedThreads$core()) {
+        Thread.onSpinWait();
+      }
+      lock.release(100);
+      lock.acquire(100);
+      assertTrue(readDone.get());
+      lock.release(100);
+      reader.get();
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package com.jediterm.terminal.model;
+
+import com.jediterm.terminal.TextStyle;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+public class ChangeWidthOperationTest extends TestCase {
+  public void testParallelRewrapMatchesSequential() throws Exception {
+    TerminalTextBuffer textBuffer = new TerminalTextBuffer(30, 10, new StyleState());
+    Random random = new Random(42);
+    List<TerminalLine> lines = new ArrayList<>();
+    for (int i = 0; i < 50_000; i++) {
+      int length = random.nextInt(4) == 0 ? 0 : 1 + random.nextInt(30);
+      TerminalLine line = length == 0 ? TerminalLine.createEmpty()
+                                      : new TerminalLine(new TerminalLine.TextEntry(TextStyle.EMPTY, new CharBuffer('a', length)));
+      // long runs of wrapped lines make partitions end far from the middle
+      line.setWrapped(length == 30 || random.nextInt(i % 10_000 < 100 ? 1000 : 3) != 0);
+      lines.add(line);
+    }
+    lines.get(lines.size() - 1).setWrapped(false);
+
+    List<String> expected = describe(ChangeWidthOperation.rewrap(textBuffer, lines, 17));
+    // called outside of a pool, the lines are rewrapped in the dedicated one
+    assertEquals(expected, describe(ChangeWidthOperation.rewrapInParallel(textBuffer, lines, 17)));
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      List<TerminalLine> actual = pool.submit(() -> ChangeWidthOperation.rewrapInParallel(textBuffer, lines, 17)).get();
+      assertEquals(expected, describe(actual));
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+  private static List<String> describe(List<TerminalLine> lines) {
+    return lines.stream().map(line -> line.getText() + (line.isWrapped() ? "+" : "")).collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,145 @@
+package com.jediterm.terminal.model
+
+import com.jediterm.terminal.HyperlinkStyle
+import com.jediterm.terminal.TerminalColor
+import com.jediterm.terminal.TextStyle
+import com.jediterm.terminal.model.hyperlinks.LinkInfo
+import com.jediterm.util.CharBufferUtil
+import junit.framework.TestCase
+import java.util.concurrent.ConcurrentLinkedQueue
+import kotlin.random.Random
+
+class CompressedLinesStorageTest : TestCase() {
+  private val registry = TextStyleRegistry()
+  private val red = registry.intern(TextStyle(TerminalColor.index(1), null))
+
+  fun `test lines are restored from compressed blocks`() {
+    val storage = createStorage(maxCapacity = 100)
+    for (i in 0 until 50) {
+      storage.addToBottom(terminalLine("line $i 世", red).also { it.isWrapped = i % 2 == 0 })
+    }
+
+    assertEquals(50, storage.size)
+    for (i in 0 until 50) {
+      val line = storage[i]
+      assertEquals("line $i 世", line.text)
+      assertSame(red, line.getStyleAt(0))
+      assertEquals(i % 2 == 0, line.isWrapped)
+    }
+  }
+
+  fun `test modified lines are compressed again`() {
+    val storage = createStorage(maxCapacity = 100)
+    for (i in 0 until 30) {
+      storage.addToBottom(terminalLine("line $i"))
+    }
+    storage[0].writeString(0, CharBufferUtil.create("LINE"), red)
+    storage[10]
+
+    assertEquals("LINE 0", storage[0].text)
+    assertSame(red, storage[0].getStyleAt(0))
+  }
+
+  fun `test compressed lines are not modifiable`() {
+    val storage = createStorage(maxCapacity = 100)
+    val link = terminalLine("link", HyperlinkStyle(TextStyle.EMPTY, LinkInfo {}))
+    val line = terminalLine("line")
+    storage.addToBottom(link)
+    storage.addToBottom(line)
+    for (i in 0 until 30) {
+      storage.addToBottom(terminalLine("line $i"))
+    }
+
+    assertTrue(line.isEvicted)
+    assertFalse(link.isEvicted)
+    try {
+      line.clearArea(0, -1, red)
+      fail("A compressed line is modified")
+    }
+    catch (_: IllegalStateException) {
+    }
+    assertFalse(storage[1].isEvicted)
+    assertEquals("line", storage[1].text)
+  }
+
+  fun `test overflow and removal across tiers`() {
+    val storage = createStorage(maxCapacity = 20)
+    for (i in 0 until 1000) {
+      storage.addToBottom(terminalLine("line $i"))
+    }
+
+    assertEquals(20, storage.size)
+    assertEquals("line 980", storage[0].text)
+    assertEquals("line 980", storage.removeFromTop().text)
+    repeat(10) {
+      storage.removeFromBottom()
+    }
+    assertEquals("line 989", storage.removeFromBottom().text)
+    storage.addToTop(terminalLine("top"))
+    assertEquals(listOf("top") + (981 until 989).map { "line $it" }, storage.getLineTexts())
+  }
+
+  fun `test lines added to top of compressed tier`() {
+    val storage = createStorage(maxCapacity = -1)
+    for (i in 0 until 20) {
+      storage.addToBottom(terminalLine("line $i"))
+    }
+    for (i in 0 until 10) {
+      storage.addToTop(terminalLine("top $i"))
+    }
+    for (i in 0 until 20) {
+      storage.addToBottom(terminalLine("bottom $i"))
+    }
+
+    val expected = (9 downTo 0).map { "top $it" } + (0 until 20).map { "line $it" } + (0 until 20).map { "bottom $it" }
+    assertEquals(expected, storage.getLineTexts())
+    for (index in listOf(0, 5, 15, 49)) {
+      assertEquals(index, storage.indexOf(storage[index]))
+    }
+  }
+
+  fun `test concurrent reads`() {
+    val storage = createStorage(maxCapacity = -1)
+    for (i in 0 until 2000) {
+      storage.addToBottom(terminalLine("line $i"))
+    }
+    // readers holding the shared buffer lock read the storage at the same time
+    val failures = ConcurrentLinkedQueue<String>()
+    val readers = (0 until 4).map { reader ->
+      Thread {
+        val random = Random(reader)
+        repeat(20_000) {
+          val index = random.nextInt(2000)
+          val text = try {
+            storage[index].text
+          }
+          catch (e: Exception) {
+            e.toString()
+          }
+          if (text != "line $index") {
+            failures.add("$index: $text")
+          }
+        }
+      }
+    }
+    readers.forEach { it.start() }
+    readers.forEach { it.join() }
+    assertEquals(emptyList<String>(), failures.toList())
+  }
+
+  fun `test lines with hyperlinks are kept as objects`() {
+    val storage = createStorage(maxCapacity = 100)
+    val link = terminalLine("link", HyperlinkStyle(TextStyle.EMPTY, LinkInfo {}))
+    storage.addToBottom(link)
+    for (i in 0 until 30) {
+      storage.addToBottom(terminalLine("line $i"))
+    }
+
+    assertEquals(0, storage.indexOf(link))
+    assertSame(link, storage[0])
+  }
+
+  private fun createStorage(maxCapacity: Int): CompressedLinesStorage {
+    return CompressedLinesStorage(maxCapacity, registry, hotLinesCount = 4, blockSize = 8, decodedBlocksCount = 1)
+  }
+}
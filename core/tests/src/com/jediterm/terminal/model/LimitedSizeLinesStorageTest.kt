@@ -158,6 +158,25 @@ class LimitedSizeLinesStorageTest : TestCase() {
     assertEquals(lines[2], storage[0])
   }
 
+  fun `test index of lines`() {
+    val storage = createStorage(2)
+    val removed = terminalLine("removed")
+    storage.addToBottom(removed)
+    for (line in lines) {
+      storage.addToBottom(line)
+    }
+    val top = terminalLine("top")
+    storage.removeFromTop()
+    storage.addToTop(top)
+
+    assertEquals(-1, storage.indexOf(removed))
+    assertEquals(-1, storage.indexOf(lines[0]))
+    assertEquals(-1, storage.indexOf(lines[1]))
+    assertEquals(0, storage.indexOf(top))
+    assertEquals(1, storage.indexOf(lines[2]))
+    assertEquals(-1, createStorage(5).indexOf(top))
+  }
+
   fun `test clear lines`() {
     val storage = createStorage(5)
     for (line in lines) {
@@ -1,7 +1,10 @@
 package com.jediterm.terminal.model
 
+import com.jediterm.terminal.HyperlinkStyle
 import com.jediterm.terminal.TextStyle
+import com.jediterm.terminal.model.hyperlinks.LinkInfo
 import junit.framework.TestCase
+import kotlin.random.Random
 
 class LinesStorageOperationsTest : TestCase() {
   private val lines = listOf(
@@ -399,8 +402,75 @@ class LinesStorageOperationsTest : TestCase() {
     )
   }
 
+  //--------------- Replace lines -----------------------------------------------------------------
+
+  fun `test replace lines`() {
+    val storage = createScreenLinesStorage(lines)
+
+    storage.replace(1, 2, listOf(terminalLine("new1"), terminalLine("new2"), terminalLine("new3")))
+    val expected = """
+      line1
+      new1
+      new2
+      new3
+      line4
+    """.trimIndent()
+    assertEquals(expected, storage.getLinesAsString())
+  }
+
+  fun `test replace lines in history storages`() {
+    val registry = TextStyleRegistry()
+    val link = HyperlinkStyle(TextStyle.EMPTY, LinkInfo {})
+    val storages = listOf(
+      CyclicBufferLinesStorage(-1) to -1,
+      CyclicBufferLinesStorage(300) to 300,
+      OffHeapLinesStorage(300, registry, segmentSize = 256, cacheSize = 8) to 300,
+      CompressedLinesStorage(-1, registry, hotLinesCount = 4, blockSize = 8, decodedBlocksCount = 2) to -1,
+      CompressedLinesStorage(300, registry, hotLinesCount = 4, blockSize = 8, decodedBlocksCount = 2) to 300,
+    )
+    for ((storage, maxCapacity) in storages) {
+      val random = Random(42)
+      val expected = ArrayList<Pair<String, Boolean>>()
+      var nextLine = 0
+      fun newLine(): TerminalLine {
+        val text = "line ${nextLine++}"
+        // lines with hyperlinks aren't serialized
+        val line = if (random.nextInt(10) == 0) terminalLine(text, link) else terminalLine(text)
+        line.isWrapped = random.nextInt(4) != 0
+        return line
+      }
+      repeat(150) {
+        storage.addToBottom(newLine().also { expected.add(it.text to it.isWrapped) })
+      }
+      repeat(300) {
+        val index = random.nextInt(expected.size + 1)
+        val count = random.nextInt(minOf(expected.size - index, 40) + 1)
+        val newLines = List(random.nextInt(60)) { newLine() }
+        expected.subList(index, index + count).clear()
+        expected.addAll(index, newLines.map { it.text to it.isWrapped })
+        while (maxCapacity >= 0 && expected.size > maxCapacity) {
+          expected.removeAt(0)
+        }
+        storage.replace(index, count, newLines)
+
+        val description = "${storage.javaClass.simpleName}($maxCapacity)"
+        assertEquals(description, expected.map { it.first }, storage.getLineTexts())
+        if (expected.isEmpty()) return@repeat
+        repeat(10) {
+          val ind = random.nextInt(expected.size)
+          assertEquals(description, ind, storage.indexOf(storage[ind]))
+          var end = ind
+          while (end < expected.size - 1 && expected[end].second) {
+            end++
+          }
+          assertEquals(description, end, storage.findLogicalLineEnd(ind))
+        }
+      }
+    }
+  }
+
   private fun createScreenLinesStorage(lines: List<TerminalLine>): LinesStorage {
-    val storage = CyclicBufferLinesStorage(-1)
+    val storage = ScreenLinesStorage()
     storage.addAllToBottom(lines)
     return storage
   }
@@ -0,0 +1,169 @@
+package com.jediterm.terminal.model
+
+import com.jediterm.terminal.HyperlinkStyle
+import com.jediterm.terminal.TerminalColor
+import com.jediterm.terminal.TextStyle
+import com.jediterm.terminal.model.hyperlinks.LinkInfo
+import com.jediterm.util.CharBufferUtil
+import junit.framework.TestCase
+import java.util.concurrent.ConcurrentLinkedQueue
+import kotlin.random.Random
+
+class OffHeapLinesStorageTest : TestCase() {
+  private val registry = TextStyleRegistry()
+  private val red = registry.intern(TextStyle(TerminalColor.index(1), null))
+
+  fun `test lines are restored after eviction from cache`() {
+    val storage = createStorage(maxCapacity = 100)
+    for (i in 0 until 50) {
+      storage.addToBottom(terminalLine("line $i 世", red).also { it.isWrapped = i % 2 == 0 })
+    }
+
+    assertEquals(50, storage.size)
+    for (i in 0 until 50) {
+      val line = storage[i]
+      assertEquals("line $i 世", line.text)
+      assertSame(red, line.getStyleAt(0))
+      assertEquals(i % 2 == 0, line.isWrapped)
+    }
+  }
+
+  fun `test modified lines are stored again on eviction`() {
+    val storage = createStorage(maxCapacity = 100)
+    for (i in 0 until 10) {
+      storage.addToBottom(terminalLine("line $i"))
+    }
+    storage[0].writeString(0, CharBufferUtil.create("LINE"), red)
+    for (i in 1 until 10) {
+      storage[i]
+    }
+
+    assertEquals("LINE 0", storage[0].text)
+    assertSame(red, storage[0].getStyleAt(0))
+  }
+
+  fun `test evicted lines are not modifiable`() {
+    val storage = createStorage(maxCapacity = 100)
+    for (i in 0 until 10) {
+      storage.addToBottom(terminalLine("line $i"))
+    }
+    val evicted = storage[0]
+    for (i in 1 until 10) {
+      storage[i]
+    }
+
+    assertTrue(evicted.isEvicted)
+    assertEquals("line 0", evicted.text)
+    try {
+      evicted.writeString(0, CharBufferUtil.create("LINE"), red)
+      fail("An evicted line is modified")
+    }
+    catch (_: IllegalStateException) {
+    }
+    assertFalse(storage[0].isEvicted)
+    assertEquals("line 0", storage[0].text)
+  }
+
+  fun `test overflow and removal`() {
+    val storage = createStorage(maxCapacity = 20)
+    for (i in 0 until 1000) {
+      storage.addToBottom(terminalLine("line $i"))
+    }
+
+    assertEquals(20, storage.size)
+    assertEquals("line 980", storage[0].text)
+    assertEquals("line 999", storage.removeFromBottom().text)
+    assertEquals("line 980", storage.removeFromTop().text)
+    storage.addToTop(terminalLine("top"))
+    assertEquals(listOf("top") + (981 until 999).map { "line $it" }, storage.getLineTexts())
+  }
+
+  fun `test lines with hyperlinks are kept on heap`() {
+    val storage = createStorage(maxCapacity = 100)
+    val link = terminalLine("link", HyperlinkStyle(TextStyle.EMPTY, LinkInfo {}))
+    storage.addToBottom(link)
+    for (i in 0 until 10) {
+      storage.addToBottom(terminalLine("line $i"))
+    }
+
+    assertSame(link, storage[0])
+    assertEquals(0, storage.indexOf(link))
+  }
+
+  fun `test styles without id are stored inline`() {
+    val storage = OffHeapLinesStorage(100, TextStyleRegistry(1), segmentSize = 256, cacheSize = 1)
+    val style = TextStyle.Builder()
+      .setForeground(TerminalColor.rgb(10, 20, 30))
+      .setBackground(TerminalColor.index(4))
+      .setOption(TextStyle.Option.BOLD, true)
+      .build()
+    storage.addToBottom(terminalLine("truecolor", style))
+    storage.addToBottom(terminalLine("next"))
+
+    val line = storage[0]
+    assertEquals("truecolor", line.text)
+    assertEquals(style, line.getStyleAt(0))
+    assertNotSame(style, line.getStyleAt(0))
+  }
+
+  fun `test concurrent reads`() {
+    val storage = createStorage(maxCapacity = -1)
+    for (i in 0 until 2000) {
+      storage.addToBottom(terminalLine("line $i"))
+    }
+    // readers holding the shared buffer lock read the storage at the same time
+    val failures = ConcurrentLinkedQueue<String>()
+    val readers = (0 until 4).map { reader ->
+      Thread {
+        val random = Random(reader)
+        repeat(20_000) {
+          val index = random.nextInt(2000)
+          val text = try {
+            storage[index].text
+          }
+          catch (e: Exception) {
+            e.toString()
+          }
+          if (text != "line $index") {
+            failures.add("$index: $text")
+          }
+        }
+      }
+    }
+    readers.forEach { it.start() }
+    readers.forEach { it.join() }
+    assertEquals(emptyList<String>(), failures.toList())
+  }
+
+  fun `test mapped file storage`() {
+    val storage = createStorage(maxCapacity = -1, useMappedFile = true)
+    for (i in 0 until 100) {
+      storage.addToBottom(terminalLine("line $i"))
+    }
+    assertEquals((0 until 100).map { "line $it" }, storage.getLineTexts())
+
+    storage.clear()
+    assertEquals(0, storage.size)
+    storage.addToBottom(terminalLine("after clear"))
+    assertEquals("after clear", storage[0].text)
+  }
+
+  fun `test disposed storage keeps lines on heap`() {
+    val storage = createStorage(maxCapacity = -1, useMappedFile = true)
+    for (i in 0 until 100) {
+      storage.addToBottom(terminalLine("line $i"))
+    }
+
+    storage.dispose()
+    assertEquals(0, storage.size)
+    val lines = (0 until 10).map { terminalLine("after dispose $it") }
+    lines.forEach { storage.addToBottom(it) }
+    for (i in 0 until 10) {
+      assertSame(lines[i], storage[i])
+    }
+  }
+
+  private fun createStorage(maxCapacity: Int, useMappedFile: Boolean = false): OffHeapLinesStorage {
+    return OffHeapLinesStorage(maxCapacity, registry, useMappedFile, segmentSize = 256, cacheSize = 4)
+  }
+}
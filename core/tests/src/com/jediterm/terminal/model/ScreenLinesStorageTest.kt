@@ -0,0 +1,75 @@
+package com.jediterm.terminal.model
+
+import com.jediterm.terminal.TextStyle
+import junit.framework.TestCase
+import kotlin.random.Random
+
+class ScreenLinesStorageTest : TestCase() {
+  fun `test scrolling regions matches generic line operations`() {
+    val random = Random(42)
+    val storage = ScreenLinesStorage()
+    val expected = CyclicBufferLinesStorage(-1)
+    for (i in 0 until 10) {
+      storage.addToBottom(terminalLine("line $i"))
+      expected.addToBottom(terminalLine("line $i"))
+    }
+
+    repeat(500) { step ->
+      val y = random.nextInt(12)
+      val lastLine = y + random.nextInt(-1, 12)
+      val count = random.nextInt(1, 4)
+      when (random.nextInt(6)) {
+        0 -> {
+          storage.scrollDown(y, count, lastLine, TextStyle.EMPTY, 4)
+          expected.insertLines(y, count, lastLine, createFillerEntry(4))
+        }
+        1 -> {
+          storage.scrollUp(y, count, lastLine, TextStyle.EMPTY, 4, null)
+          expected.deleteLines(y, count, lastLine, createFillerEntry(4))
+        }
+        2 -> {
+          val removed = ArrayList<TerminalLine>()
+          storage.scrollUp(y, count, lastLine, TextStyle.EMPTY, 4, removed)
+          val expectedRemoved = expected.deleteLines(y, count, lastLine, createFillerEntry(4))
+          assertEquals(expectedRemoved.map { it.text }, removed.map { it.text })
+        }
+        3 -> {
+          storage.addToTop(terminalLine("top $step"))
+          expected.addToTop(terminalLine("top $step"))
+          assertEquals(expected.removeFromBottom().text, storage.removeFromBottom().text)
+        }
+        4 -> {
+          storage.addToBottom(terminalLine("bottom $step"))
+          expected.addToBottom(terminalLine("bottom $step"))
+          assertEquals(expected.removeFromTop().text, storage.removeFromTop().text)
+        }
+        else -> {
+          val index = random.nextInt(storage.size)
+          storage[index].writeString(0, CharBuffer("step $step"), TextStyle.EMPTY)
+          expected[index].writeString(0, CharBuffer("step $step"), TextStyle.EMPTY)
+        }
+      }
+      assertEquals(expected.getLineTexts(), storage.getLineTexts())
+      for (index in 0 until storage.size) {
+        assertEquals(index, storage.indexOf(storage[index]))
+      }
+    }
+  }
+
+  fun `test scrolled out lines are reused`() {
+    val storage = ScreenLinesStorage()
+    val lines = (0 until 5).map { terminalLine("line $it") }
+    storage.addAllToBottom(lines)
+
+    storage.scrollUp(1, 1, 3, TextStyle.EMPTY, 4, null)
+    assertEquals(listOf("line 0", "line 2", "line 3", "", "line 4"), storage.getLineTexts())
+    assertSame(lines[1], storage[3])
+    assertEquals(3, storage.indexOf(lines[1]))
+    assertFalse(lines[1].isWrapped)
+
+    val removed = ArrayList<TerminalLine>()
+    storage.scrollUp(0, 1, 4, TextStyle.EMPTY, 4, removed)
+    assertEquals(listOf(lines[0]), removed)
+    assertEquals(-1, storage.indexOf(lines[0]))
+  }
+}
@@ -0,0 +1,70 @@
+package com.jediterm.terminal.model;
+
+import com.jediterm.terminal.TextStyle;
+import com.jediterm.terminal.util.CharUtils;
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class TerminalLineTest extends TestCase {
+  private static final TextStyle BOLD = new TextStyle.Builder().setOption(TextStyle.Option.BOLD, true).build();
+  private static final TextStyle ITALIC = new TextStyle.Builder().setOption(TextStyle.Option.ITALIC, true).build();
+
+  public void testOverwriteSplitsAndCoalescesStyles() {
+    TerminalLine line = new TerminalLine(new TerminalLine.TextEntry(TextStyle.EMPTY, new CharBuffer(CharUtils.NUL_CHAR, 10)));
+    line.writeString(0, new CharBuffer("abcdef"), BOLD);
+    line.writeString(2, new CharBuffer("XY"), ITALIC);
+    assertEquals("abXYef", line.getText());
+    assertEquals(10, line.length());
+    assertEquals(List.of("ab", "XY", "ef", "\0\0\0\0"), entryTexts(line));
+    assertSame(ITALIC, line.getStyleAt(3));
+    assertSame(TextStyle.EMPTY, line.getStyleAt(9));
+    assertNull(line.getStyleAt(10));
+
+    line.writeString(2, new CharBuffer("cd"), BOLD);
+    assertEquals(List.of("abcdef", "\0\0\0\0"), entryTexts(line));
+  }
+
+  public void testWriteAfterEndFillsGapWithSpaces() {
+    TerminalLine line = new TerminalLine();
+    line.writeString(0, new CharBuffer("ab"), BOLD);
+    line.writeString(5, new CharBuffer("c"), ITALIC);
+    assertEquals("ab   c", line.getText());
+    assertSame(TextStyle.EMPTY, line.getStyleAt(3));
+    assertEquals(' ', line.charAt(2));
+    assertEquals(CharUtils.EMPTY_CHAR, line.charAt(100));
+  }
+
+  public void testDeleteAndInsertBlankCharacters() {
+    TerminalLine line = new TerminalLine();
+    line.writeString(0, new CharBuffer("abcdef"), BOLD);
+    line.deleteCharacters(1, 2, ITALIC);
+    assertEquals("adef", line.getText());
+    assertEquals(List.of("adef", "\0\0"), entryTexts(line));
+    assertSame(ITALIC, line.getStyleAt(5));
+
+    line.insertBlankCharacters(1, 2, 7, TextStyle.EMPTY);
+    assertEquals("a  def", line.getText());
+    assertEquals(7, line.length());
+    assertSame(TextStyle.EMPTY, line.getStyleAt(2));
+    assertSame(BOLD, line.getStyleAt(3));
+  }
+
+  public void testCompactedLineIsModifiedAsUsual() {
+    TerminalLine line = new TerminalLine();
+    line.writeString(0, new CharBuffer("héllo"), BOLD);
+    line.trimToSize();
+    assertEquals("héllo", line.getText());
+    assertEquals('é', line.charAt(1));
+
+    TerminalLine copy = line.copy();
+    line.writeString(5, new CharBuffer("世"), ITALIC);
+    assertEquals("héllo世", line.getText());
+    assertEquals("héllo", copy.getText());
+  }
+
+  private static List<String> entryTexts(TerminalLine line) {
+    return line.getEntries().stream().map(entry -> entry.getText().toString()).collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,36 @@
+package com.jediterm.terminal.model;
+
+import com.jediterm.terminal.HyperlinkStyle;
+import com.jediterm.terminal.TerminalColor;
+import com.jediterm.terminal.TextStyle;
+import com.jediterm.terminal.model.hyperlinks.LinkInfo;
+import junit.framework.TestCase;
+
+public class TextStyleRegistryTest extends TestCase {
+  public void testEqualStylesShareInstanceAndId() {
+    TextStyleRegistry registry = new TextStyleRegistry();
+    TextStyle red = registry.intern(new TextStyle(TerminalColor.index(1), null));
+    TextStyle otherRed = registry.intern(new TextStyle.Builder().setForeground(TerminalColor.index(1)).build());
+    assertSame(red, otherRed);
+    assertSame(TextStyle.EMPTY, registry.intern(new TextStyle()));
+    int id = registry.getId(red);
+    assertTrue(id > 0);
+    assertSame(red, registry.getStyle(id));
+  }
+
+  public void testHyperlinkStylesAreNotInterned() {
+    TextStyleRegistry registry = new TextStyleRegistry();
+    HyperlinkStyle style = new HyperlinkStyle(TextStyle.EMPTY, new LinkInfo(() -> {}));
+    assertSame(style, registry.intern(style));
+    assertEquals(TextStyleRegistry.NO_ID, registry.getId(style));
+  }
+
+  public void testStylesOverCapacityAreReturnedAsIs() {
+    TextStyleRegistry registry = new TextStyleRegistry(2);
+    TextStyle red = registry.intern(new TextStyle(TerminalColor.index(1), null));
+    TextStyle green = new TextStyle(TerminalColor.index(2), null);
+    assertSame(green, registry.intern(green));
+    assertEquals(TextStyleRegistry.NO_ID, registry.getId(green));
+    assertSame(red, registry.intern(new TextStyle(TerminalColor.index(1), null)));
+  }
+}
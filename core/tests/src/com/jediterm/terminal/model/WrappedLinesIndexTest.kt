@@ -0,0 +1,74 @@
+package com.jediterm.terminal.model
+
+import junit.framework.TestCase
+import kotlin.random.Random
+
+class WrappedLinesIndexTest : TestCase() {
+
+  fun `test logical line boundaries match wrapped flags`() {
+    val random = Random(42)
+    val index = WrappedLinesIndex()
+    val flags = ArrayDeque<Boolean>()
+    repeat(20_000) {
+      when (random.nextInt(7)) {
+        0 -> random.nextWrapped().let { index.addFirst(it); flags.addFirst(it) }
+        1, 2 -> random.nextWrapped().let { index.addLast(it); flags.addLast(it) }
+        3 -> if (flags.isNotEmpty()) { index.removeFirst(); flags.removeFirst() }
+        4 -> if (flags.isNotEmpty()) { index.removeLast(); flags.removeLast() }
+        5 -> if (flags.isNotEmpty()) {
+          val ind = random.nextInt(flags.size)
+          flags[ind] = !flags[ind]
+          index[ind] = flags[ind]
+        }
+        6 -> {
+          val ind = random.nextInt(flags.size + 1)
+          val count = random.nextInt(minOf(flags.size - ind, 100) + 1)
+          val newFlags = BooleanArray(random.nextInt(100)) { random.nextWrapped() }
+          index.replace(ind, count, newFlags)
+          flags.subList(ind, ind + count).clear()
+          flags.addAll(ind, newFlags.toList())
+        }
+      }
+      assertEquals(flags.size, index.size)
+      if (flags.isNotEmpty()) {
+        val ind = random.nextInt(flags.size)
+        assertEquals(flags[ind], index[ind])
+        assertEquals(expectedStart(flags, ind), index.findLogicalLineStart(ind))
+        assertEquals(expectedEnd(flags, ind), index.findLogicalLineEnd(ind))
+      }
+    }
+  }
+
+  fun `test storage index follows dropped and rewrapped lines`() {
+    val storage = CompressedLinesStorage(300, TextStyleRegistry(), hotLinesCount = 10, blockSize = 16)
+    for (i in 0 until 1000) {
+      storage.addToBottom(terminalLine("line $i").also { it.isWrapped = i % 100 != 99 })
+    }
+    assertEquals(0, storage.findLogicalLineStart(50))
+    assertEquals(99, storage.findLogicalLineEnd(50))
+    assertEquals(100, storage.findLogicalLineStart(150))
+
+    storage.setLineWrapped(149, false)
+    assertEquals(150, storage.findLogicalLineStart(170))
+    assertEquals(149, storage.findLogicalLineEnd(120))
+    assertFalse(storage[149].isWrapped)
+  }
+
+  private fun Random.nextWrapped(): Boolean = nextInt(8) != 0
+
+  private fun expectedStart(flags: List<Boolean>, index: Int): Int {
+    var ind = index
+    while (ind > 0 && flags[ind - 1]) {
+      ind--
+    }
+    return ind
+  }
+
+  private fun expectedEnd(flags: List<Boolean>, index: Int): Int {
+    var ind = index
+    while (ind < flags.size - 1 && flags[ind]) {
+      ind++
+    }
+    return ind
+  }
+}
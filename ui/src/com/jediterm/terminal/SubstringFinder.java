@@ -8,6 +8,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -80,6 +81,18 @@ public class SubstringFinder {
     }
   }
 
+  /**
+   * Forgets the characters passed so far, so that the next characters aren't matched together with them,
+   * e.g. when the text between them is skipped. The next character must be the first one of its buffer.
+   */
+  public void skipText() {
+    myTokens.clear();
+    myFirstIndex = 0;
+    myCurrentHash = 0;
+    myCurrentLength = 0;
+    myPower = 0;
+  }
+
   public boolean accept(@NotNull FindResult.FindItem item) {
     return true;
   }
@@ -98,26 +111,63 @@ public class SubstringFinder {
 
   public static final class FindResult {
     private final List<FindItem> items = new ArrayList<>();
-    private final Map<CharBuffer, List<Pair<Integer, Integer>>> ranges = new HashMap<>();
+    /**
+     * Columns {@code [first, second)} of the found items by rows. Rows of the found items are counted from the top
+     * of the history including the lines discarded from it
+     * (see {@link com.jediterm.terminal.model.TerminalTextBuffer#getDiscardedHistoryLinesCount()}).
+     */
+    private final Map<Integer, List<Pair<Integer, Integer>>> ranges = new HashMap<>();
     private int selectedItem = 0;
 
-    public List<Pair<Integer, Integer>> getRanges(CharBuffer characters) {
+    /**
+     * Ranges are looked up by the position of the text rather than by its buffer, as the painted text is usually
+     * a copy of the searched one (see {@link com.jediterm.terminal.model.TerminalViewportSnapshot}).
+     *
+     * @param row    row of the text counted from the top of the history including the discarded lines,
+     *               as the rows of the found items
+     * @param x      column of the first character of the text
+     * @param length length of the text
+     * @return ranges of the found items in the text, relative to its first character; null if there are none
+     */
+    public @Nullable List<Pair<Integer, Integer>> getRanges(int row, int x, int length) {
+      List<Pair<Integer, Integer>> rowRanges = ranges.get(row);
+      if (rowRanges == null) {
+        return null;
+      }
+      List<Pair<Integer, Integer>> filtered = new ArrayList<>();
+      for (Pair<Integer, Integer> range : rowRanges) {
+        Pair<Integer, Integer> intersected = intersect(range, x, x + length);
+        if (intersected != null) {
+          filtered.add(new Pair<>(intersected.getFirst() - x, intersected.getSecond() - x));
+        }
+      }
+      return filtered.isEmpty() ? null : filtered;
+    }
+
+    /**
+     * Finds the row and the column of <b>characters</b> by the searched buffers, so only the searched buffers
+     * and their parts are found, but not their copies.
+     *
+     * @return ranges of the found items in the text, relative to its first character; null if there are none
+     * @deprecated use {@link #getRanges(int, int, int)}
+     */
+    @Deprecated
+    public @Nullable List<Pair<Integer, Integer>> getRanges(@NotNull CharBuffer characters) {
+      CharBuffer buffer = characters;
+      int offset = 0;
       if (characters instanceof SubCharBuffer) {
         SubCharBuffer subCharBuffer = (SubCharBuffer) characters;
-        List<Pair<Integer, Integer>> pairs = ranges.get(subCharBuffer.getParent());
-        if (pairs != null) {
-          List<Pair<Integer, Integer>> filtered = new ArrayList<>();
-          for (Pair<Integer, Integer> pair : pairs) {
-            Pair<Integer, Integer> intersected = intersect(pair, subCharBuffer.getOffset(), subCharBuffer.getOffset() + subCharBuffer.length());
-            if (intersected != null) {
-              filtered.add(new Pair<>(intersected.getFirst() - subCharBuffer.getOffset(), intersected.getSecond() - subCharBuffer.getOffset()));
-            }
+        buffer = subCharBuffer.getParent();
+        offset = subCharBuffer.getOffset();
+      }
+      for (FindItem item : items) {
+        for (TextToken token : item.tokens) {
+          if (token.buf == buffer) {
+            return getRanges(token.y, token.x + offset, characters.length());
           }
-          return filtered;
         }
-        return null;
       }
-      return ranges.get(characters);
+      return null;
     }
 
     private @Nullable Pair<Integer, Integer> intersect(@NotNull Pair<Integer, Integer> interval, int a, int b) {
@@ -185,33 +235,54 @@ public class SubstringFinder {
     }
 
     public void patternMatched(ArrayList<TextToken> tokens, int firstIndex, int lastIndex) {
-      if (tokens.size() > 1) {
-        Pair<Integer, Integer> range = new Pair<>(firstIndex, tokens.get(0).buf.length());
-        put(tokens.get(0).buf, range);
-      } else {
-        Pair<Integer, Integer> range = new Pair<>(firstIndex, lastIndex + 1);
-        put(tokens.get(0).buf, range);
+      FindItem item = new FindItem(tokens, firstIndex, lastIndex, items.size() + 1);
+      Point start = item.getStart();
+      Point end = item.getEnd();
+      // the item takes the rest of its first row and the start of its last row
+      for (int row = start.y; row <= end.y; row++) {
+        put(row, new Pair<>(row == start.y ? start.x : 0, row == end.y ? end.x + 1 : Integer.MAX_VALUE));
       }
+      items.add(item);
+    }
 
-      for (int i = 1; i < tokens.size() - 1; i++) {
-        put(tokens.get(i).buf, new Pair<>(0, tokens.get(i).buf.length()));
+    /**
+     * Merges results found in different parts of the text into one result with the items in the order of the text.
+     * An item overlapping the previous one is skipped, as the finder doesn't find overlapping items.
+     */
+    public static @NotNull FindResult merge(@NotNull List<FindResult> results) {
+      List<FindItem> items = new ArrayList<>();
+      for (FindResult result : results) {
+        items.addAll(result.items);
       }
-
-      if (tokens.size() > 1) {
-        Pair<Integer, Integer> range = new Pair<>(0, lastIndex + 1);
-        put(tokens.get(tokens.size() - 1).buf, range);
+      items.sort(Comparator.comparingInt((FindItem item) -> item.getStart().y).thenComparingInt(item -> item.getStart().x));
+      FindResult merged = new FindResult();
+      Point lastEnd = null;
+      for (FindItem item : items) {
+        Point start = item.getStart();
+        if (lastEnd == null || start.y > lastEnd.y || start.y == lastEnd.y && start.x > lastEnd.x) {
+          merged.patternMatched(item.tokens, item.firstIndex, item.lastIndex);
+          lastEnd = item.getEnd();
+        }
       }
-
-      items.add(new FindItem(tokens, firstIndex, lastIndex, items.size() + 1));
-
+      return merged;
     }
 
-    private void put(CharBuffer characters, Pair<Integer, Integer> range) {
-      if (ranges.containsKey(characters)) {
-        ranges.get(characters).add(range);
-      } else {
-        ranges.put(characters, new ArrayList<>(List.of(range)));
+    /**
+     * @return a result with the items starting not above {@code fromRow} and ending above {@code endRow},
+     * e.g. the items in the text which hasn't changed since the search
+     */
+    public @NotNull FindResult retain(int fromRow, int endRow) {
+      FindResult retained = new FindResult();
+      for (FindItem item : items) {
+        if (item.getStart().y >= fromRow && item.getEnd().y < endRow) {
+          retained.patternMatched(item.tokens, item.firstIndex, item.lastIndex);
+        }
       }
+      return retained;
+    }
+
+    private void put(int row, Pair<Integer, Integer> range) {
+      ranges.computeIfAbsent(row, r -> new ArrayList<>()).add(range);
     }
 
     public @NotNull List<FindItem> getItems() {
@@ -223,6 +294,21 @@ public class SubstringFinder {
       return items.get(selectedItem);
     }
 
+    /**
+     * Selects the item starting at {@code start}, e.g. to keep the selection of the previous result of the same search.
+     *
+     * @return false if there is no such item, the selection isn't changed then
+     */
+    public boolean selectItemStartingAt(@NotNull Point start) {
+      for (int i = 0; i < items.size(); i++) {
+        if (items.get(i).getStart().equals(start)) {
+          selectedItem = i;
+          return true;
+        }
+      }
+      return false;
+    }
+
     public @NotNull FindItem nextFindItem() {
       assertNotEmpty();
       selectedItem = (selectedItem + 1) % items.size();
@@ -0,0 +1,428 @@
+package com.jediterm.terminal.ui;
+
+import com.jediterm.terminal.SubstringFinder;
+import com.jediterm.terminal.SubstringFinder.FindResult;
+import com.jediterm.terminal.model.HistorySearchIndex;
+import com.jediterm.terminal.model.LinesStorage;
+import com.jediterm.terminal.model.TerminalTextBuffer;
+import com.jediterm.terminal.model.TerminalViewportSnapshot;
+import com.jediterm.terminal.model.TextBufferChangesListener;
+import kotlin.ranges.IntRange;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Searches the text buffer off the EDT, so that a search in a long history doesn't freeze the UI.
+ * <p>
+ * The rows are searched in chunks, starting from the chunks nearest to the viewport, and the result found so far is
+ * published after every few chunks, so the matches around the viewport are shown first. Every chunk is copied under
+ * the read lock on its own, the output isn't blocked for the whole search. A new search cancels the running one.
+ * <p>
+ * While the search is active, changes of the buffer search the text again (at most once per {@link #REFRESH_DELAY_MS}),
+ * so the result follows the output. Only the rows changed or added since the previous complete search are searched,
+ * their matches replace the previous matches in these rows. These searches publish only the complete result,
+ * to not replace the previous result with a partial one.
+ */
+final class BackgroundTextSearch implements TextBufferChangesListener {
+  private static final Logger LOG = LoggerFactory.getLogger(BackgroundTextSearch.class);
+
+  static final int DEFAULT_CHUNK_ROWS = 2048;
+  private static final long REFRESH_DELAY_MS = 300;
+  private static final long PUBLISH_INTERVAL_MS = 100;
+
+  interface ResultListener {
+    /**
+     * Called via the result executor, e.g. on the EDT, only for the current search.
+     *
+     * @param result  matches found so far, {@code null} for an empty pattern
+     * @param complete false for a partial result, more matches may come
+     */
+    void resultUpdated(@Nullable FindResult result, boolean complete);
+  }
+
+  private final TerminalTextBuffer myTextBuffer;
+  private final HistorySearchIndex myHistoryIndex;
+  private final ExecutorService myExecutor;
+  private final ScheduledExecutorService myRefreshScheduler;
+  private final Executor myResultExecutor;
+  private final ResultListener myResultListener;
+  private final int myChunkRows;
+
+  private volatile long myGeneration;
+  private volatile @Nullable String myPattern;
+  private boolean myIgnoreCase;
+  private int myScrollOrigin;
+  private @Nullable Future<?> myFuture;
+  private boolean mySearchRunning;
+  private boolean myRefreshPending;
+  private @Nullable CompleteSearch myCompleteSearch;
+  private final AtomicBoolean myRefreshScheduled = new AtomicBoolean();
+
+  // changed and read under the text buffer lock; rows are counted with the discarded lines as the rows of found items,
+  // so they don't change when lines are discarded (see TerminalTextBuffer.getDiscardedHistoryLinesCount)
+  private long myResetCount;
+  // the topmost row changed since the start of the last search run
+  private long myChangedFromRow = Long.MAX_VALUE;
+
+  BackgroundTextSearch(@NotNull TerminalTextBuffer textBuffer,
+                       @NotNull ExecutorService executor,
+                       @NotNull ScheduledExecutorService refreshScheduler,
+                       @NotNull Executor resultExecutor,
+                       @NotNull ResultListener resultListener) {
+    this(textBuffer, executor, refreshScheduler, resultExecutor, resultListener, DEFAULT_CHUNK_ROWS);
+  }
+
+  BackgroundTextSearch(@NotNull TerminalTextBuffer textBuffer,
+                       @NotNull ExecutorService executor,
+                       @NotNull ScheduledExecutorService refreshScheduler,
+                       @NotNull Executor resultExecutor,
+                       @NotNull ResultListener resultListener,
+                       int chunkRows) {
+    myTextBuffer = textBuffer;
+    myHistoryIndex = new HistorySearchIndex(textBuffer);
+    myExecutor = executor;
+    myRefreshScheduler = refreshScheduler;
+    myResultExecutor = resultExecutor;
+    myResultListener = resultListener;
+    myChunkRows = chunkRows;
+    textBuffer.addChangesListener(myHistoryIndex);
+    textBuffer.addChangesListener(this);
+  }
+
+  /**
+   * Cancels the running search and starts searching for {@code pattern}.
+   *
+   * @param scrollOrigin scroll position of the viewport (see {@link TerminalPanel#getVerticalScrollModel()}),
+   *                     the rows around it are searched first
+   */
+  synchronized void search(@NotNull String pattern, boolean ignoreCase, int scrollOrigin) {
+    myPattern = pattern.isEmpty() ? null : pattern;
+    myIgnoreCase = ignoreCase;
+    myScrollOrigin = scrollOrigin;
+    myRefreshPending = false;
+    myCompleteSearch = null;
+    start(true);
+  }
+
+  /**
+   * Cancels the search, no results are published after that.
+   */
+  synchronized void dispose() {
+    myGeneration++;
+    myPattern = null;
+    myCompleteSearch = null;
+    if (myFuture != null) {
+      myFuture.cancel(false);
+      myFuture = null;
+    }
+    myTextBuffer.removeChangesListener(this);
+    myTextBuffer.removeChangesListener(myHistoryIndex);
+  }
+
+  private void start(boolean progressive) {
+    long generation = ++myGeneration;
+    if (myFuture != null) {
+      myFuture.cancel(false);
+      myFuture = null;
+    }
+    mySearchRunning = false;
+    String pattern = myPattern;
+    if (pattern == null) {
+      publish(generation, null, true);
+      return;
+    }
+    try {
+      CompleteSearch previous = progressive ? null : myCompleteSearch;
+      myFuture = myExecutor.submit(new SearchRun(generation, pattern, myIgnoreCase, myScrollOrigin, progressive, previous));
+      mySearchRunning = true;
+    }
+    catch (RejectedExecutionException e) {
+      // the executors are shut down when the terminal is closed
+      LOG.debug("Search is rejected", e);
+    }
+  }
+
+  private synchronized void refresh() {
+    myRefreshScheduled.set(false);
+    if (myPattern == null) {
+      return;
+    }
+    if (mySearchRunning) {
+      myRefreshPending = true;
+    }
+    else {
+      start(false);
+    }
+  }
+
+  /**
+   * @param completeSearch null if the search was cancelled or failed, the next refresh searches all rows then
+   */
+  private synchronized void searchFinished(long generation, @Nullable CompleteSearch completeSearch) {
+    if (generation == myGeneration) {
+      mySearchRunning = false;
+      myCompleteSearch = completeSearch;
+      if (myRefreshPending) {
+        myRefreshPending = false;
+        start(false);
+      }
+    }
+  }
+
+  /**
+   * Called under the text buffer lock by a search run, the changes made after that are searched by the next run.
+   */
+  private synchronized long takeChangedFromRow(long generation) {
+    long changedFromRow = myChangedFromRow;
+    if (generation == myGeneration) {
+      myChangedFromRow = Long.MAX_VALUE;
+    }
+    return changedFromRow;
+  }
+
+  private void publish(long generation, @Nullable FindResult result, boolean complete) {
+    myResultExecutor.execute(() -> {
+      if (generation == myGeneration) {
+        myResultListener.resultUpdated(result, complete);
+      }
+    });
+  }
+
+  private void scheduleRefresh() {
+    if (myPattern != null && myRefreshScheduled.compareAndSet(false, true)) {
+      try {
+        myRefreshScheduler.schedule(this::refresh, REFRESH_DELAY_MS, TimeUnit.MILLISECONDS);
+      }
+      catch (RejectedExecutionException e) {
+        LOG.debug("Search refresh is rejected", e);
+      }
+    }
+  }
+
+  // also called from the first rewrapped row when the history lines are rewrapped, so the moved rows are searched again
+  @Override
+  public void linesChanged(int fromIndex) {
+    long row = myTextBuffer.getDiscardedHistoryLinesCount() + myTextBuffer.getHistoryLinesCount() + fromIndex;
+    myChangedFromRow = Math.min(myChangedFromRow, row);
+    scheduleRefresh();
+  }
+
+  @Override
+  public void historyCleared() {
+    myResetCount++;
+    scheduleRefresh();
+  }
+
+  @Override
+  public void widthResized() {
+    myResetCount++;
+    scheduleRefresh();
+  }
+
+  private final class SearchRun implements Runnable {
+    private final long myRunGeneration;
+    private final String myRunPattern;
+    private final boolean myRunIgnoreCase;
+    private final int myRunScrollOrigin;
+    private final boolean myProgressive;
+    private final @Nullable CompleteSearch myPrevious;
+
+    private final List<FindResult> myResults = new ArrayList<>();
+
+    // the buffer state the chunk rows were computed for
+    private LinesStorage myHistory;
+    private long myStartDiscardedLineCount;
+    private long myStartResetCount;
+    private int myRowCount;
+    private IntRange myScreenRows;
+    // matches ending above it are taken from the previous search, counted with the discarded lines
+    private int myChangedRow;
+    private boolean myAborted;
+
+    private SearchRun(long generation, @NotNull String pattern, boolean ignoreCase, int scrollOrigin, boolean progressive,
+                      @Nullable CompleteSearch previous) {
+      myRunGeneration = generation;
+      myRunPattern = pattern;
+      myRunIgnoreCase = ignoreCase;
+      myRunScrollOrigin = scrollOrigin;
+      myProgressive = progressive;
+      myPrevious = previous;
+    }
+
+    @Override
+    public void run() {
+      CompleteSearch completeSearch = null;
+      try {
+        List<IntRange> chunks = myTextBuffer.read(this::createChunks);
+        long lastPublishTime = 0;
+        for (IntRange chunk : chunks) {
+          if (myRunGeneration != myGeneration) {
+            return;
+          }
+          ChunkSnapshot chunkSnapshot = myTextBuffer.read(() -> takeSnapshot(chunk));
+          if (myAborted) {
+            // the rows have moved, the text is searched again after the search is finished
+            scheduleRefresh();
+            return;
+          }
+          if (chunkSnapshot != null) {
+            myResults.add(searchInChunk(chunkSnapshot));
+          }
+          long time = System.currentTimeMillis();
+          if (myProgressive && time - lastPublishTime >= PUBLISH_INTERVAL_MS) {
+            publish(myRunGeneration, FindResult.merge(myResults), false);
+            lastPublishTime = time;
+          }
+        }
+        FindResult result = FindResult.merge(myResults);
+        long endRow = myStartDiscardedLineCount + myRowCount;
+        completeSearch = new CompleteSearch(result, myHistory, myStartResetCount, endRow);
+        publish(myRunGeneration, result, true);
+      }
+      catch (Exception e) {
+        LOG.error("Failed to search for the text", e);
+      }
+      finally {
+        searchFinished(myRunGeneration, completeSearch);
+      }
+    }
+
+    /**
+     * @return chunks of rows counted from the top of the history without the discarded lines, the screen is one
+     * chunk, ordered by the distance from the viewport
+     */
+    private @NotNull List<IntRange> createChunks() {
+      myHistory = myTextBuffer.getHistoryLinesStorage();
+      myStartDiscardedLineCount = myTextBuffer.getDiscardedHistoryLinesCount();
+      myStartResetCount = myResetCount;
+      long changedFromRow = takeChangedFromRow(myRunGeneration);
+      int historyLinesCount = myTextBuffer.getHistoryLinesCount();
+      myRowCount = historyLinesCount + myTextBuffer.getScreenLinesCount();
+      int searchStart = 0;
+      if (myPrevious != null && myPrevious.myHistory == myHistory && myPrevious.myResetCount == myStartResetCount) {
+        long changedRow = Math.min(Math.max(Math.min(changedFromRow, myPrevious.myEndRow), myStartDiscardedLineCount),
+                                   myStartDiscardedLineCount + myRowCount);
+        // the matches in the discarded lines are dropped
+        myResults.add(myPrevious.myResult.retain((int)myStartDiscardedLineCount, (int)changedRow));
+        myChangedRow = (int)changedRow;
+        searchStart = findSearchStart(historyLinesCount);
+      }
+      List<IntRange> historyRows = myHistoryIndex.findRowsToSearch(myRunPattern);
+      if (historyRows == null) {
+        historyRows = List.of(new IntRange(0, historyLinesCount - 1));
+      }
+      List<IntRange> chunks = new ArrayList<>();
+      for (IntRange rows : historyRows) {
+        for (int start = Math.max(rows.getFirst(), searchStart); start <= rows.getLast(); start += myChunkRows) {
+          chunks.add(new IntRange(start, Math.min(start + myChunkRows - 1, rows.getLast())));
+        }
+      }
+      myScreenRows = new IntRange(historyLinesCount, historyLinesCount + myTextBuffer.getScreenLinesCount() - 1);
+      chunks.add(myScreenRows);
+
+      int viewportStart = historyLinesCount + myRunScrollOrigin;
+      int viewportEnd = viewportStart + myTextBuffer.getHeight();
+      chunks.sort(Comparator.comparingInt(chunk -> chunk.getFirst() >= viewportEnd ? chunk.getFirst() - viewportEnd + 1
+                                                   : chunk.getLast() < viewportStart ? viewportStart - chunk.getLast()
+                                                   : 0));
+      return chunks;
+    }
+
+    /**
+     * @return the row to search from to find the matches ending in {@link #myChangedRow} or below it
+     */
+    private int findSearchStart(int historyLinesCount) {
+      int start = myChangedRow - (int)myStartDiscardedLineCount;
+      int precedingCharCount = 0;
+      while (precedingCharCount < myRunPattern.length() - 1 && start > 0) {
+        start--;
+        precedingCharCount += myTextBuffer.getLine(start - historyLinesCount).length();
+      }
+      return start;
+    }
+
+    private @Nullable ChunkSnapshot takeSnapshot(@NotNull IntRange chunk) {
+      if (myTextBuffer.getHistoryLinesStorage() != myHistory || myResetCount != myStartResetCount) {
+        myAborted = true;
+        return null;
+      }
+      int historyLinesCount = myTextBuffer.getHistoryLinesCount();
+      long discardedLineCount = myTextBuffer.getDiscardedHistoryLinesCount();
+      // the chunk rows were counted at the start of the search, the lines discarded since then have moved them
+      int shift = (int)(discardedLineCount - myStartDiscardedLineCount);
+      int firstHistoryRow = (int)discardedLineCount;
+      if (chunk == myScreenRows) {
+        TerminalViewportSnapshot snapshot = myTextBuffer.createViewportSnapshot(0, -1);
+        return new ChunkSnapshot(snapshot, firstHistoryRow + historyLinesCount, Integer.MAX_VALUE);
+      }
+      int start = Math.max(chunk.getFirst() - shift, 0);
+      int end = chunk.getLast() + 1 - shift;
+      if (start >= end) {
+        return null;
+      }
+      // matches starting in the chunk can end in the rows below it
+      int totalRows = historyLinesCount + myTextBuffer.getScreenLinesCount();
+      int snapshotEnd = end;
+      int followingCharCount = 0;
+      while (followingCharCount < myRunPattern.length() - 1 && snapshotEnd < totalRows) {
+        followingCharCount += myTextBuffer.getLine(snapshotEnd - historyLinesCount).length();
+        snapshotEnd++;
+      }
+      TerminalViewportSnapshot snapshot = myTextBuffer.createViewportSnapshot(start - historyLinesCount, snapshotEnd - start);
+      return new ChunkSnapshot(snapshot, firstHistoryRow + start, firstHistoryRow + end);
+    }
+
+    private @NotNull FindResult searchInChunk(@NotNull ChunkSnapshot chunkSnapshot) {
+      SubstringFinder finder = new SubstringFinder(myRunPattern, myRunIgnoreCase) {
+        @Override
+        public boolean accept(@NotNull FindResult.FindItem item) {
+          // matches starting below the chunk are found with the next chunk
+          return item.getStart().y < chunkSnapshot.myEndRow && item.getEnd().y >= myChangedRow;
+        }
+      };
+      TerminalSearchUtil.searchInSnapshot(chunkSnapshot.mySnapshot, chunkSnapshot.myFirstRow, finder);
+      return finder.getResult();
+    }
+  }
+
+  private static final class CompleteSearch {
+    private final FindResult myResult;
+    // the buffer state the rows of the result are counted in
+    private final LinesStorage myHistory;
+    private final long myResetCount;
+    // the first row after the searched rows
+    private final long myEndRow;
+
+    private CompleteSearch(@NotNull FindResult result, @NotNull LinesStorage history, long resetCount, long endRow) {
+      myResult = result;
+      myHistory = history;
+      myResetCount = resetCount;
+      myEndRow = endRow;
+    }
+  }
+
+  private static final class ChunkSnapshot {
+    private final TerminalViewportSnapshot mySnapshot;
+    private final int myFirstRow;
+    private final int myEndRow;
+
+    private ChunkSnapshot(@NotNull TerminalViewportSnapshot snapshot, int firstRow, int endRow) {
+      mySnapshot = snapshot;
+      myFirstRow = firstRow;
+      myEndRow = endRow;
+    }
+  }
+}
@@ -5,6 +5,8 @@ import com.jediterm.terminal.ui.settings.SettingsProvider;
 import org.jetbrains.annotations.NotNull;
 
 class BlinkingTextTracker {
+  private static final int BLINK_OPTIONS = TextStyle.Option.SLOW_BLINK.getMask() | TextStyle.Option.RAPID_BLINK.getMask();
+
   private final BlinkTracker slowBlinkTracker = new BlinkTracker();
   private final BlinkTracker rapidBlinkTracker = new BlinkTracker();
 
@@ -19,7 +21,26 @@ class BlinkingTextTracker {
     }
   }
 
+  /**
+   * @return milliseconds until the blinking text changes its state, or -1 if text blinking is disabled
+   */
+  long getNextUpdateDelay(@NotNull SettingsProvider settingsProvider, long currentTime) {
+    if (!settingsProvider.enableTextBlinking()) {
+      return -1;
+    }
+    long slowDelay = slowBlinkTracker.getNextBlinkDelay(currentTime, settingsProvider.slowTextBlinkMs());
+    long rapidDelay = rapidBlinkTracker.getNextBlinkDelay(currentTime, settingsProvider.rapidTextBlinkMs());
+    return slowDelay < 0 || (rapidDelay >= 0 && rapidDelay < slowDelay) ? rapidDelay : slowDelay;
+  }
+
+  static boolean isBlinking(@NotNull TextStyle style) {
+    return style.hasAnyOption(BLINK_OPTIONS);
+  }
+
   boolean shouldBlinkNow(@NotNull TextStyle style) {
+    if (!style.hasAnyOption(BLINK_OPTIONS)) {
+      return false;
+    }
     return (style.hasOption(TextStyle.Option.SLOW_BLINK) && slowBlinkTracker.inverse) ||
       (style.hasOption(TextStyle.Option.RAPID_BLINK) && rapidBlinkTracker.inverse);
   }
@@ -35,5 +56,10 @@ class BlinkingTextTracker {
       inverse = blinks % 2 == 1;
       return prevInverse != inverse;
     }
+
+    private long getNextBlinkDelay(long currentTime, int period) {
+      if (period <= 0) return -1;
+      return period - (currentTime - lastBlinkMillis) % period;
+    }
   }
 }
@@ -0,0 +1,266 @@
+package com.jediterm.terminal.ui;
+
+import com.jediterm.terminal.TextStyle;
+import com.jediterm.terminal.model.CharBuffer;
+import com.jediterm.terminal.util.CharUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.text.BreakIterator;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches how text runs are drawn: the glyph clusters a run is split into (see {@link GlyphRun})
+ * and the fonts resolved for clusters (e.g. by {@link TerminalPanel#getFontToDisplay}), so that repainting
+ * text, e.g. CJK or emoji, doesn't segment it and look for a font able to display it every time.
+ * <p>
+ * Both caches are valid for a font set and a font rendering context, they are dropped when either changes.
+ * Runs are cached by the text, the bold and italic options of the style and the char width (it affects
+ * the offsets of wide clusters), fonts are cached by the cluster text and the bold and italic options.
+ */
+final class GlyphRunCache {
+  private static final int MAX_RUNS = 2048;
+  private static final int MAX_CLUSTER_FONTS = 8192;
+
+  private final LinkedHashMap<Key, GlyphRun> myRuns = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, GlyphRun> eldest) {
+      return size() > MAX_RUNS;
+    }
+  };
+  private final Map<Key, Font> myClusterFonts = new HashMap<>();
+  private final FontResolver myFontResolver;
+  private Font @NotNull [] myFonts = new Font[0];
+  private @Nullable FontRenderContext myFontRenderContext;
+  private boolean myDecCompatibilityMode;
+
+  GlyphRunCache(@NotNull FontResolver fontResolver) {
+    myFontResolver = fontResolver;
+  }
+
+  /**
+   * Drops the cached runs and fonts if they were resolved for other fonts, another font rendering context
+   * or another DEC compatibility mode (it affects fonts of box drawing chars).
+   */
+  void validate(@NotNull FontRenderContext fontRenderContext, boolean decCompatibilityMode, Font @NotNull ... fonts) {
+    if (!isSameFonts(fonts) || !fontRenderContext.equals(myFontRenderContext) || decCompatibilityMode != myDecCompatibilityMode) {
+      clear();
+      myFonts = fonts;
+      myFontRenderContext = fontRenderContext;
+      myDecCompatibilityMode = decCompatibilityMode;
+    }
+  }
+
+  private boolean isSameFonts(Font @NotNull [] fonts) {
+    if (fonts.length != myFonts.length) {
+      return false;
+    }
+    for (int i = 0; i < fonts.length; i++) {
+      if (fonts[i] != myFonts[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the run to draw the chars in the given style with, the cache is to be validated before
+   */
+  @NotNull GlyphRun getRun(@NotNull CharBuffer buf, @NotNull TextStyle style, @NotNull Graphics2D gfx, int charWidth) {
+    int fontStyle = (style.hasOption(TextStyle.Option.BOLD) ? Font.BOLD : 0) |
+                    (style.hasOption(TextStyle.Option.ITALIC) ? Font.ITALIC : 0);
+    String text = buf.toString();
+    Key key = new Key(text, fontStyle, charWidth);
+    GlyphRun run = myRuns.get(key);
+    if (run == null) {
+      run = createRun(text.toCharArray(), style, fontStyle, gfx, charWidth);
+      myRuns.put(key, run);
+    }
+    return run;
+  }
+
+  void clear() {
+    myRuns.clear();
+    myClusterFonts.clear();
+  }
+
+  private @NotNull GlyphRun createRun(char @NotNull [] text, @NotNull TextStyle style, int fontStyle,
+                                      @NotNull Graphics2D gfx, int charWidth) {
+    int[] starts = new int[text.length];
+    int[] textEnds = new int[text.length];
+    Font[] fonts = new Font[text.length];
+    int[] descents = new int[text.length];
+    int[] offsets = new int[text.length];
+    int clusterCount = 0;
+
+    BreakIterator iterator = BreakIterator.getCharacterInstance();
+    iterator.setText(new String(text));
+    int endOffset;
+    int startOffset = 0;
+    while ((endOffset = iterator.next()) != BreakIterator.DONE) {
+      endOffset = extendEndOffset(text, iterator, startOffset, endOffset);
+      int effectiveEndOffset = shiftDwcToEnd(text, startOffset, endOffset);
+      if (effectiveEndOffset == startOffset) {
+        startOffset = endOffset;
+        continue; // nothing to draw
+      }
+      Font font = getClusterFont(text, startOffset, effectiveEndOffset, style, fontStyle);
+      FontMetrics fontMetrics = gfx.getFontMetrics(font);
+      int emptyCells = endOffset - startOffset;
+      int offset = 0;
+      if (emptyCells >= 2) {
+        int drawnWidth = fontMetrics.charsWidth(text, startOffset, effectiveEndOffset - startOffset);
+        int emptySpace = Math.max(0, emptyCells * charWidth - drawnWidth);
+        // paint a Unicode symbol closer to the center
+        offset = emptySpace / 2;
+      }
+      starts[clusterCount] = startOffset;
+      textEnds[clusterCount] = effectiveEndOffset;
+      fonts[clusterCount] = font;
+      descents[clusterCount] = fontMetrics.getDescent();
+      offsets[clusterCount] = offset;
+      clusterCount++;
+
+      startOffset = endOffset;
+    }
+    return new GlyphRun(text, clusterCount, starts, textEnds, fonts, descents, offsets);
+  }
+
+  private @NotNull Font getClusterFont(char @NotNull [] text, int start, int end, @NotNull TextStyle style, int fontStyle) {
+    String cluster = new String(text, start, end - start);
+    Key key = new Key(cluster, fontStyle, 0);
+    Font font = myClusterFonts.get(key);
+    if (font == null) {
+      font = myFontResolver.getFontToDisplay(text, start, end, style);
+      if (myClusterFonts.size() >= MAX_CLUSTER_FONTS) {
+        myClusterFonts.clear();
+      }
+      myClusterFonts.put(key, font);
+    }
+    return font;
+  }
+
+  private static int shiftDwcToEnd(char[] text, int startOffset, int endOffset) {
+    int ind = startOffset;
+    for (int i = startOffset; i < endOffset; i++) {
+      if (text[i] != CharUtils.DWC) {
+        text[ind++] = text[i];
+      }
+    }
+    Arrays.fill(text, ind, endOffset, CharUtils.DWC);
+    return ind;
+  }
+
+  private static int extendEndOffset(char[] text, @NotNull BreakIterator iterator, int startOffset, int endOffset) {
+    while (shouldExtend(text, startOffset, endOffset)) {
+      int newEndOffset = iterator.next();
+      if (newEndOffset == BreakIterator.DONE) {
+        break;
+      }
+      if (newEndOffset - endOffset == 1 && !isUnicodePart(text, endOffset)) {
+        iterator.previous(); // do not eat a plain char following Unicode symbol
+        break;
+      }
+      startOffset = endOffset;
+      endOffset = newEndOffset;
+    }
+    return endOffset;
+  }
+
+  private static boolean shouldExtend(char[] text, int startOffset, int endOffset) {
+    if (endOffset - startOffset > 1) {
+      return true;
+    }
+    if (isFormatChar(text, startOffset, endOffset)) {
+      return true;
+    }
+    return endOffset < text.length && text[endOffset] == CharUtils.DWC;
+  }
+
+  private static boolean isUnicodePart(char[] text, int ind) {
+    if (isFormatChar(text, ind, ind + 1)) {
+      return true;
+    }
+    if (text[ind] == CharUtils.DWC) {
+      return true;
+    }
+    return Character.UnicodeBlock.of(text[ind]) == Character.UnicodeBlock.MISCELLANEOUS_SYMBOLS_AND_ARROWS;
+  }
+
+  private static boolean isFormatChar(char[] text, int start, int end) {
+    if (end - start == 1) {
+      int charCode = text[start];
+      // From CMap#getFormatCharGlyph
+      if (charCode >= 0x200c) {
+        //noinspection RedundantIfStatement
+        if ((charCode <= 0x200f) ||
+          (charCode >= 0x2028 && charCode <= 0x202e) ||
+          (charCode >= 0x206a && charCode <= 0x206f)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Text run split into glyph clusters, each drawn in its cells with the font able to display it.
+   * Double-width placeholders are moved to the end of clusters in {@link #myText}.
+   */
+  static final class GlyphRun {
+    final char[] myText;
+    final int myClusterCount;
+    /** Cluster {@code i} starts in the cell {@code myStarts[i]}, its chars are {@code [myStarts[i], myTextEnds[i])} */
+    final int[] myStarts;
+    final int[] myTextEnds;
+    final Font[] myFonts;
+    final int[] myDescents;
+    /** Horizontal offsets centering wide clusters in their cells */
+    final int[] myOffsets;
+
+    GlyphRun(char @NotNull [] text, int clusterCount, int @NotNull [] starts, int @NotNull [] textEnds,
+             Font @NotNull [] fonts, int @NotNull [] descents, int @NotNull [] offsets) {
+      myText = text;
+      myClusterCount = clusterCount;
+      myStarts = starts;
+      myTextEnds = textEnds;
+      myFonts = fonts;
+      myDescents = descents;
+      myOffsets = offsets;
+    }
+  }
+
+  interface FontResolver {
+    @NotNull Font getFontToDisplay(char[] text, int start, int end, @NotNull TextStyle style);
+  }
+
+  private static final class Key {
+    private final String myText;
+    private final int myFontStyle;
+    private final int myCharWidth;
+
+    private Key(@NotNull String text, int fontStyle, int charWidth) {
+      myText = text;
+      myFontStyle = fontStyle;
+      myCharWidth = charWidth;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      Key key = (Key)o;
+      return myFontStyle == key.myFontStyle && myCharWidth == key.myCharWidth && myText.equals(key.myText);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * myText.hashCode() + myFontStyle) + myCharWidth;
+    }
+  }
+}
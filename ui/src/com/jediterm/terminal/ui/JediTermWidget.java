@@ -43,6 +43,8 @@ public class JediTermWidget extends JPanel implements TerminalSession, TerminalW
   private final JediTermTypeAheadModel myTypeAheadTerminalModel;
   private final TerminalTypeAheadManager myTypeAheadManager;
   private JediTermSearchComponent myFindComponent;
+  /** Kept while the search component is shown, so that repeated searches don't scan the whole history */
+  private BackgroundTextSearch myTextSearch;
   @SuppressWarnings("removal")
   private final PreConnectHandler myPreConnectHandler;
   private TtyConnector myTtyConnector;
@@ -273,6 +275,7 @@ public class JediTermWidget extends JPanel implements TerminalSession, TerminalW
       myTerminalStarter.close();
     }
     myTerminalPanel.dispose();
+    getTerminalTextBuffer().dispose();
     getExecutorServiceManager().shutdownWhenAllExecuted();
   }
 
@@ -308,6 +311,10 @@ public class JediTermWidget extends JPanel implements TerminalSession, TerminalW
           myInnerPanel.revalidate();
           myInnerPanel.repaint();
           myFindComponent = null;
+          if (myTextSearch != null) {
+            myTextSearch.dispose();
+            myTextSearch = null;
+          }
           myTerminalPanel.setFindResult(null);
           myTerminalPanel.requestFocusInWindow();
         }
@@ -348,9 +355,28 @@ public class JediTermWidget extends JPanel implements TerminalSession, TerminalW
   }
 
   private void findText(String text, boolean ignoreCase) {
-    FindResult results = TerminalSearchUtil.searchInTerminalTextBuffer(getTerminalTextBuffer(), text, ignoreCase);
-    myTerminalPanel.setFindResult(results);
-    myFindComponent.onResultUpdated(results);
+    if (myTextSearch == null) {
+      TerminalExecutorServiceManager executorServiceManager = getExecutorServiceManager();
+      myTextSearch = new BackgroundTextSearch(getTerminalTextBuffer(),
+                                              executorServiceManager.getUnboundedExecutorService(),
+                                              executorServiceManager.getSingleThreadScheduledExecutor(),
+                                              SwingUtilities::invokeLater,
+                                              (result, complete) -> onFindResultUpdated(result));
+    }
+    myTextSearch.search(text, ignoreCase, myTerminalPanel.getVerticalScrollModel().getValue());
+  }
+
+  private void onFindResultUpdated(@Nullable FindResult result) {
+    if (myFindComponent == null) {
+      return;
+    }
+    // the result is updated while the search goes on and on new output, the selected item stays selected
+    FindResult previousResult = myTerminalPanel.getFindResult();
+    if (result != null && previousResult != null && !previousResult.getItems().isEmpty()) {
+      result.selectItemStartingAt(previousResult.selectedItem().getStart());
+    }
+    myTerminalPanel.setFindResult(result);
+    myFindComponent.onResultUpdated(result);
     myScrollBar.repaint();
   }
 
@@ -453,8 +479,10 @@ public class JediTermWidget extends JPanel implements TerminalSession, TerminalW
         Color color = mySettingsProvider.getTerminalColorPalette()
           .getBackground(Objects.requireNonNull(mySettingsProvider.getFoundPatternColor().getBackground()));
         g.setColor(AwtTransformers.toAwtColor(color));
+        // rows of found items are counted with the discarded history lines
+        int firstHistoryRow = (int)getTerminalTextBuffer().getDiscardedHistoryLinesCount();
         for (FindItem r : result.getItems()) {
-          int where = trackBounds.height * r.getStart().y / modelHeight;
+          int where = trackBounds.height * (r.getStart().y - firstHistoryRow) / modelHeight;
           g.fillRect(trackBounds.x, trackBounds.y + where, trackBounds.width, anchorHeight);
         }
       }
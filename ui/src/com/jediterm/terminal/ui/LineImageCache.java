@@ -0,0 +1,180 @@
+package com.jediterm.terminal.ui;
+
+import com.jediterm.terminal.model.TerminalLine;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LRU cache of rendered rows, so that rows showing unchanged lines (e.g. while scrolling through the history)
+ * are painted as image blits instead of drawing their text again.
+ * <p>
+ * Images are keyed by the buffer line they were rendered from and are valid while the line has the same content
+ * (see {@link TerminalLine#hasSameContent}). All images are dropped when the rendering settings (fonts, colors, size)
+ * change. The total size of images is limited by the memory budget, images of evicted rows are reused.
+ * <p>
+ * A line is rendered to an image only when it is painted the second time with the same content,
+ * so that streaming output, where every line is painted once, doesn't pay for rendering images.
+ * Painted lines are remembered by hashes of their identity and content, so lines without images are not referenced.
+ */
+public final class LineImageCache {
+  private static final int MAX_FREE_IMAGES = 4;
+  static final int MAX_ENTRIES = 8192;
+
+  private final long myBudgetBytes;
+  private final LinkedHashMap<TerminalLine, Entry> myEntries = new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<Long, Boolean> myPaintedLines = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+  private final List<BufferedImage> myFreeImages = new ArrayList<>();
+  private @Nullable Object myRenderSettings;
+  private long myUsedBytes;
+
+  private long myHitCount;
+  private long myMissCount;
+  private long myEvictionCount;
+
+  LineImageCache(long budgetBytes) {
+    myBudgetBytes = budgetBytes;
+  }
+
+  /**
+   * Drops all images if the rendering settings differ from the ones the images were rendered with.
+   */
+  void validate(@NotNull Object renderSettings) {
+    if (!renderSettings.equals(myRenderSettings)) {
+      clear();
+      myRenderSettings = renderSettings;
+    }
+  }
+
+  @Nullable BufferedImage get(@NotNull TerminalLine sourceLine, @NotNull TerminalLine line) {
+    Entry entry = myEntries.get(sourceLine);
+    if (entry != null && entry.myLine.hasSameContent(line)) {
+      myHitCount++;
+      return entry.myImage;
+    }
+    myMissCount++;
+    return null;
+  }
+
+  /**
+   * @return true if the line has already been painted with the same content, so its image is worth caching
+   */
+  boolean isPainted(@NotNull TerminalLine sourceLine, @NotNull TerminalLine line) {
+    return myPaintedLines.get(getPaintedLineKey(sourceLine, line)) != null;
+  }
+
+  /**
+   * Records that the line is painted without an image.
+   */
+  void markPainted(@NotNull TerminalLine sourceLine, @NotNull TerminalLine line) {
+    myPaintedLines.put(getPaintedLineKey(sourceLine, line), Boolean.TRUE);
+  }
+
+  private static long getPaintedLineKey(@NotNull TerminalLine sourceLine, @NotNull TerminalLine line) {
+    // a hash collision only makes a line painted once rendered to an image
+    return (long)System.identityHashCode(sourceLine) << 32 | line.getContentHash() & 0xFFFFFFFFL;
+  }
+
+  void put(@NotNull TerminalLine sourceLine, @NotNull TerminalLine line, @NotNull BufferedImage image) {
+    Entry entry = new Entry(line, image);
+    Entry previous = myEntries.put(sourceLine, entry);
+    if (previous != null) {
+      remove(previous);
+    }
+    myUsedBytes += entry.getSize();
+    Iterator<Entry> iterator = myEntries.values().iterator();
+    while ((myUsedBytes > myBudgetBytes || myEntries.size() > MAX_ENTRIES) && iterator.hasNext()) {
+      Entry eldest = iterator.next();
+      iterator.remove();
+      remove(eldest);
+      myEvictionCount++;
+    }
+  }
+
+  private void remove(@NotNull Entry entry) {
+    myUsedBytes -= entry.getSize();
+    release(entry.myImage);
+  }
+
+  /**
+   * @return an image of an evicted row if it has the given size, or a new image compatible with the device
+   */
+  @NotNull BufferedImage obtainImage(@NotNull GraphicsConfiguration configuration, int width, int height) {
+    for (int i = myFreeImages.size() - 1; i >= 0; i--) {
+      BufferedImage image = myFreeImages.remove(i);
+      if (image.getWidth() == width && image.getHeight() == height) {
+        return image;
+      }
+    }
+    return configuration.createCompatibleImage(width, height, Transparency.OPAQUE);
+  }
+
+  /**
+   * Returns an image which is not cached to be reused by {@link #obtainImage}.
+   */
+  void release(@NotNull BufferedImage image) {
+    if (myFreeImages.size() < MAX_FREE_IMAGES) {
+      myFreeImages.add(image);
+    }
+  }
+
+  void clear() {
+    myEntries.clear();
+    myPaintedLines.clear();
+    myFreeImages.clear();
+    myUsedBytes = 0;
+  }
+
+  public long getHitCount() {
+    return myHitCount;
+  }
+
+  public long getMissCount() {
+    return myMissCount;
+  }
+
+  public long getEvictionCount() {
+    return myEvictionCount;
+  }
+
+  public double getHitRate() {
+    long total = myHitCount + myMissCount;
+    return total == 0 ? 0 : (double)myHitCount / total;
+  }
+
+  public long getUsedBytes() {
+    return myUsedBytes;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d KB, hit rate %.1f%% (%d hits, %d misses), %d evictions",
+                         myUsedBytes / 1024, getHitRate() * 100, myHitCount, myMissCount, myEvictionCount);
+  }
+
+  private static final class Entry {
+    private final TerminalLine myLine;
+    private final BufferedImage myImage;
+
+    private Entry(@NotNull TerminalLine line, @NotNull BufferedImage image) {
+      myLine = line;
+      myImage = image;
+    }
+
+    private long getSize() {
+      return 4L * myImage.getWidth() * myImage.getHeight();
+    }
+  }
+}
@@ -33,18 +33,23 @@ import javax.swing.event.ChangeListener;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.font.TextHitInfo;
+import java.awt.geom.AffineTransform;
 import java.awt.im.InputMethodRequests;
 import java.awt.image.BufferedImage;
 import java.awt.image.ImageObserver;
+import java.awt.image.VolatileImage;
 import java.lang.ref.WeakReference;
 import java.net.URI;
 import java.text.AttributedCharacterIterator;
 import java.text.BreakIterator;
 import java.text.CharacterIterator;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -52,7 +57,13 @@ import static com.jediterm.terminal.ui.UtilKt.isWindows;
 
 public class TerminalPanel extends JComponent implements TerminalDisplay, TerminalActionProvider {
   private static final Logger LOG = LoggerFactory.getLogger(TerminalPanel.class);
+  /**
+   * Memory budget of rendered rows in megabytes, 0 disables caching of rows.
+   */
+  private static final String LINE_IMAGE_CACHE_BUDGET_PROPERTY = "jediterm.render.line.image.cache.mb";
   private static final long serialVersionUID = -1048763516632093014L;
+  private static final int MAX_PENDING_SCROLLS = 16;
+  private static final TerminalLine EMPTY_LINE = TerminalLine.createEmpty();
 
   public static final double SCROLL_SPEED = 0.05;
 
@@ -100,10 +111,46 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
   private TerminalActionProvider myNextActionProvider;
   private String myInputMethodUncommittedChars;
 
+  /**
+   * Single-shot timer of the next frame, see {@link #requestFrame}. It is not running while nothing changes,
+   * except to blink the cursor or the text.
+   */
   private Timer myRepaintTimer;
+  private final AtomicBoolean myFrameRequested = new AtomicBoolean(false);
+  private long myLastFrameNanos;
+  /**
+   * Rows of the back buffer with blinking text painted, each repainted row overwrites its bit.
+   */
+  private final BitSet myBlinkingRows = new BitSet();
+  private boolean myDisposed;
   private final AtomicInteger scrollDy = new AtomicInteger(0);
   private final AtomicBoolean myHistoryBufferLineCountChanged = new AtomicBoolean(false);
   private final AtomicBoolean needRepaint = new AtomicBoolean(true);
+  /**
+   * Set when the text or the cursor changed, only the rows differing from {@link #myBackBufferLines}
+   * and the cursor rows are repainted then.
+   */
+  private final AtomicBoolean needRepaintDamagedRows = new AtomicBoolean(false);
+  private final @Nullable LineImageCache myLineImageCache = createLineImageCache();
+  /** Accessed on EDT only */
+  private final GlyphRunCache myGlyphRunCache = new GlyphRunCache(this::getFontToDisplay);
+  /**
+   * Rows painted last time, rows are painted again only when their lines change, see {@link #updateBackBuffer}.
+   * Accessed on EDT only.
+   */
+  private @Nullable VolatileImage myBackBuffer;
+  /** Lines painted in the rows of {@link #myBackBuffer}, null for rows to be painted again */
+  private TerminalLine @NotNull [] myBackBufferLines = new TerminalLine[0];
+  private @Nullable Object myBackBufferSettings;
+  private int myBackBufferScrollOrigin;
+  private boolean myBackBufferValid;
+  /**
+   * Scrolled regions as {top, size, dy} (see {@link #scrollArea}) not applied to {@link #myBackBuffer} yet,
+   * added under the text buffer lock and drained on EDT under the read lock.
+   */
+  private final List<int[]> myPendingScrolls = new ArrayList<>();
+  private boolean myPendingScrollsOverflow;
+  private int myPaintedCursorY = -1;
 
   private int myMaxFPS = 50;
   private int myBlinkingPeriod = 500;
@@ -136,14 +183,35 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
     enableEvents(AWTEvent.KEY_EVENT_MASK | AWTEvent.INPUT_METHOD_EVENT_MASK);
     enableInputMethods(true);
 
-    terminalTextBuffer.addModelListener(this::repaint);
-    terminalTextBuffer.addHistoryBufferListener(() -> myHistoryBufferLineCountChanged.set(true));
+    terminalTextBuffer.addModelListener(this::repaintDamagedRows);
+    terminalTextBuffer.addHistoryBufferListener(() -> {
+      myHistoryBufferLineCountChanged.set(true);
+      requestFrame();
+    });
+    terminalTextBuffer.addChangesListener(new TextBufferChangesListener() {
+      @Override
+      public void historyLinesReplaced(int fromIndex, int oldCount, int newCount) {
+        TerminalPanel.this.historyLinesReplaced(fromIndex, oldCount, newCount);
+      }
+    });
     TextProcessing textProcessing = terminalTextBuffer.getTextProcessing$core();
     if (textProcessing != null) {
       textProcessing.addHyperlinkListener(this::repaint);
     }
   }
 
+  private static @Nullable LineImageCache createLineImageCache() {
+    int budgetMb = Integer.getInteger(LINE_IMAGE_CACHE_BUDGET_PROPERTY, 32);
+    return budgetMb > 0 ? new LineImageCache(budgetMb * 1024L * 1024L) : null;
+  }
+
+  /**
+   * @return the cache of rendered rows, e.g. to report its hit rate; null if disabled
+   */
+  public @Nullable LineImageCache getLineImageCache() {
+    return myLineImageCache;
+  }
+
   void setTypeAheadManager(@NotNull TerminalTypeAheadManager typeAheadManager) {
     myTypeAheadManager = typeAheadManager;
   }
@@ -156,12 +224,133 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
   @Override
   public void repaint() {
     needRepaint.set(true);
+    requestFrame();
   }
 
   private void doRepaint() {
+    myBackBufferValid = false;
     super.repaint();
   }
 
+  private void repaintDamagedRows() {
+    needRepaintDamagedRows.set(true);
+    requestFrame();
+  }
+
+  /**
+   * Schedules a frame, can be called from any thread.
+   * The frame is painted immediately if no frame was painted during the last frame interval ({@code 1000 / maxFPS} ms),
+   * e.g. to echo typed characters with minimal latency; otherwise changes are coalesced until the interval passes.
+   */
+  private void requestFrame() {
+    if (myFrameRequested.compareAndSet(false, true)) {
+      SwingUtilities.invokeLater(this::scheduleFrame);
+    }
+  }
+
+  private void scheduleFrame() {
+    if (myDisposed || myRepaintTimer == null || !myFrameRequested.get()) {
+      // the frame has been painted already
+      return;
+    }
+    long delayMillis = TimeUnit.NANOSECONDS.toMillis(myLastFrameNanos + getFrameIntervalNanos() - System.nanoTime());
+    if (delayMillis <= 0) {
+      myRepaintTimer.stop();
+      paintFrame();
+    }
+    else {
+      myRepaintTimer.setInitialDelay((int)delayMillis);
+      myRepaintTimer.restart();
+    }
+  }
+
+  private long getFrameIntervalNanos() {
+    return TimeUnit.SECONDS.toNanos(1) / Math.max(myMaxFPS, 1);
+  }
+
+  private void paintFrame() {
+    myLastFrameNanos = System.nanoTime();
+    // changes requested by blinking are painted in this frame
+    myFrameRequested.set(true);
+    myCursor.changeStateIfNeeded();
+    myTextBlinkingTracker.updateState(mySettingsProvider, this);
+    myFrameRequested.set(false);
+    updateScrolling(false);
+    boolean repaintDamagedRows = needRepaintDamagedRows.getAndSet(false);
+    try {
+      if (needRepaint.getAndSet(false)) {
+        doRepaint();
+      }
+      else if (repaintDamagedRows) {
+        doRepaintDamagedRows();
+      }
+    }
+    catch (Exception ex) {
+      LOG.error("Error while terminal panel redraw", ex);
+    }
+    scheduleBlinking();
+  }
+
+  /**
+   * Schedules a frame for the next blink of the cursor or of the painted text, if any.
+   */
+  private void scheduleBlinking() {
+    long currentTime = System.currentTimeMillis();
+    long delay = myCursor.getNextBlinkDelay(currentTime);
+    if (!myBlinkingRows.isEmpty()) {
+      long textBlinkDelay = myTextBlinkingTracker.getNextUpdateDelay(mySettingsProvider, currentTime);
+      if (textBlinkDelay >= 0 && (delay < 0 || textBlinkDelay < delay)) {
+        delay = textBlinkDelay;
+      }
+    }
+    if (myFrameRequested.get()) {
+      // a frame is scheduled anyway, the blinking is scheduled after it
+      return;
+    }
+    if (delay >= 0) {
+      myRepaintTimer.setInitialDelay((int)Math.min(Math.max(delay, 1), Integer.MAX_VALUE));
+      myRepaintTimer.restart();
+    }
+    else {
+      myRepaintTimer.stop();
+    }
+  }
+
+  private void doRepaintDamagedRows() {
+    if (myBackBuffer == null || !myBackBufferValid) {
+      doRepaint();
+      return;
+    }
+    TerminalViewportSnapshot snapshot;
+    myTerminalTextBuffer.readLock();
+    try {
+      snapshot = myTerminalTextBuffer.createViewportSnapshot(myClientScrollOrigin, myTermSize.getRows());
+    }
+    finally {
+      myTerminalTextBuffer.readUnlock();
+    }
+    BitSet rows = new BitSet();
+    for (int row = 0; row < myTermSize.getRows(); row++) {
+      if (!isBackBufferRowValid(row, snapshot)) {
+        rows.set(row);
+      }
+    }
+    if (myPaintedCursorY >= 0) {
+      rows.set(myPaintedCursorY);
+    }
+    int cursorY = myCursor.getCoordY();
+    if (cursorY >= 0) {
+      rows.set(cursorY);
+    }
+    repaintRows(rows);
+  }
+
+  private void repaintRows(@NotNull BitSet rows) {
+    for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+      super.repaint(0, row * myCharSize.height, getWidth(), myCharSize.height);
+    }
+  }
+
   protected void reinitFontAndResize() {
     initFont();
 
@@ -173,10 +362,28 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
     myBoldFont = myNormalFont.deriveFont(Font.BOLD);
     myItalicFont = myNormalFont.deriveFont(Font.ITALIC);
     myBoldItalicFont = myNormalFont.deriveFont(Font.BOLD | Font.ITALIC);
+    invalidateGlyphRunCache();
 
     establishFontMetrics();
   }
 
+  @Override
+  public void setFont(Font font) {
+    super.setFont(font);
+    //noinspection ConstantValue: the font can be set by the super constructor
+    if (myGlyphRunCache != null) {
+      invalidateGlyphRunCache();
+    }
+  }
+
+  /**
+   * Drops the cached segmentation of text runs and the fonts resolved by {@link #getFontToDisplay}.
+   * Subclasses should call it when {@link #getFontToDisplay} would return other fonts, e.g. when settings change.
+   */
+  protected void invalidateGlyphRunCache() {
+    myGlyphRunCache.clear();
+  }
+
   public void init(@NotNull JScrollBar scrollBar) {
     initFont();
 
@@ -280,15 +487,15 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
           } else if (count == 3) {
             // select line
             final Point charCoords = panelToCharCoords(e.getPoint());
-            int startLine = charCoords.y;
-            while (startLine > -getScrollLinesStorage().getSize()
-                    && myTerminalTextBuffer.getLine(startLine - 1).isWrapped()) {
-              startLine--;
+            int startLine;
+            int endLine;
+            myTerminalTextBuffer.readLock();
+            try {
+              startLine = myTerminalTextBuffer.findLogicalLineStart(charCoords.y);
+              endLine = myTerminalTextBuffer.findLogicalLineEnd(charCoords.y);
             }
-            int endLine = charCoords.y;
-            while (endLine < myTerminalTextBuffer.getHeight()
-                    && myTerminalTextBuffer.getLine(endLine).isWrapped()) {
-              endLine++;
+            finally {
+              myTerminalTextBuffer.readUnlock();
             }
             updateSelection(new TerminalSelection(new Point(0, startLine)));
             updateSelectionEnd(new Point(myTermSize.getColumns(), endLine));
@@ -330,7 +537,11 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
     addFocusListener(new FocusAdapter() {
       @Override
       public void focusGained(FocusEvent e) {
-        myFillCharacterBackgroundIncludingLineSpacing = mySettingsProvider.shouldFillCharacterBackgroundIncludingLineSpacing();
+        boolean fillCharacterBackgroundIncludingLineSpacing = mySettingsProvider.shouldFillCharacterBackgroundIncludingLineSpacing();
+        if (fillCharacterBackgroundIncludingLineSpacing != myFillCharacterBackgroundIncludingLineSpacing) {
+          myFillCharacterBackgroundIncludingLineSpacing = fillCharacterBackgroundIncludingLineSpacing;
+          repaint();
+        }
         myCursor.cursorChanged();
       }
 
@@ -343,8 +554,12 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
     });
 
     myBoundedRangeModel.addChangeListener(e -> {
-      myClientScrollOrigin = myBoundedRangeModel.getValue();
-      repaint();
+      // the range changes with every line added to the history, the view is to be repainted only when scrolled
+      int value = myBoundedRangeModel.getValue();
+      if (value != myClientScrollOrigin) {
+        myClientScrollOrigin = value;
+        repaint();
+      }
     });
 
     createRepaintTimer();
@@ -440,8 +655,10 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
     if (myRepaintTimer != null) {
       myRepaintTimer.stop();
     }
-    myRepaintTimer = new Timer(1000 / myMaxFPS, new WeakRedrawTimer(this));
-    myRepaintTimer.start();
+    myRepaintTimer = new Timer(1000 / Math.max(myMaxFPS, 1), new WeakRedrawTimer(this));
+    myRepaintTimer.setRepeats(false);
+    myFrameRequested.set(false);
+    requestFrame();
   }
 
   public boolean isLocalMouseAction(MouseEvent e) {
@@ -480,8 +697,10 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
   protected @Nullable SubstringFinder.FindResult selectPrevOrNextFindResultItem(boolean next) {
     if (myFindResult != null && !myFindResult.getItems().isEmpty()) {
       FindItem item = next ? myFindResult.nextFindItem() : myFindResult.prevFindItem();
-      updateSelection(new TerminalSelection(new Point(item.getStart().x, item.getStart().y - myTerminalTextBuffer.getHistoryLinesCount()),
-        new Point(item.getEnd().x, item.getEnd().y - myTerminalTextBuffer.getHistoryLinesCount())));
+      // rows of found items are counted with the discarded history lines
+      int firstScreenRow = (int)myTerminalTextBuffer.getDiscardedHistoryLinesCount() + myTerminalTextBuffer.getHistoryLinesCount();
+      updateSelection(new TerminalSelection(new Point(item.getStart().x, item.getStart().y - firstScreenRow),
+        new Point(item.getEnd().x, item.getEnd().y - firstScreenRow)));
       if (mySelection.getStart().y < getTerminalTextBuffer().getHeight() / 2) {
         myBoundedRangeModel.setValue(mySelection.getStart().y - getTerminalTextBuffer().getHeight() / 2);
       }
@@ -506,15 +725,8 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
     public void actionPerformed(ActionEvent e) {
       TerminalPanel terminalPanel = ref.get();
       if (terminalPanel != null) {
-        terminalPanel.myCursor.changeStateIfNeeded();
-        terminalPanel.myTextBlinkingTracker.updateState(terminalPanel.mySettingsProvider, terminalPanel);
-        terminalPanel.updateScrolling(false);
-        if (terminalPanel.needRepaint.getAndSet(false)) {
-          try {
-            terminalPanel.doRepaint();
-          } catch (Exception ex) {
-            LOG.error("Error while terminal panel redraw", ex);
-          }
+        if (!terminalPanel.myDisposed) {
+          terminalPanel.paintFrame();
         }
       } else { // terminalPanel was garbage collected
         Timer timer = (Timer) e.getSource();
@@ -754,6 +966,10 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
     return Character.isLetterOrDigit(character);
   }
 
+  @NotNull SettingsProvider getSettingsProvider() {
+    return mySettingsProvider;
+  }
+
   protected void setupAntialiasing(Graphics graphics) {
     if (graphics instanceof Graphics2D) {
       Graphics2D myGfx = (Graphics2D) graphics;
@@ -782,92 +998,388 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
 
     setupAntialiasing(gfx);
 
-    gfx.setColor(getBackground());
-
-    gfx.fillRect(0, 0, getWidth(), getHeight());
-
+    // only the damaged rows are repainted when the text changes, see doRepaintDamagedRows
+    Rectangle clip = gfx.getClipBounds();
+    if (clip == null) {
+      clip = new Rectangle(0, 0, getWidth(), getHeight());
+    }
+    int fromRow = Math.max(clip.y / myCharSize.height, 0);
+    int toRow = Math.min((clip.y + clip.height + myCharSize.height - 1) / myCharSize.height, myTermSize.getRows());
+
+    // the read lock is held only to take a snapshot of the visible lines, so that painting doesn't block the emulator
+    TerminalViewportSnapshot snapshot;
+    int[] scrollRange;
+    List<int[]> scrolls = null;
+    String cursorChar = null;
+    TextStyle cursorCharStyle = null;
+    myTerminalTextBuffer.readLock();
     try {
-      myTerminalTextBuffer.lock();
-      // update myClientScrollOrigin as scrollArea might have been invoked after last WeakRedrawTimer action
-      updateScrolling(false);
-      myTerminalTextBuffer.processHistoryAndScreenLines(myClientScrollOrigin, myTermSize.getRows(), new StyledTextConsumer() {
-        final int columnCount = getColumnCount();
+      // update myClientScrollOrigin as scrollArea might have been invoked after last WeakRedrawTimer action,
+      // the scroll model is updated after the lock is released
+      scrollRange = computeScrollRange(false);
+      if (scrollRange != null) {
+        myClientScrollOrigin = scrollRange[0];
+      }
+      snapshot = myTerminalTextBuffer.createViewportSnapshot(myClientScrollOrigin, myTermSize.getRows());
+      if (!myPendingScrollsOverflow) {
+        scrolls = new ArrayList<>(myPendingScrolls);
+      }
+      myPendingScrolls.clear();
+      myPendingScrollsOverflow = false;
+      int cursorY = myCursor.getCoordY();
+      if (cursorY < getRowCount() && !hasUncommittedChars()) {
+        int cursorX = myCursor.getCoordX();
+        // the line is taken from the snapshot, as missing lines can't be created under the read lock
+        TerminalLine cursorLine = snapshot.getLine(cursorY);
+        if (cursorLine == null) {
+          cursorLine = EMPTY_LINE;
+        }
+        char c = cursorLine.charAt(cursorX);
+        cursorChar = "" + c;
+        if (Character.isHighSurrogate(c)) {
+          cursorChar += cursorLine.charAt(cursorX + 1);
+        }
+        TextStyle style = cursorLine.getStyleAt(cursorX);
+        cursorCharStyle = style != null ? style : myStyleState.getCurrent();
+      }
+    }
+    finally {
+      myTerminalTextBuffer.readUnlock();
+    }
+    setScrollRange(scrollRange);
 
-        @Override
-        public void consume(int x, int y, @NotNull TextStyle style, @NotNull CharBuffer characters, int startRow) {
-          int row = y - startRow;
-          drawCharacters(x, row, style, characters, gfx, myFillCharacterBackgroundIncludingLineSpacing);
-
-          if (myFindResult != null) {
-            List<Pair<Integer, Integer>> ranges = myFindResult.getRanges(characters);
-            if (ranges != null && !ranges.isEmpty()) {
-              TextStyle foundPatternStyle = getFoundPattern(style);
-              for (Pair<Integer, Integer> range : ranges) {
-                CharBuffer foundPatternChars = characters.subBuffer(range);
-                drawCharacters(x + range.getFirst(), row, foundPatternStyle, foundPatternChars, gfx);
-              }
-            }
-          }
+    BitSet paintedRows = updateBackBuffer(gfx, snapshot, scrolls);
+    VolatileImage backBuffer = Objects.requireNonNull(myBackBuffer);
+    int rowsHeight = myTermSize.getRows() * myCharSize.height;
+    gfx.drawImage(backBuffer, 0, 0, getWidth(), rowsHeight, null);
+    if (backBuffer.contentsLost()) {
+      doRepaint();
+    }
+    if (clip.y + clip.height > rowsHeight) {
+      gfx.setColor(getBackground());
+      gfx.fillRect(clip.x, rowsHeight, clip.width, clip.y + clip.height - rowsHeight);
+    }
+    // rows outside the clip changed since the last paint are still to be repainted
+    paintedRows.clear(fromRow, toRow);
+    repaintRows(paintedRows);
+    myPaintedCursorY = cursorChar != null ? myCursor.getCoordY() : -1;
 
-          if (mySelection != null) {
-            Pair<Integer, Integer> interval = mySelection.intersect(x, row + myClientScrollOrigin, characters.length());
-            if (interval != null) {
-              TextStyle selectionStyle = getSelectionStyle(style);
-              CharBuffer selectionChars = characters.subBuffer(interval.getFirst() - x, interval.getSecond());
+    if (cursorChar != null) {
+      TextStyle cursorStyle;
+      if (inSelection(myCursor.getCoordX(), myCursor.getCoordY())) {
+        cursorStyle = getSelectionStyle(cursorCharStyle);
+      }
+      else {
+        cursorStyle = cursorCharStyle;
+      }
+      myCursor.drawCursor(cursorChar, gfx, cursorStyle);
+    }
+    resetColorCache();
+    drawInputMethodUncommitedChars(gfx);
 
-              drawCharacters(interval.getFirst(), row, selectionStyle, selectionChars, gfx);
-            }
-          }
+    drawMargins(gfx, getWidth(), getHeight());
+  }
+
+  /**
+   * Brings the back buffer in line with the snapshot: scrolled regions are moved with {@code copyArea}
+   * and only the rows whose lines differ from the painted ones are painted.
+   *
+   * @param scrolls regions scrolled since the last paint, null if unknown
+   * @return the painted rows
+   */
+  private @NotNull BitSet updateBackBuffer(@NotNull Graphics2D gfx, @NotNull TerminalViewportSnapshot snapshot,
+                                           @Nullable List<int[]> scrolls) {
+    int rows = myTermSize.getRows();
+    int rowHeight = myCharSize.height;
+    AffineTransform transform = gfx.getTransform();
+    Object renderSettings = getRenderSettings(gfx);
+    int imageWidth = (int)Math.ceil(getWidth() * transform.getScaleX());
+    int imageHeight = (int)Math.ceil(rows * rowHeight * transform.getScaleY());
+    GraphicsConfiguration configuration = gfx.getDeviceConfiguration();
+    VolatileImage backBuffer = myBackBuffer;
+    int status = backBuffer != null && backBuffer.getWidth() == imageWidth && backBuffer.getHeight() == imageHeight
+                 ? backBuffer.validate(configuration) : VolatileImage.IMAGE_INCOMPATIBLE;
+    if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+      backBuffer = configuration.createCompatibleVolatileImage(Math.max(imageWidth, 1), Math.max(imageHeight, 1),
+                                                               Transparency.OPAQUE);
+      myBackBuffer = backBuffer;
+    }
+    if (status != VolatileImage.IMAGE_OK) {
+      // the image contents are lost
+      myBackBufferValid = false;
+    }
+    boolean backBufferValid = myBackBufferValid;
+    if (myBackBufferLines.length != rows || !renderSettings.equals(myBackBufferSettings)) {
+      myBackBufferLines = new TerminalLine[rows];
+      myBackBufferSettings = renderSettings;
+      backBufferValid = false;
+    }
+    else if (!backBufferValid) {
+      Arrays.fill(myBackBufferLines, null);
+    }
+    myBackBufferValid = true;
+
+    Graphics2D backGfx = backBuffer.createGraphics();
+    try {
+      double deviceRowHeight = rowHeight * transform.getScaleY();
+      // rows can be moved only by whole pixels
+      boolean canScroll = myBackBufferScrollOrigin == 0 && myClientScrollOrigin == 0 && deviceRowHeight == Math.rint(deviceRowHeight);
+      if (scrolls != null && canScroll) {
+        for (int[] scroll : scrolls) {
+          scrollBackBuffer(backGfx, scroll[0], scroll[1], scroll[2], (int)deviceRowHeight);
         }
+      }
+      myBackBufferScrollOrigin = myClientScrollOrigin;
 
-        @Override
-        public void consumeNul(int x, int y, int nulIndex, TextStyle style, CharBuffer characters, int startRow) {
-          int row = y - startRow;
-          if (mySelection != null) {
-            // compute intersection with all NUL areas, non-breaking
-            Pair<Integer, Integer> interval = mySelection.intersect(nulIndex, row + myClientScrollOrigin, columnCount - nulIndex);
-            if (interval != null) {
-              TextStyle selectionStyle = getSelectionStyle(style);
-              drawCharacters(x, row, selectionStyle, characters, gfx);
-              return;
-            }
-          }
-          drawCharacters(x, row, style, characters, gfx);
+      setupAntialiasing(backGfx);
+      backGfx.scale(transform.getScaleX(), transform.getScaleY());
+      int columnCount = getColumnCount();
+      LineImageCache lineImageCache = myLineImageCache;
+      // found patterns are highlighted per run, so rows are not cached while a find result is shown
+      boolean useLineImageCache = lineImageCache != null && myFindResult == null;
+      if (useLineImageCache) {
+        lineImageCache.validate(renderSettings);
+      }
+      TextPainter painter = new TextPainter(backGfx, columnCount, getFirstFindResultRow(snapshot));
+      if (!backBufferValid) {
+        myBlinkingRows.clear();
+      }
+      else {
+        myBlinkingRows.clear(rows, Math.max(rows, myBlinkingRows.length()));
+      }
+      BitSet paintedRows = new BitSet();
+      for (int row = 0; row < rows; row++) {
+        if (isBackBufferRowValid(row, snapshot)) {
+          continue;
         }
+        backGfx.setClip(0, row * rowHeight, getWidth(), rowHeight);
+        backGfx.setColor(getBackground());
+        backGfx.fillRect(0, row * rowHeight, getWidth(), rowHeight);
+        boolean blinking;
+        if (useLineImageCache && !isRowSelected(row, columnCount)) {
+          blinking = paintRowImage(snapshot, row, backGfx, lineImageCache, columnCount);
+        }
+        else {
+          painter.myHasBlinkingText = false;
+          snapshot.processLines(painter, row, row + 1);
+          blinking = painter.myHasBlinkingText;
+        }
+        // the repainted row overwrites what was painted there before
+        myBlinkingRows.set(row, blinking);
+        TerminalLine line = snapshot.getLine(row);
+        myBackBufferLines[row] = line != null ? line : EMPTY_LINE;
+        paintedRows.set(row);
+      }
+      return paintedRows;
+    }
+    finally {
+      backGfx.dispose();
+    }
+  }
 
-        @Override
-        public void consumeQueue(int x, int y, int nulIndex, int startRow) {
-          if (x < columnCount) {
-            consumeNul(x, y, nulIndex, TextStyle.EMPTY, new CharBuffer(CharUtils.EMPTY_CHAR, columnCount - x), startRow);
+  private boolean isBackBufferRowValid(int row, @NotNull TerminalViewportSnapshot snapshot) {
+    TerminalLine paintedLine = row < myBackBufferLines.length ? myBackBufferLines[row] : null;
+    if (paintedLine == null) {
+      return false;
+    }
+    TerminalLine line = snapshot.getLine(row);
+    return paintedLine.hasSameContent(line != null ? line : EMPTY_LINE);
+  }
+
+  /**
+   * Moves rows {@code [top, top + size)} of the back buffer by {@code dy} rows (up if negative),
+   * the rows left behind are to be painted again.
+   */
+  private void scrollBackBuffer(@NotNull Graphics2D backGfx, int top, int size, int dy, int deviceRowHeight) {
+    int bottom = Math.min(top + size, myBackBufferLines.length);
+    int shift = Math.abs(dy);
+    if (top < 0 || shift >= bottom - top) {
+      if (top >= 0 && top < bottom) {
+        Arrays.fill(myBackBufferLines, top, bottom, null);
+      }
+      return;
+    }
+    BitSet blinkingRows = myBlinkingRows.get(top, bottom);
+    myBlinkingRows.clear(top, bottom);
+    for (int row = blinkingRows.nextSetBit(0); row >= 0; row = blinkingRows.nextSetBit(row + 1)) {
+      int movedRow = row + dy;
+      if (movedRow >= 0 && movedRow < bottom - top) {
+        myBlinkingRows.set(top + movedRow);
+      }
+    }
+    int width = myBackBuffer != null ? myBackBuffer.getWidth() : 0;
+    if (dy < 0) {
+      backGfx.copyArea(0, (top + shift) * deviceRowHeight, width, (bottom - top - shift) * deviceRowHeight, 0, -shift * deviceRowHeight);
+      System.arraycopy(myBackBufferLines, top + shift, myBackBufferLines, top, bottom - top - shift);
+      Arrays.fill(myBackBufferLines, bottom - shift, bottom, null);
+    }
+    else {
+      backGfx.copyArea(0, top * deviceRowHeight, width, (bottom - top - shift) * deviceRowHeight, 0, shift * deviceRowHeight);
+      System.arraycopy(myBackBufferLines, top, myBackBufferLines, top + shift, bottom - top - shift);
+      Arrays.fill(myBackBufferLines, top, top + shift, null);
+    }
+  }
+
+  private boolean isRowSelected(int row, int columnCount) {
+    return mySelection != null && mySelection.intersect(0, row + myClientScrollOrigin, columnCount) != null;
+  }
+
+  /**
+   * Paints the row with its cached image, the image is rendered and cached first if the row is painted again.
+   *
+   * @return true if the painted row has blinking text
+   */
+  private boolean paintRowImage(@NotNull TerminalViewportSnapshot snapshot, int row, @NotNull Graphics2D gfx,
+                             @NotNull LineImageCache lineImageCache, int columnCount) {
+    TerminalLine sourceLine = snapshot.getSourceLine(row);
+    TerminalLine line = snapshot.getLine(row);
+    if (sourceLine == null || line == null) {
+      return false;
+    }
+    int y = row * myCharSize.height;
+    BufferedImage image = lineImageCache.get(sourceLine, line);
+    if (image == null && !lineImageCache.isPainted(sourceLine, line)) {
+      TextPainter painter = new TextPainter(gfx, columnCount, getFirstFindResultRow(snapshot));
+      snapshot.processLines(painter, row, row + 1);
+      // rows with volatile styles are always painted directly, so they never get an image
+      if (!painter.myHasVolatileStyles) {
+        lineImageCache.markPainted(sourceLine, line);
+      }
+      return painter.myHasBlinkingText;
+    }
+    if (image == null) {
+      // render in device pixels, so that the image is not scaled on HiDPI screens
+      AffineTransform transform = gfx.getTransform();
+      image = lineImageCache.obtainImage(gfx.getDeviceConfiguration(),
+                                         (int)Math.ceil(getWidth() * transform.getScaleX()),
+                                         (int)Math.ceil(myCharSize.height * transform.getScaleY()));
+      Graphics2D imageGfx = image.createGraphics();
+      TextPainter painter = new TextPainter(imageGfx, columnCount, getFirstFindResultRow(snapshot));
+      try {
+        setupAntialiasing(imageGfx);
+        imageGfx.scale(transform.getScaleX(), transform.getScaleY());
+        imageGfx.translate(0, -y);
+        imageGfx.setColor(getBackground());
+        imageGfx.fillRect(0, y, getWidth(), myCharSize.height);
+        snapshot.processLines(painter, row, row + 1);
+      }
+      finally {
+        imageGfx.dispose();
+      }
+      gfx.drawImage(image, 0, y, getWidth(), myCharSize.height, null);
+      if (painter.myHasVolatileStyles) {
+        lineImageCache.release(image);
+      }
+      else {
+        lineImageCache.put(sourceLine, line, image);
+      }
+      return painter.myHasBlinkingText;
+    }
+    // cached rows have no volatile styles
+    gfx.drawImage(image, 0, y, getWidth(), myCharSize.height, null);
+    return false;
+  }
+
+  /**
+   * @return everything row images depend on besides the lines, cached images are dropped when it changes
+   */
+  private @NotNull Object getRenderSettings(@NotNull Graphics2D gfx) {
+    AffineTransform transform = gfx.getTransform();
+    return Arrays.asList(myNormalFont, myBoldFont, myItalicFont, myBoldItalicFont,
+                         myCharSize.width, myCharSize.height, mySpaceBetweenLines, myDescent, getWidth(), getInsetX(),
+                         transform.getScaleX(), transform.getScaleY(),
+                         getPalette(), getWindowForeground(), getWindowBackground(), getBackground(),
+                         myFillCharacterBackgroundIncludingLineSpacing, mySettingsProvider.useAntialiasing(),
+                         mySettingsProvider.ambiguousCharsAreDoubleWidth(), mySettingsProvider.DECCompatibilityMode());
+  }
+
+  /**
+   * @return row of the first snapshot line counted as the rows of found items, i.e. including the discarded history lines
+   */
+  private static int getFirstFindResultRow(@NotNull TerminalViewportSnapshot snapshot) {
+    return (int)snapshot.getDiscardedHistoryLinesCount() + snapshot.getFirstBufferRow();
+  }
+
+  /**
+   * Draws the lines with the selection and the found patterns.
+   */
+  private class TextPainter implements StyledTextConsumer {
+    private final Graphics2D myGfx;
+    private final int myColumnCount;
+    /** Row of the first painted line as the rows of found items, see {@link #getFirstFindResultRow} */
+    private final int myFirstBufferRow;
+    /**
+     * Set if painted styles depend on the time or the mouse (blinking text, hyperlinks), such rows are not cached.
+     */
+    private boolean myHasVolatileStyles;
+    private boolean myHasBlinkingText;
+
+    private TextPainter(@NotNull Graphics2D gfx, int columnCount, int firstBufferRow) {
+      myGfx = gfx;
+      myColumnCount = columnCount;
+      myFirstBufferRow = firstBufferRow;
+    }
+
+    @Override
+    public void consume(int x, int y, @NotNull TextStyle style, @NotNull CharBuffer characters, int startRow) {
+      int row = y - startRow;
+      checkVolatile(style);
+      drawCharacters(x, row, style, characters, myGfx, myFillCharacterBackgroundIncludingLineSpacing);
+
+      if (myFindResult != null) {
+        List<Pair<Integer, Integer>> ranges = myFindResult.getRanges(myFirstBufferRow + row, x, characters.length());
+        if (ranges != null) {
+          TextStyle foundPatternStyle = getFoundPattern(style);
+          for (Pair<Integer, Integer> range : ranges) {
+            CharBuffer foundPatternChars = characters.subBuffer(range);
+            drawCharacters(x + range.getFirst(), row, foundPatternStyle, foundPatternChars, myGfx);
           }
         }
-      });
+      }
 
-      int cursorY = myCursor.getCoordY();
-      if (cursorY < getRowCount() && !hasUncommittedChars()) {
-        int cursorX = myCursor.getCoordX();
-        Pair<Character, TextStyle> sc = myTerminalTextBuffer.getStyledCharAt(cursorX, cursorY);
-        String cursorChar = "" + sc.getFirst();
-        if (Character.isHighSurrogate(sc.getFirst())) {
-          cursorChar += myTerminalTextBuffer.getStyledCharAt(cursorX + 1, cursorY).getFirst();
-        }
-        TextStyle normalStyle = sc.getSecond() != null ? sc.getSecond() : myStyleState.getCurrent();
-        TextStyle cursorStyle;
-        if (inSelection(cursorX, cursorY)) {
-          cursorStyle = getSelectionStyle(normalStyle);
+      if (mySelection != null) {
+        Pair<Integer, Integer> interval = mySelection.intersect(x, row + myClientScrollOrigin, characters.length());
+        if (interval != null) {
+          TextStyle selectionStyle = getSelectionStyle(style);
+          CharBuffer selectionChars = characters.subBuffer(interval.getFirst() - x, interval.getSecond());
+
+          drawCharacters(interval.getFirst(), row, selectionStyle, selectionChars, myGfx);
         }
-        else {
-          cursorStyle = normalStyle;
+      }
+    }
+
+    @Override
+    public void consumeNul(int x, int y, int nulIndex, TextStyle style, CharBuffer characters, int startRow) {
+      int row = y - startRow;
+      checkVolatile(style);
+      if (mySelection != null) {
+        // compute intersection with all NUL areas, non-breaking
+        Pair<Integer, Integer> interval = mySelection.intersect(nulIndex, row + myClientScrollOrigin, myColumnCount - nulIndex);
+        if (interval != null) {
+          TextStyle selectionStyle = getSelectionStyle(style);
+          drawCharacters(x, row, selectionStyle, characters, myGfx);
+          return;
         }
-        myCursor.drawCursor(cursorChar, gfx, cursorStyle);
       }
-    } finally {
-      myTerminalTextBuffer.unlock();
+      drawCharacters(x, row, style, characters, myGfx);
     }
-    resetColorCache();
-    drawInputMethodUncommitedChars(gfx);
 
-    drawMargins(gfx, getWidth(), getHeight());
+    @Override
+    public void consumeQueue(int x, int y, int nulIndex, int startRow) {
+      if (x < myColumnCount) {
+        consumeNul(x, y, nulIndex, TextStyle.EMPTY, new CharBuffer(CharUtils.EMPTY_CHAR, myColumnCount - x), startRow);
+      }
+    }
+
+    private void checkVolatile(@NotNull TextStyle style) {
+      if (BlinkingTextTracker.isBlinking(style)) {
+        myHasBlinkingText = true;
+        myHasVolatileStyles = true;
+      }
+      else if (style instanceof HyperlinkStyle) {
+        myHasVolatileStyles = true;
+      }
+    }
   }
 
   private void resetColorCache() {
@@ -1174,7 +1686,17 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
     public void cursorChanged() {
       myCursorHasChanged = true;
       myLastCursorChange = System.currentTimeMillis();
-      repaint();
+      repaintDamagedRows();
+    }
+
+    /**
+     * @return milliseconds until the cursor blinks, or -1 if it doesn't blink
+     */
+    public long getNextBlinkDelay(long currentTime) {
+      if (!isFocusOwner() || !isBlinking()) {
+        return -1;
+      }
+      return Math.max(myLastCursorChange + getBlinkingPeriod() + 1 - currentTime, 0);
     }
 
     private boolean cursorShouldChangeBlinkState(long currentTime) {
@@ -1190,7 +1712,7 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
         myCursorIsShown = !myCursorIsShown;
         myLastCursorChange = currentTime;
         myCursorHasChanged = false;
-        repaint();
+        repaintDamagedRows();
       }
     }
 
@@ -1311,22 +1833,43 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
     if (myTextBlinkingTracker.shouldBlinkNow(style)) {
       style = getInversedStyle(style);
     }
+    validateGlyphRunCache(myGlyphRunCache, gfx);
+    paintTextRun(x, y, style, buf, gfx, includeSpaceBetweenLines, myGlyphRunCache, myHoveredHyperlink, getWidth(), getHeight());
+  }
 
+  /**
+   * Drops cached runs of the cache if they were segmented for other fonts of the panel or another graphics.
+   */
+  void validateGlyphRunCache(@NotNull GlyphRunCache glyphRunCache, @NotNull Graphics2D gfx) {
+    glyphRunCache.validate(gfx.getFontRenderContext(), mySettingsProvider.DECCompatibilityMode(),
+                           myNormalFont, myBoldFont, myItalicFont, myBoldItalicFont);
+  }
+
+  /**
+   * Paints chars of a style from the cell {@code (x, y)}: the background, the text and the underline,
+   * within the area of the given size. {@link TerminalRasterizer} paints text with it too.
+   *
+   * @param glyphRunCache    validated cache to segment the text with
+   * @param hoveredHyperlink the hyperlink highlighted if its highlight mode is {@link HyperlinkStyle.HighlightMode#HOVER}
+   */
+  void paintTextRun(int x, int y, @NotNull TextStyle style, @NotNull CharBuffer buf, @NotNull Graphics2D gfx,
+                    boolean includeSpaceBetweenLines, @NotNull GlyphRunCache glyphRunCache,
+                    @Nullable LinkInfo hoveredHyperlink, int areaWidth, int areaHeight) {
     int xCoord = x * myCharSize.width + getInsetX();
     int yCoord = y * myCharSize.height + (includeSpaceBetweenLines ? 0 : mySpaceBetweenLines / 2);
 
-    if (xCoord < 0 || xCoord > getWidth() || yCoord < 0 || yCoord > getHeight()) {
+    if (xCoord < 0 || xCoord > areaWidth || yCoord < 0 || yCoord > areaHeight) {
       return;
     }
 
     int textLength = CharUtils.getTextLengthDoubleWidthAware(buf.getBuf(), buf.getStart(), buf.length(), mySettingsProvider.ambiguousCharsAreDoubleWidth());
-    int height = Math.min(myCharSize.height - (includeSpaceBetweenLines ? 0 : mySpaceBetweenLines), getHeight() - yCoord);
-    int width = Math.min(textLength * TerminalPanel.this.myCharSize.width, TerminalPanel.this.getWidth() - xCoord);
+    int height = Math.min(myCharSize.height - (includeSpaceBetweenLines ? 0 : mySpaceBetweenLines), areaHeight - yCoord);
+    int width = Math.min(textLength * myCharSize.width, areaWidth - xCoord);
 
     if (style instanceof HyperlinkStyle) {
       HyperlinkStyle hyperlinkStyle = (HyperlinkStyle) style;
 
-      if (hyperlinkStyle.getHighlightMode() == HyperlinkStyle.HighlightMode.ALWAYS || (isHoveredHyperlink(hyperlinkStyle) && hyperlinkStyle.getHighlightMode() == HyperlinkStyle.HighlightMode.HOVER)) {
+      if (hyperlinkStyle.getHighlightMode() == HyperlinkStyle.HighlightMode.ALWAYS || (hoveredHyperlink == hyperlinkStyle.getLinkInfo() && hyperlinkStyle.getHighlightMode() == HyperlinkStyle.HighlightMode.HOVER)) {
 
         // substitute text style with the hyperlink highlight style if applicable
         style = hyperlinkStyle.getHighlightStyle();
@@ -1346,7 +1889,7 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
 
     gfx.setColor(getStyleForeground(style));
 
-    drawChars(x, y, buf, style, gfx);
+    drawChars(x, y, buf, style, gfx, glyphRunCache, areaWidth, areaHeight);
 
     if (style.hasOption(TextStyle.Option.UNDERLINED)) {
       int baseLine = (y + 1) * myCharSize.height - mySpaceBetweenLines / 2 - myDescent;
@@ -1355,15 +1898,12 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
     }
   }
 
-  private boolean isHoveredHyperlink(@NotNull HyperlinkStyle link) {
-    return myHoveredHyperlink == link.getLinkInfo();
-  }
-
   /**
    * Draw every char in separate terminal cell to guaranty equal width for different lines.
    * Nevertheless, to improve kerning we draw word characters as one block for monospaced fonts.
    */
-  private void drawChars(int x, int y, @NotNull CharBuffer buf, @NotNull TextStyle style, @NotNull Graphics2D gfx) {
+  private void drawChars(int x, int y, @NotNull CharBuffer buf, @NotNull TextStyle style, @NotNull Graphics2D gfx,
+                         @NotNull GlyphRunCache glyphRunCache, int areaWidth, int areaHeight) {
     // workaround to fix Swing bad rendering of bold special chars on Linux
     // TODO required for italic?
     CharBuffer renderingBuffer;
@@ -1373,102 +1913,21 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
       renderingBuffer = buf;
     }
 
-    BreakIterator iterator = BreakIterator.getCharacterInstance();
-    char[] text = renderingBuffer.clone().getBuf();
-    iterator.setText(new String(text));
-    int endOffset;
-    int startOffset = 0;
-    while ((endOffset = iterator.next()) != BreakIterator.DONE) {
-      endOffset = extendEndOffset(text, iterator, startOffset, endOffset);
-      int effectiveEndOffset = shiftDwcToEnd(text, startOffset, endOffset);
-      if (effectiveEndOffset == startOffset) {
-        startOffset = endOffset;
-        continue; // nothing to draw
-      }
-      Font font = getFontToDisplay(text, startOffset, effectiveEndOffset, style);
-      gfx.setFont(font);
-      int descent = gfx.getFontMetrics(font).getDescent();
-      int baseLine = (y + 1) * myCharSize.height - mySpaceBetweenLines / 2 - descent;
-      int charWidth = myCharSize.width;
+    GlyphRunCache.GlyphRun run = glyphRunCache.getRun(renderingBuffer, style, gfx, myCharSize.width);
+    // glyphs are clipped within the clip of the caller, e.g. the painted row
+    Shape clip = gfx.getClip();
+    int charWidth = myCharSize.width;
+    int yCoord = y * myCharSize.height + mySpaceBetweenLines / 2;
+    for (int i = 0; i < run.myClusterCount; i++) {
+      int startOffset = run.myStarts[i];
+      gfx.setFont(run.myFonts[i]);
+      int baseLine = (y + 1) * myCharSize.height - mySpaceBetweenLines / 2 - run.myDescents[i];
       int xCoord = (x + startOffset) * charWidth + getInsetX();
-      int yCoord = y * myCharSize.height + mySpaceBetweenLines / 2;
-      gfx.setClip(xCoord, yCoord, getWidth() - xCoord, getHeight() - yCoord);
-
-      int emptyCells = endOffset - startOffset;
-      if (emptyCells >= 2) {
-        int drawnWidth = gfx.getFontMetrics(font).charsWidth(text, startOffset, effectiveEndOffset - startOffset);
-        int emptySpace = Math.max(0, emptyCells * charWidth - drawnWidth);
-        // paint a Unicode symbol closer to the center
-        xCoord += emptySpace / 2;
-      }
-      gfx.drawChars(text, startOffset, effectiveEndOffset - startOffset, xCoord, baseLine);
-
-      startOffset = endOffset;
-    }
-    gfx.setClip(null);
-  }
-
-  private static int shiftDwcToEnd(char[] text, int startOffset, int endOffset) {
-    int ind = startOffset;
-    for (int i = startOffset; i < endOffset; i++) {
-      if (text[i] != CharUtils.DWC) {
-        text[ind++] = text[i];
-      }
-    }
-    Arrays.fill(text, ind, endOffset, CharUtils.DWC);
-    return ind;
-  }
-
-  private static int extendEndOffset(char[] text, @NotNull BreakIterator iterator, int startOffset, int endOffset) {
-    while (shouldExtend(text, startOffset, endOffset)) {
-      int newEndOffset = iterator.next();
-      if (newEndOffset == BreakIterator.DONE) {
-        break;
-      }
-      if (newEndOffset - endOffset == 1 && !isUnicodePart(text, endOffset)) {
-        iterator.previous(); // do not eat a plain char following Unicode symbol
-        break;
-      }
-      startOffset = endOffset;
-      endOffset = newEndOffset;
-    }
-    return endOffset;
-  }
-
-  private static boolean shouldExtend(char[] text, int startOffset, int endOffset) {
-    if (endOffset - startOffset > 1) {
-      return true;
-    }
-    if (isFormatChar(text, startOffset, endOffset)) {
-      return true;
-    }
-    return endOffset < text.length && text[endOffset] == CharUtils.DWC;
-  }
-
-  private static boolean isUnicodePart(char[] text, int ind) {
-    if (isFormatChar(text, ind, ind + 1)) {
-      return true;
-    }
-    if (text[ind] == CharUtils.DWC) {
-      return true;
+      gfx.setClip(clip);
+      gfx.clipRect(xCoord, yCoord, areaWidth - xCoord, areaHeight - yCoord);
+      gfx.drawChars(run.myText, startOffset, run.myTextEnds[i] - startOffset, xCoord + run.myOffsets[i], baseLine);
     }
-    return Character.UnicodeBlock.of(text[ind]) == Character.UnicodeBlock.MISCELLANEOUS_SYMBOLS_AND_ARROWS;
-  }
-
-  private static boolean isFormatChar(char[] text, int start, int end) {
-    if (end - start == 1) {
-      int charCode = text[start];
-      // From CMap#getFormatCharGlyph
-      if (charCode >= 0x200c) {
-        //noinspection RedundantIfStatement
-        if ((charCode <= 0x200f) ||
-          (charCode >= 0x2028 && charCode <= 0x202e) ||
-          (charCode >= 0x206a && charCode <= 0x206f)) {
-          return true;
-        }
-      }
-    }
-    return false;
+    gfx.setClip(clip);
   }
 
   private @NotNull java.awt.Color getStyleForeground(@NotNull TextStyle style) {
@@ -1483,6 +1942,11 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
     return foreground;
   }
 
+  /**
+   * Returns the font to draw the glyph cluster {@code [start, end)} of the text with.
+   * Resolved fonts are cached by the cluster text and the bold and italic options of the style,
+   * until the fonts returned by {@link #createFont} change or {@link #invalidateGlyphRunCache} is called.
+   */
   protected @NotNull Font getFontToDisplay(char[] text, int start, int end, @NotNull TextStyle style) {
     boolean bold = style.hasOption(TextStyle.Option.BOLD);
     boolean italic = style.hasOption(TextStyle.Option.ITALIC);
@@ -1504,10 +1968,54 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
     gfx.fillRect(width, 0, getWidth() - width, getHeight());
   }
 
+  // Called in a background thread with myTerminalTextBuffer.lock() acquired
+  private void historyLinesReplaced(int fromIndex, int oldCount, int newCount) {
+    int dy = oldCount - newCount;
+    int end = fromIndex + oldCount;
+    // the lines above the end of the replaced ones are shifted, so keep showing the same lines
+    if (myBoundedRangeModel.getValue() + scrollDy.get() < end) {
+      scrollDy.addAndGet(dy);
+    }
+    TerminalSelection selection = mySelection;
+    if (selection != null) {
+      Point start = selection.getStart();
+      Point selectionEnd = selection.getEnd();
+      if (selectionEnd != null && Math.max(start.y, selectionEnd.y) < fromIndex) {
+        selection.shiftY(dy);
+        updateSelection(selection);
+      }
+      else if (Math.min(start.y, selectionEnd != null ? selectionEnd.y : start.y) < end) {
+        // the selected text was rewrapped
+        updateSelection(null);
+      }
+      repaint();
+    }
+  }
+
   // Called in a background thread with myTerminalTextBuffer.lock() acquired
   public void scrollArea(final int scrollRegionTop, final int scrollRegionSize, int dy) {
     scrollDy.addAndGet(dy);
-    updateSelection(null);
+    addPendingScroll(scrollRegionTop - 1, scrollRegionSize, dy);
+    if (mySelection != null) {
+      updateSelection(null);
+      repaint();
+    }
+  }
+
+  private void addPendingScroll(int top, int size, int dy) {
+    if (!myPendingScrolls.isEmpty()) {
+      int[] last = myPendingScrolls.get(myPendingScrolls.size() - 1);
+      if (last[0] == top && last[1] == size && Integer.signum(last[2]) == Integer.signum(dy)) {
+        last[2] += dy;
+        return;
+      }
+    }
+    if (myPendingScrolls.size() == MAX_PENDING_SCROLLS) {
+      // the back buffer is painted again anyway
+      myPendingScrolls.clear();
+      myPendingScrollsOverflow = true;
+    }
+    myPendingScrolls.add(new int[]{top, size, dy});
   }
 
   // should be called on EDT
@@ -1552,27 +2060,38 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
   }
 
   private void updateScrolling(boolean forceUpdate) {
+    setScrollRange(computeScrollRange(forceUpdate));
+  }
+
+  /**
+   * Computes the range of the scroll model for the current history size without changing the model, so that
+   * it can be computed under the buffer lock and set after the lock is released: model listeners may take the lock.
+   *
+   * @return value, extent, minimum and maximum of the model; null if it doesn't need to be updated
+   */
+  private int @Nullable [] computeScrollRange(boolean forceUpdate) {
     int dy = scrollDy.getAndSet(0);
     boolean historyBufferLineCountChanged = myHistoryBufferLineCountChanged.getAndSet(false);
     if (dy == 0 && !forceUpdate && !historyBufferLineCountChanged) {
-      return;
+      return null;
     }
+    int rows = myTermSize.getRows();
     if (myScrollingEnabled) {
       int value = myBoundedRangeModel.getValue();
       int historyLineCount = myTerminalTextBuffer.getHistoryLinesCount();
       if (value == 0) {
-        myBoundedRangeModel
-                .setRangeProperties(0, myTermSize.getRows(), -historyLineCount, myTermSize.getRows(), false);
-      } else {
-        // if scrolled to a specific area, update scroll to keep showing this area
-        myBoundedRangeModel.setRangeProperties(
-                Math.min(Math.max(value + dy, -historyLineCount), myTermSize.getRows()),
-                myTermSize.getRows(),
-                -historyLineCount,
-                myTermSize.getRows(), false);
+        return new int[]{0, rows, -historyLineCount, rows};
       }
-    } else {
-      myBoundedRangeModel.setRangeProperties(0, myTermSize.getRows(), 0, myTermSize.getRows(), false);
+      // if scrolled to a specific area, update scroll to keep showing this area;
+      // the model keeps the value within [minimum, maximum - extent]
+      return new int[]{Math.min(Math.max(value + dy, -historyLineCount), 0), rows, -historyLineCount, rows};
+    }
+    return new int[]{0, rows, 0, rows};
+  }
+
+  private void setScrollRange(int @Nullable [] range) {
+    if (range != null) {
+      myBoundedRangeModel.setRangeProperties(range[0], range[1], range[2], range[3], false);
     }
   }
 
@@ -2132,6 +2651,7 @@ public class TerminalPanel extends JComponent implements TerminalDisplay, Termin
   }
 
   public void dispose() {
+    myDisposed = true;
     myRepaintTimer.stop();
   }
 }
@@ -0,0 +1,102 @@
+package com.jediterm.terminal.ui;
+
+import com.jediterm.terminal.StyledTextConsumer;
+import com.jediterm.terminal.TextStyle;
+import com.jediterm.terminal.model.CharBuffer;
+import com.jediterm.terminal.model.TerminalTextBuffer;
+import com.jediterm.terminal.model.TerminalViewportSnapshot;
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Paints lines of a {@link TerminalTextBuffer} into an image off the EDT, e.g. to make screenshots
+ * of terminals for logs or to benchmark rendering without a display.
+ * <p>
+ * Text is painted by {@link TerminalPanel#paintTextRun}, so it looks as in the panel: with its fonts, palette,
+ * insets and line spacing, including what subclasses of the panel override, e.g. {@link TerminalPanel#getFontToDisplay}.
+ * The panel doesn't need to be shown, its fonts are to be initialized (see {@link TerminalPanel#initFont})
+ * and are not to change while rendering. The cursor, the selection and hovered hyperlinks are not painted,
+ * blinking text is painted in its normal state.
+ * <p>
+ * The rasterizer is thread-safe, the buffer is read-locked only to copy the lines,
+ * so it can render many buffers in parallel on worker threads.
+ */
+public final class TerminalRasterizer {
+  private final TerminalPanel myPanel;
+
+  public TerminalRasterizer(@NotNull TerminalPanel panel) {
+    myPanel = panel;
+  }
+
+  public @NotNull Dimension getCharSize() {
+    return new Dimension(myPanel.myCharSize);
+  }
+
+  /**
+   * Renders the screen lines of the buffer.
+   */
+  public @NotNull BufferedImage render(@NotNull TerminalTextBuffer textBuffer) {
+    return render(textBuffer, 0, textBuffer.getHeight());
+  }
+
+  /**
+   * Renders {@code lineCount} lines starting from {@code firstLine}: 0 is the top screen line,
+   * negative numbers are history lines, as in {@link TerminalTextBuffer#getLine}.
+   */
+  public @NotNull BufferedImage render(@NotNull TerminalTextBuffer textBuffer, int firstLine, int lineCount) {
+    int columnCount;
+    TerminalViewportSnapshot snapshot;
+    textBuffer.readLock();
+    try {
+      columnCount = textBuffer.getWidth();
+      snapshot = textBuffer.createViewportSnapshot(firstLine, lineCount);
+    }
+    finally {
+      textBuffer.readUnlock();
+    }
+
+    Dimension charSize = getCharSize();
+    int width = columnCount * charSize.width + myPanel.getInsetX();
+    int height = Math.max(lineCount, 0) * charSize.height;
+    BufferedImage image = new BufferedImage(Math.max(width, 1), Math.max(height, 1), BufferedImage.TYPE_INT_RGB);
+    Graphics2D gfx = image.createGraphics();
+    try {
+      myPanel.setupAntialiasing(gfx);
+      gfx.setColor(AwtTransformers.toAwtColor(myPanel.getWindowBackground()));
+      gfx.fillRect(0, 0, image.getWidth(), image.getHeight());
+      // the cache of the panel is accessed on EDT only
+      GlyphRunCache glyphRunCache = new GlyphRunCache(myPanel::getFontToDisplay);
+      myPanel.validateGlyphRunCache(glyphRunCache, gfx);
+      boolean fillLineSpacing = myPanel.getSettingsProvider().shouldFillCharacterBackgroundIncludingLineSpacing();
+      snapshot.processLines(new StyledTextConsumer() {
+        @Override
+        public void consume(int x, int y, @NotNull TextStyle style, @NotNull CharBuffer characters, int startRow) {
+          paintTextRun(x, y - startRow, style, characters, fillLineSpacing);
+        }
+
+        @Override
+        public void consumeNul(int x, int y, int nulIndex, @NotNull TextStyle style, @NotNull CharBuffer characters, int startRow) {
+          paintTextRun(x, y - startRow, style, characters, true);
+        }
+
+        @Override
+        public void consumeQueue(int x, int y, int nulIndex, int startRow) {
+          // the rest of the line has the window background
+        }
+
+        private void paintTextRun(int x, int row, @NotNull TextStyle style, @NotNull CharBuffer characters,
+                                  boolean includeSpaceBetweenLines) {
+          // glyphs are clipped within the row, as the panel paints rows separately
+          gfx.setClip(0, row * charSize.height, width, charSize.height);
+          myPanel.paintTextRun(x, row, style, characters, gfx, includeSpaceBetweenLines, glyphRunCache, null, width, height);
+        }
+      });
+    }
+    finally {
+      gfx.dispose();
+    }
+    return image;
+  }
+}
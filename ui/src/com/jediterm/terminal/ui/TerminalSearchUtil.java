@@ -4,23 +4,71 @@ import com.jediterm.terminal.StyledTextConsumer;
 import com.jediterm.terminal.SubstringFinder;
 import com.jediterm.terminal.TextStyle;
 import com.jediterm.terminal.model.CharBuffer;
+import com.jediterm.terminal.model.HistorySearchIndex;
 import com.jediterm.terminal.model.SubCharBuffer;
 import com.jediterm.terminal.model.TerminalTextBuffer;
+import com.jediterm.terminal.model.TerminalViewportSnapshot;
+import kotlin.ranges.IntRange;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
+import java.util.List;
+
 class TerminalSearchUtil {
 
   static @Nullable SubstringFinder.FindResult searchInTerminalTextBuffer(@NotNull TerminalTextBuffer textBuffer,
                                                                          @NotNull String pattern,
                                                                          boolean ignoreCase) {
+    return searchInTerminalTextBuffer(textBuffer, null, pattern, ignoreCase);
+  }
+
+  /**
+   * @param historyIndex the index of the buffer history, only the history rows it finds are searched
+   */
+  static @Nullable SubstringFinder.FindResult searchInTerminalTextBuffer(@NotNull TerminalTextBuffer textBuffer,
+                                                                         @Nullable HistorySearchIndex historyIndex,
+                                                                         @NotNull String pattern,
+                                                                         boolean ignoreCase) {
     if (pattern.isEmpty()) {
       return null;
     }
 
     final SubstringFinder finder = new SubstringFinder(pattern, ignoreCase);
 
-    textBuffer.processHistoryAndScreenLines(-textBuffer.getHistoryLinesCount(), -1, new StyledTextConsumer() {
+    // the lines are copied under the read lock and searched without the lock, so that the output isn't blocked
+    List<TerminalViewportSnapshot> snapshots = new ArrayList<>();
+    List<Integer> snapshotRows = new ArrayList<>();
+    textBuffer.read(() -> {
+      int historyLinesCount = textBuffer.getHistoryLinesCount();
+      // rows of the found items are counted with the discarded lines, so they don't change when lines are discarded
+      int firstHistoryRow = (int)textBuffer.getDiscardedHistoryLinesCount();
+      List<IntRange> historyRows = historyIndex != null ? historyIndex.findRowsToSearch(pattern) : null;
+      if (historyRows == null) {
+        historyRows = List.of(new IntRange(0, historyLinesCount - 1));
+      }
+      for (IntRange rows : historyRows) {
+        // the last history rows are followed by the screen
+        boolean lastRows = rows.getLast() == historyLinesCount - 1;
+        snapshots.add(textBuffer.createViewportSnapshot(rows.getFirst() - historyLinesCount,
+                                                        lastRows ? -1 : rows.getLast() - rows.getFirst() + 1));
+        snapshotRows.add(firstHistoryRow + rows.getFirst());
+      }
+      if (historyRows.isEmpty() || historyRows.get(historyRows.size() - 1).getLast() != historyLinesCount - 1) {
+        snapshots.add(textBuffer.createViewportSnapshot(0, -1));
+        snapshotRows.add(firstHistoryRow + historyLinesCount);
+      }
+      return null;
+    });
+    for (int i = 0; i < snapshots.size(); i++) {
+      finder.skipText();
+      searchInSnapshot(snapshots.get(i), snapshotRows.get(i), finder);
+    }
+    return finder.getResult();
+  }
+
+  static void searchInSnapshot(@NotNull TerminalViewportSnapshot snapshot, int firstRow, @NotNull SubstringFinder finder) {
+    snapshot.processLines(new StyledTextConsumer() {
       @Override
       public void consume(int x, int y, @NotNull TextStyle style, @NotNull CharBuffer characters, int startRow) {
         int offset = 0;
@@ -30,8 +78,9 @@ class TerminalSearchUtil {
           characters = subCharBuffer.getParent();
           offset = subCharBuffer.getOffset();
         }
+        // positions of found items are computed relative to the start of the parent buffer
         for (int i = offset; i < offset + length; i++) {
-          finder.nextChar(x, y - startRow, characters, i);
+          finder.nextChar(x - offset, firstRow + y - startRow, characters, i);
         }
       }
 
@@ -43,7 +92,5 @@ class TerminalSearchUtil {
       public void consumeQueue(int x, int y, int nulIndex, int startRow) {
       }
     });
-
-    return finder.getResult();
   }
 }
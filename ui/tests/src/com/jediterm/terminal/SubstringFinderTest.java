@@ -2,8 +2,11 @@ package com.jediterm.terminal;
 
 import com.jediterm.terminal.model.CharBuffer;
 import junit.framework.TestCase;
+import kotlin.Pair;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.List;
+
 /**
  * @author traff
  */
@@ -73,6 +76,24 @@ public class SubstringFinderTest extends TestCase {
     assertEquals("ABC", res.getItems().get(0).getText());
   }
 
+  @SuppressWarnings("deprecation")
+  public void testRangesInSearchedBuffers() {
+    SubstringFinder finder = new SubstringFinder("needle", true);
+    CharBuffer[] rows = {new CharBuffer("a needle b"), new CharBuffer("xx needl"), new CharBuffer("e yy")};
+    for (int y = 0; y < rows.length; y++) {
+      for (int j = 0; j < rows[y].length(); j++) {
+        finder.nextChar(0, y, rows[y], j);
+      }
+    }
+    SubstringFinder.FindResult res = finder.getResult();
+
+    assertEquals(List.of(new Pair<>(2, 8)), res.getRanges(rows[0]));
+    assertEquals(List.of(new Pair<>(3, 8)), res.getRanges(rows[1]));
+    assertEquals(List.of(new Pair<>(0, 1)), res.getRanges(rows[2]));
+    // copies of the searched buffers are not found
+    assertNull(res.getRanges(new CharBuffer("a needle b")));
+  }
+
   private void doTest(String patter, String... strings) {
     SubstringFinder.FindResult res = getFindResult(patter, strings);
 
@@ -0,0 +1,172 @@
+package com.jediterm.terminal.ui;
+
+import com.jediterm.core.util.CellPosition;
+import com.jediterm.core.util.TermSize;
+import com.jediterm.terminal.SubstringFinder;
+import com.jediterm.terminal.model.CharBuffer;
+import com.jediterm.terminal.model.StyleState;
+import com.jediterm.terminal.model.TerminalTextBuffer;
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+public class BackgroundTextSearchTest extends TestCase {
+  private static final String[] WORDS = {"foo", "bar", "baz", "Qux", "error", "warning", "a", "bb", " "};
+
+  private final BlockingQueue<Update> myUpdates = new LinkedBlockingQueue<>();
+  private ExecutorService myExecutor;
+  private ScheduledExecutorService myScheduler;
+  private TerminalTextBuffer myTextBuffer;
+  private BackgroundTextSearch mySearch;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myExecutor = Executors.newSingleThreadExecutor();
+    myScheduler = Executors.newSingleThreadScheduledExecutor();
+    createSearch(1000);
+  }
+
+  private void createSearch(int maxHistoryLinesCount) {
+    myTextBuffer = new TerminalTextBuffer(20, 5, new StyleState(), maxHistoryLinesCount);
+    Random random = new Random(42);
+    for (int i = 0; i < 300; i++) {
+      writeScreen(random);
+      myTextBuffer.moveScreenLinesToHistory();
+    }
+    writeScreen(random);
+    // small chunks, so that matches span chunks
+    mySearch = new BackgroundTextSearch(myTextBuffer, myExecutor, myScheduler, Runnable::run,
+                                        (result, complete) -> myUpdates.add(new Update(result, complete)), 7);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mySearch.dispose();
+    myExecutor.shutdownNow();
+    myScheduler.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testStreamedResultMatchesSearch() throws InterruptedException {
+    for (String pattern : List.of("error", "ar b", "qux", "rning", "oba")) {
+      mySearch.search(pattern, true, -500);
+      Update update = myUpdates.take();
+      // the first result has only the matches near the viewport
+      assertFalse(pattern, update.complete);
+      while (!update.complete) {
+        update = myUpdates.take();
+      }
+      assertEquals(pattern, describe(search(pattern)), describe(update.result));
+    }
+  }
+
+  public void testNewSearchCancelsRunningSearch() throws InterruptedException {
+    mySearch.search("error", true, 0);
+    mySearch.search("", true, 0);
+    mySearch.search("warning", false, 0);
+    // the search for "error" can be completed before it's cancelled, the empty pattern has no result
+    while (takeComplete().result != null) {
+    }
+    Update update = takeComplete();
+    assertEquals(describe(search("warning")), describe(update.result));
+    assertNull(myUpdates.poll(500, TimeUnit.MILLISECONDS));
+  }
+
+  public void testResultFollowsOutput() throws InterruptedException {
+    mySearch.search("needle", true, 0);
+    assertTrue(takeComplete().result.getItems().isEmpty());
+
+    myTextBuffer.writeString(0, 2, new CharBuffer("a needle"));
+    myTextBuffer.moveScreenLinesToHistory();
+    myTextBuffer.writeString(3, 1, new CharBuffer("needle"));
+    Update update = takeComplete();
+    assertEquals(describe(search("needle")), describe(update.result));
+    assertEquals(2, update.result.getItems().size());
+  }
+
+  public void testRefreshKeepsResultOfUnchangedRows() throws InterruptedException {
+    mySearch.search("ar", true, 0);
+    takeComplete();
+
+    // the history is full, so the top lines are discarded and the found rows move up
+    for (int i = 0; i < 3; i++) {
+      myTextBuffer.writeString(0, 1, new CharBuffer("bar"));
+      myTextBuffer.writeString(5, 4, new CharBuffer("a far car"));
+      myTextBuffer.moveScreenLinesToHistory();
+      assertEquals(describe(search("ar")), describe(takeComplete().result));
+    }
+    myTextBuffer.writeString(0, 3, new CharBuffer("ar"));
+    assertEquals(describe(search("ar")), describe(takeComplete().result));
+  }
+
+  public void testResultFollowsHistoryReflow() throws InterruptedException {
+    // the history is long enough to be rewrapped in the background
+    mySearch.dispose();
+    createSearch(2000);
+    mySearch.search("ar", true, 0);
+    takeComplete();
+
+    // the long lines are rewrapped, so the rows of the history lines above them move
+    myTextBuffer.lock();
+    try {
+      myTextBuffer.resize(new TermSize(8, 5), new CellPosition(1, 5), null);
+    }
+    finally {
+      myTextBuffer.unlock();
+    }
+    myTextBuffer.completeHistoryReflow();
+    String expected = describe(search("ar"));
+    while (!expected.equals(describe(takeComplete().result))) {
+    }
+  }
+
+  private Update takeComplete() throws InterruptedException {
+    while (true) {
+      Update update = myUpdates.poll(10, TimeUnit.SECONDS);
+      assertNotNull(update);
+      if (update.complete) {
+        return update;
+      }
+    }
+  }
+
+  private void writeScreen(Random random) {
+    for (int y = 1; y <= 5; y++) {
+      StringBuilder line = new StringBuilder();
+      while (line.length() < 20) {
+        line.append(WORDS[random.nextInt(WORDS.length)]);
+      }
+      myTextBuffer.writeString(0, y, new CharBuffer(line.substring(0, random.nextInt(21))));
+    }
+  }
+
+  private SubstringFinder.FindResult search(String pattern) {
+    boolean ignoreCase = !pattern.equals("warning");
+    return TerminalSearchUtil.searchInTerminalTextBuffer(myTextBuffer, pattern, ignoreCase);
+  }
+
+  private static String describe(SubstringFinder.FindResult result) {
+    return result.getItems().stream()
+      .map(item -> item.getStart() + "-" + item.getEnd() + ": " + item.getText())
+      .collect(Collectors.joining("\n"));
+  }
+
+  private static final class Update {
+    private final SubstringFinder.FindResult result;
+    private final boolean complete;
+
+    private Update(SubstringFinder.FindResult result, boolean complete) {
+      this.result = result;
+      this.complete = complete;
+    }
+  }
+}
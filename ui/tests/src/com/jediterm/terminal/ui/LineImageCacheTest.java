@@ -0,0 +1,101 @@
+package com.jediterm.terminal.ui;
+
+import com.jediterm.terminal.TextStyle;
+import com.jediterm.terminal.model.CharBuffer;
+import com.jediterm.terminal.model.TerminalLine;
+import junit.framework.TestCase;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+public class LineImageCacheTest extends TestCase {
+  private static final int IMAGE_SIZE = 4 * 10 * 10;
+
+  public void testLineIsWorthCachingWhenPaintedTwice() {
+    LineImageCache cache = new LineImageCache(10 * IMAGE_SIZE);
+    TerminalLine source = line("foo");
+
+    assertFalse(cache.isPainted(source, line("foo")));
+    cache.markPainted(source, line("foo"));
+    assertTrue(cache.isPainted(source, line("foo")));
+    // the content of the line has changed since the previous paint
+    assertFalse(cache.isPainted(source, line("bar")));
+    assertFalse(cache.isPainted(line("foo"), line("foo")));
+  }
+
+  public void testHitsAndMisses() {
+    LineImageCache cache = new LineImageCache(10 * IMAGE_SIZE);
+    cache.validate("settings");
+    TerminalLine source = line("foo");
+    BufferedImage image = image(10, 10);
+
+    assertNull(cache.get(source, line("foo")));
+    cache.put(source, line("foo"), image);
+    assertSame(image, cache.get(source, line("foo")));
+    assertNull(cache.get(source, line("bar")));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(1.0 / 3, cache.getHitRate(), 1e-9);
+
+    cache.validate("settings");
+    assertSame(image, cache.get(source, line("foo")));
+    // images rendered with other settings are dropped
+    cache.validate("other settings");
+    assertNull(cache.get(source, line("foo")));
+    assertEquals(0, cache.getUsedBytes());
+  }
+
+  public void testLeastRecentlyUsedImagesAreEvictedOverBudget() {
+    LineImageCache cache = new LineImageCache(2 * IMAGE_SIZE);
+    TerminalLine first = line("first");
+    TerminalLine second = line("second");
+    TerminalLine third = line("third");
+    cache.put(first, line("first"), image(10, 10));
+    cache.put(second, line("second"), image(10, 10));
+    assertNotNull(cache.get(first, line("first")));
+
+    cache.put(third, line("third"), image(10, 10));
+    assertNull(cache.get(second, line("second")));
+    assertNotNull(cache.get(first, line("first")));
+    assertNotNull(cache.get(third, line("third")));
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(2 * IMAGE_SIZE, cache.getUsedBytes());
+  }
+
+  public void testPaintedLinesCountIsBounded() {
+    LineImageCache cache = new LineImageCache(10 * IMAGE_SIZE);
+    TerminalLine[] sources = new TerminalLine[LineImageCache.MAX_ENTRIES + 1];
+    for (int i = 0; i < sources.length; i++) {
+      sources[i] = line("line " + i);
+      cache.markPainted(sources[i], sources[i]);
+    }
+
+    // lines painted without images don't take the budget, but are forgotten over the max count
+    assertTrue(cache.isPainted(sources[sources.length - 1], sources[sources.length - 1]));
+    assertFalse(cache.isPainted(sources[0], sources[0]));
+    assertEquals(0, cache.getUsedBytes());
+    assertEquals(0, cache.getEvictionCount());
+  }
+
+  public void testImagesOfEvictedRowsAreReused() {
+    LineImageCache cache = new LineImageCache(IMAGE_SIZE);
+    GraphicsConfiguration configuration = image(1, 1).createGraphics().getDeviceConfiguration();
+    BufferedImage image = cache.obtainImage(configuration, 10, 10);
+    cache.put(line("first"), line("first"), image);
+    cache.put(line("second"), line("second"), cache.obtainImage(configuration, 10, 10));
+
+    assertSame(image, cache.obtainImage(configuration, 10, 10));
+    cache.release(image);
+    BufferedImage otherSize = cache.obtainImage(configuration, 20, 10);
+    assertNotSame(image, otherSize);
+    assertEquals(20, otherSize.getWidth());
+  }
+
+  private static TerminalLine line(String text) {
+    return new TerminalLine(new TerminalLine.TextEntry(TextStyle.EMPTY, new CharBuffer(text)));
+  }
+
+  private static BufferedImage image(int width, int height) {
+    return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+  }
+}
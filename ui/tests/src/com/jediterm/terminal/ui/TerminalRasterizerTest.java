@@ -0,0 +1,42 @@
+package com.jediterm.terminal.ui;
+
+import com.jediterm.core.Color;
+import com.jediterm.terminal.TerminalColor;
+import com.jediterm.terminal.TextStyle;
+import com.jediterm.terminal.model.CharBuffer;
+import com.jediterm.terminal.model.StyleState;
+import com.jediterm.terminal.model.TerminalTextBuffer;
+import com.jediterm.terminal.ui.settings.DefaultSettingsProvider;
+import junit.framework.TestCase;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+public class TerminalRasterizerTest extends TestCase {
+  public void testRendersStyledCells() {
+    DefaultSettingsProvider settingsProvider = new DefaultSettingsProvider();
+    StyleState state = new StyleState();
+    TerminalTextBuffer textBuffer = new TerminalTextBuffer(10, 3, state);
+    state.setCurrent(new TextStyle(null, TerminalColor.index(1)));
+    textBuffer.writeString(2, 2, new CharBuffer("ab"));
+    TerminalPanel panel = new TerminalPanel(settingsProvider, textBuffer, state) {
+      @Override
+      protected int getInsetX() {
+        return 6;
+      }
+    };
+    panel.initFont();
+
+    TerminalRasterizer rasterizer = new TerminalRasterizer(panel);
+    Dimension charSize = rasterizer.getCharSize();
+    BufferedImage image = rasterizer.render(textBuffer);
+
+    assertEquals(10 * charSize.width + 6, image.getWidth());
+    assertEquals(3 * charSize.height, image.getHeight());
+    Color red = settingsProvider.getTerminalColorPalette().getBackground(TerminalColor.index(1));
+    Color background = panel.getWindowBackground();
+    // the top left corner of the first written cell, glyphs don't cover it
+    assertEquals(red.getRGB(), image.getRGB(6 + 2 * charSize.width, charSize.height));
+    assertEquals(background.getRGB(), image.getRGB(6 + 6 * charSize.width, charSize.height + 1));
+  }
+}
@@ -0,0 +1,151 @@
+package com.jediterm.terminal.ui;
+
+import com.jediterm.terminal.StyledTextConsumer;
+import com.jediterm.terminal.SubstringFinder;
+import com.jediterm.terminal.TextStyle;
+import com.jediterm.terminal.model.CharBuffer;
+import com.jediterm.terminal.model.HistorySearchIndex;
+import com.jediterm.terminal.model.StyleState;
+import com.jediterm.terminal.model.TerminalTextBuffer;
+import com.jediterm.terminal.model.TerminalViewportSnapshot;
+import junit.framework.TestCase;
+import kotlin.Pair;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+public class TerminalSearchUtilTest extends TestCase {
+  private static final String[] WORDS = {"foo", "bar", "baz", "Qux", "error", "warning", "a", "bb", " "};
+
+  public void testIndexedSearchFindsSameItems() {
+    TerminalTextBuffer textBuffer = new TerminalTextBuffer(20, 5, new StyleState(), 1000);
+    HistorySearchIndex index = new HistorySearchIndex(textBuffer);
+    textBuffer.addChangesListener(index);
+    Random random = new Random(42);
+
+    for (int round = 0; round < 400; round++) {
+      writeScreen(textBuffer, random);
+      textBuffer.moveScreenLinesToHistory();
+      if (round % 50 == 10) {
+        textBuffer.setLineWrapped(-1, true);
+      }
+      if (round % 100 == 30) {
+        for (String pattern : List.of("error", "ar b", "qux", "Qux", "rning", "bbb", "a")) {
+          assertEquals(pattern, describe(search(textBuffer, null, pattern)), describe(search(textBuffer, index, pattern)));
+        }
+      }
+      if (round == 250) {
+        textBuffer.clearHistory();
+      }
+    }
+    writeScreen(textBuffer, random);
+    for (String pattern : List.of("error", "ar b", "qux", "Qux", "rning", "bbb", "oba")) {
+      String expected = describe(search(textBuffer, null, pattern));
+      assertEquals(pattern, expected, describe(search(textBuffer, index, pattern)));
+      // the index is up to date after the search
+      assertEquals(pattern, expected, describe(search(textBuffer, index, pattern)));
+    }
+    assertFalse(search(textBuffer, index, "error").getItems().isEmpty());
+  }
+
+  public void testFoundItemsAreHighlightedInSnapshot() {
+    TerminalTextBuffer textBuffer = createTextBuffer();
+    SubstringFinder.FindResult result = search(textBuffer, null, "needle");
+    assertEquals(3, result.getItems().size());
+
+    // the painted lines are copies of the searched ones
+    TerminalViewportSnapshot snapshot = textBuffer.createViewportSnapshot(-textBuffer.getHistoryLinesCount(), -1);
+    List<String> highlighted = new ArrayList<>();
+    snapshot.processLines(new HighlightCollector(highlighted) {
+      @Override
+      List<Pair<Integer, Integer>> getRanges(int row, int x, @NotNull CharBuffer characters) {
+        return result.getRanges((int)snapshot.getDiscardedHistoryLinesCount() + snapshot.getFirstBufferRow() + row, x,
+                                characters.length());
+      }
+    });
+    assertEquals(List.of("0:2:needle", "1:3:needl", "2:0:e", "4:2:needle"), highlighted);
+  }
+
+  public void testFoundItemsKeepTheirRowsWhenLinesAreDiscarded() {
+    TerminalTextBuffer textBuffer = createTextBuffer();
+    SubstringFinder.FindResult result = search(textBuffer, null, "needle");
+    // fill the history up to its capacity, so that its first line is discarded
+    for (int i = 0; i < 97; i++) {
+      textBuffer.writeString(0, 1, new CharBuffer("x" + i));
+      textBuffer.moveScreenLinesToHistory();
+    }
+    assertEquals(1, textBuffer.getDiscardedHistoryLinesCount());
+
+    TerminalViewportSnapshot snapshot = textBuffer.createViewportSnapshot(-textBuffer.getHistoryLinesCount(), 5);
+    List<String> highlighted = new ArrayList<>();
+    snapshot.processLines(new HighlightCollector(highlighted) {
+      @Override
+      List<Pair<Integer, Integer>> getRanges(int row, int x, @NotNull CharBuffer characters) {
+        return result.getRanges((int)snapshot.getDiscardedHistoryLinesCount() + snapshot.getFirstBufferRow() + row, x,
+                                characters.length());
+      }
+    });
+    assertEquals(List.of("0:3:needl", "1:0:e", "3:2:needle"), highlighted);
+  }
+
+  private static @NotNull TerminalTextBuffer createTextBuffer() {
+    TerminalTextBuffer textBuffer = new TerminalTextBuffer(10, 3, new StyleState(), 100);
+    textBuffer.writeString(0, 1, new CharBuffer("a needle b"));
+    textBuffer.writeString(0, 2, new CharBuffer("xx needl"));
+    textBuffer.writeString(0, 3, new CharBuffer("e yy"));
+    textBuffer.moveScreenLinesToHistory();
+    textBuffer.writeString(2, 2, new CharBuffer("needle"));
+    return textBuffer;
+  }
+
+  private static void writeScreen(TerminalTextBuffer textBuffer, Random random) {
+    for (int y = 1; y <= 5; y++) {
+      StringBuilder line = new StringBuilder();
+      while (line.length() < 20) {
+        line.append(WORDS[random.nextInt(WORDS.length)]);
+      }
+      textBuffer.writeString(0, y, new CharBuffer(line.substring(0, random.nextInt(21))));
+    }
+  }
+
+  private static SubstringFinder.FindResult search(TerminalTextBuffer textBuffer, HistorySearchIndex index, String pattern) {
+    return TerminalSearchUtil.searchInTerminalTextBuffer(textBuffer, index, pattern, true);
+  }
+
+  private static String describe(SubstringFinder.FindResult result) {
+    return result.getItems().stream()
+      .map(item -> item.getStart() + "-" + item.getEnd() + ": " + item.getText())
+      .collect(Collectors.joining("\n"));
+  }
+
+  private abstract static class HighlightCollector implements StyledTextConsumer {
+    private final List<String> myHighlighted;
+
+    private HighlightCollector(@NotNull List<String> highlighted) {
+      myHighlighted = highlighted;
+    }
+
+    abstract List<Pair<Integer, Integer>> getRanges(int row, int x, @NotNull CharBuffer characters);
+
+    @Override
+    public void consume(int x, int y, @NotNull TextStyle style, @NotNull CharBuffer characters, int startRow) {
+      List<Pair<Integer, Integer>> ranges = getRanges(y - startRow, x, characters);
+      if (ranges != null) {
+        for (Pair<Integer, Integer> range : ranges) {
+          myHighlighted.add((y - startRow) + ":" + (x + range.getFirst()) + ":" + characters.subBuffer(range));
+        }
+      }
+    }
+
+    @Override
+    public void consumeNul(int x, int y, int nulIndex, @NotNull TextStyle style, @NotNull CharBuffer characters, int startRow) {
+    }
+
+    @Override
+    public void consumeQueue(int x, int y, int nulIndex, int startRow) {
+    }
+  }
+}